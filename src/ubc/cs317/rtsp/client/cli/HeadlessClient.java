@@ -0,0 +1,186 @@
+package ubc.cs317.rtsp.client.cli;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.net.ChannelPool;
+import ubc.cs317.rtsp.client.net.RTSPConnection;
+import ubc.cs317.rtsp.client.record.FrameRecorder;
+
+/**
+ * Display-less entry point for stream health probes. <br/>
+ * Opens one session per target, plays them all for a fixed duration, then tears them down and prints the
+ * RTSPConStats of every session as JSON. No display listener is attached to the sessions, so frames only
+ * go through the header based stats path and are never decoded. With -r, each target's frames are also
+ * recorded to prefix-N.mjpeg by a FrameRecorder. With -m, targets on the same server share one control
+ * connection. -T picks the RTP transport (default auto: UDP, falling back to TCP); with
+ * -T multicast, targets naming the same group share one socket and membership. The packets, packet rate and load
+ * of each UDP ingest thread are printed to stderr at the end.
+ *
+ * <pre>
+ * usage: HeadlessClient [-d seconds] [-o file.json] [-r prefix] [-m] [-T udp|tcp|auto|multicast]
+ *                       host:port/video [host:port/video ...]
+ * </pre>
+ */
+public class HeadlessClient {
+   private static final int DEFAULT_DURATION_S = 10;
+
+   private static class Target {
+      String spec;
+      StreamTarget stream;
+      Session session;
+      FrameRecorder recorder;
+      String error;
+   }
+
+   private static void usage() {
+      System.err.println("usage: HeadlessClient [-d seconds] [-o file.json] [-r prefix] [-m] "
+            + "[-T udp|tcp|auto|multicast] host:port/video [host:port/video ...]");
+      System.exit(1);
+   }
+
+   public static void main(String[] args) throws IOException, InterruptedException {
+      System.setProperty("java.awt.headless", "true");
+
+      int duration = DEFAULT_DURATION_S;
+      PrintStream out = System.out;
+      String recordPrefix = null;
+      ChannelPool channels = null;
+      RTSPConnection.Transport transport = null;
+      List<Target> targets = new ArrayList<Target>();
+      for (int i = 0; i < args.length; i++) {
+         try {
+            if (args[i].equals("-d") && i + 1 < args.length) {
+               duration = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-o") && i + 1 < args.length) {
+               out = new PrintStream(new FileOutputStream(args[++i]));
+            } else if (args[i].equals("-r") && i + 1 < args.length) {
+               recordPrefix = args[++i];
+            } else if (args[i].equals("-m")) {
+               channels = new ChannelPool();
+            } else if (args[i].equals("-T") && i + 1 < args.length) {
+               transport = RTSPConnection.Transport.valueOf(args[++i].toUpperCase(Locale.ROOT));
+            } else {
+               targets.add(parseTarget(args[i]));
+            }
+         } catch (IllegalArgumentException e) {
+            // A number that isn't one, or an unknown transport
+            System.err.println("Invalid value for " + args[i - 1] + ": " + args[i]);
+            usage();
+         }
+      }
+      if (targets.isEmpty()) {
+         usage();
+      }
+
+      for (int i = 0; i < targets.size(); i++) {
+         Target t = targets.get(i);
+         if (t.error != null) {
+            continue;
+         }
+         try {
+            if (channels != null) {
+               t.session = new Session(channels.get(t.stream.host, t.stream.port));
+            } else {
+               t.session = new Session(t.stream.host, t.stream.port);
+            }
+            t.session.getStats().setReportOnEnd(false);
+            if (transport != null) {
+               t.session.setTransport(transport);
+            }
+            if (recordPrefix != null) {
+               t.recorder = new FrameRecorder(new File(recordPrefix + "-" + i + ".mjpeg"));
+               t.session.addSessionListener(t.recorder);
+            }
+            t.session.openAndPlay(t.stream.video);
+         } catch (RTSPException e) {
+            t.error = e.getMessage();
+         } catch (IOException e) {
+            t.error = "Cannot record: " + e.getMessage();
+         }
+      }
+
+      Thread.sleep(duration * 1000L);
+
+      for (Target t : targets) {
+         if (t.session == null) {
+            continue;
+         }
+         try {
+            if (t.error == null) {
+               t.session.close();
+            }
+         } catch (RTSPException e) {
+            t.error = e.getMessage();
+         } finally {
+            t.session.closeConnection();
+         }
+         if (t.recorder != null) {
+            try {
+               t.recorder.close();
+               System.err.println(t.recorder.summary());
+            } catch (IOException e) {
+               t.error = "Recording failed: " + e.getMessage();
+            }
+         }
+      }
+
+      if (channels != null) {
+         System.err.println(channels.summary());
+         channels.close();
+      }
+      String ingest = RTSPConnection.ingestSummary();
+      if (!ingest.isEmpty()) {
+         System.err.println(ingest);
+      }
+
+      out.println(toJSON(targets));
+      if (out != System.out) {
+         out.close();
+      }
+      System.exit(0);
+   }
+
+   /**
+    * Parses a host:port/video target. Malformed targets are kept and reported with an error.
+    */
+   private static Target parseTarget(String spec) {
+      Target t = new Target();
+      t.spec = spec;
+      try {
+         t.stream = StreamTarget.parse(spec);
+      } catch (IllegalArgumentException e) {
+         t.error = e.getMessage();
+      }
+      return t;
+   }
+
+   private static String toJSON(List<Target> targets) {
+      StringBuilder sb = new StringBuilder("[");
+      for (int i = 0; i < targets.size(); i++) {
+         Target t = targets.get(i);
+         if (i > 0) {
+            sb.append(",");
+         }
+         sb.append("{\"target\":").append(quote(t.spec));
+         sb.append(",\"error\":").append(quote(t.error));
+         sb.append(",\"sessions\":").append(t.session == null ? "[]" : t.session.getStats().toJSON());
+         sb.append("}");
+      }
+      return sb.append("]").toString();
+   }
+
+   private static String quote(String s) {
+      if (s == null) {
+         return "null";
+      }
+      return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+   }
+}
@@ -0,0 +1,44 @@
+package ubc.cs317.rtsp.client.cli;
+
+/**
+ * A stream given on the command line as host:port/video.
+ */
+public class StreamTarget {
+   public final String spec;
+   public final String host;
+   public final int port;
+   public final String video;
+
+   private StreamTarget(String spec, String host, int port, String video) {
+      this.spec = spec;
+      this.host = host;
+      this.port = port;
+      this.video = video;
+   }
+
+   /**
+    * @param spec
+    *           a host:port/video string
+    * @return the parsed target
+    * @throws IllegalArgumentException
+    *            if spec is not of that form
+    */
+   public static StreamTarget parse(String spec) {
+      int colon = spec.indexOf(':');
+      int slash = spec.indexOf('/', colon + 1);
+      if (colon <= 0 || slash < 0 || slash == spec.length() - 1) {
+         throw new IllegalArgumentException("Expected host:port/video");
+      }
+      try {
+         return new StreamTarget(spec, spec.substring(0, colon), Integer.parseInt(spec.substring(colon + 1, slash)),
+               spec.substring(slash + 1));
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException("Invalid port");
+      }
+   }
+
+   @Override
+   public String toString() {
+      return spec;
+   }
+}
@@ -0,0 +1,169 @@
+package ubc.cs317.rtsp.client.decode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.net.RTSPConStats;
+
+/**
+ * Trades decode quality for decode time when the machine can't keep up. <br/>
+ * Each decode is timed against the frame interval (estimated from frame timestamps). Over every window of
+ * decoded frames, too many deadline misses, or a saturated process CPU, moves one level down the quality
+ * ladder; a window with no misses and plenty of headroom moves one level back up. The levels, from best to
+ * cheapest:
+ *
+ * <pre>
+ * 0  full quality
+ * 1  2x extra subsampling
+ * 2  2x extra subsampling, grayscale
+ * 3  4x extra subsampling, grayscale
+ * 4  as 3, decode every 2nd frame
+ * 5  as 3, decode every 3rd frame
+ * </pre>
+ *
+ * Every level change, deadline miss and skipped frame is recorded in the session statistics.
+ */
+public class DecodeGovernor {
+   public static final int MAX_LEVEL = 5;
+   private static final int[] EXTRA_SUBSAMPLING = { 1, 2, 2, 4, 4, 4 };
+   private static final boolean[] GRAYSCALE = { false, false, true, true, true, true };
+   private static final int[] DECODE_EVERY = { 1, 1, 1, 1, 2, 3 };
+
+   private static final int WINDOW = 30;
+   private static final int MISSES_TO_DEGRADE = 3;
+   private static final int GOOD_WINDOWS_TO_UPGRADE = 2;
+   /** Share of the frame interval decoding may take, the rest is left for scaling and painting. */
+   private static final double DEADLINE_FRACTION = 0.75;
+   /** Decoding must fit in this share of the interval before quality is raised again. */
+   private static final double HEADROOM_FRACTION = 0.35;
+   private static final double CPU_HIGH = 0.95;
+   private static final double CPU_HEADROOM = 0.7;
+   private static final long CPU_SAMPLE_INTERVAL_MS = 1000;
+   private static final double DEFAULT_INTERVAL_MS = 33;
+
+   private final RTSPConStats stats;
+   private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+   private int level;
+   private int skipCounter;
+   private int windowFrames;
+   private int windowMisses;
+   private long windowDecodeNanos;
+   private int goodWindows;
+   private double intervalMs = DEFAULT_INTERVAL_MS;
+   private long lastTimestamp = -1;
+   private double cpuLoad = -1;
+   private long lastCpuSample;
+
+   /**
+    * @param stats
+    *           where level changes, misses and skips are reported
+    */
+   public DecodeGovernor(RTSPConStats stats) {
+      this.stats = stats;
+   }
+
+   /**
+    * Call for every frame before decoding it.
+    *
+    * @param frame
+    *           the frame about to be decoded
+    * @return false if the current level skips this frame
+    */
+   public synchronized boolean shouldDecode(Frame frame) {
+      updateInterval(frame);
+      if (++skipCounter < DECODE_EVERY[level]) {
+         stats.decodeSkipped();
+         return false;
+      }
+      skipCounter = 0;
+      return true;
+   }
+
+   /**
+    * Call after each decode with the time it took.
+    *
+    * @param decodeNanos
+    *           how long the decode took
+    */
+   public synchronized void frameDecoded(long decodeNanos) {
+      // Skipped frames give the decoded ones more time
+      double budgetMs = intervalMs * DECODE_EVERY[level];
+      windowFrames++;
+      windowDecodeNanos += decodeNanos;
+      if (decodeNanos > budgetMs * DEADLINE_FRACTION * 1000000) {
+         windowMisses++;
+         stats.decodeDeadlineMissed();
+      }
+      if (windowFrames < WINDOW / DECODE_EVERY[level]) {
+         return;
+      }
+      double avgMs = windowDecodeNanos / 1000000.0 / windowFrames;
+      double cpu = sampleCpu();
+      if (windowMisses >= MISSES_TO_DEGRADE || cpu > CPU_HIGH) {
+         goodWindows = 0;
+         if (level < MAX_LEVEL) {
+            setLevel(level + 1, String.format("%d deadline misses, avg decode %.1fms of %.1fms, cpu %.0f%%",
+                  windowMisses, avgMs, budgetMs, cpu * 100));
+         }
+      } else if (windowMisses == 0 && avgMs < intervalMs * HEADROOM_FRACTION && cpu < CPU_HEADROOM) {
+         // Headroom is judged against the plain frame interval, so that stopping skipping is affordable
+         if (++goodWindows >= GOOD_WINDOWS_TO_UPGRADE && level > 0) {
+            goodWindows = 0;
+            setLevel(level - 1, String.format("headroom, avg decode %.1fms of %.1fms, cpu %.0f%%", avgMs,
+                  budgetMs, cpu * 100));
+         }
+      } else {
+         goodWindows = 0;
+      }
+      windowFrames = 0;
+      windowMisses = 0;
+      windowDecodeNanos = 0;
+   }
+
+   private void setLevel(int newLevel, String reason) {
+      level = newLevel;
+      skipCounter = 0;
+      stats.decodeLevelChanged(newLevel, reason);
+   }
+
+   /**
+    * Follows the frame interval from timestamp deltas (milliseconds), ignoring gaps and reordering.
+    */
+   private void updateInterval(Frame frame) {
+      long ts = frame.getTimestamp() & 0xFFFFFFFFL;
+      if (lastTimestamp >= 0) {
+         long delta = ts - lastTimestamp;
+         if (delta > 0 && delta < 1000) {
+            intervalMs += (delta - intervalMs) / 8;
+         }
+      }
+      lastTimestamp = ts;
+   }
+
+   /**
+    * @return process CPU load between 0 and 1 (across all cores), or 0 if the JVM doesn't report it.
+    */
+   private double sampleCpu() {
+      long now = System.currentTimeMillis();
+      if (now - lastCpuSample >= CPU_SAMPLE_INTERVAL_MS) {
+         lastCpuSample = now;
+         if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            cpuLoad = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+         }
+      }
+      return cpuLoad < 0 ? 0 : cpuLoad;
+   }
+
+   public synchronized int getLevel() {
+      return level;
+   }
+
+   public synchronized int getExtraSubsampling() {
+      return EXTRA_SUBSAMPLING[level];
+   }
+
+   public synchronized boolean isGrayscale() {
+      return GRAYSCALE[level];
+   }
+}
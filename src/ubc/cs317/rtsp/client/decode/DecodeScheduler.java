@@ -0,0 +1,209 @@
+package ubc.cs317.rtsp.client.decode;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * Decodes frames for many streams on one bounded pool of worker threads. <br/>
+ * Each stream (a Target) holds at most one pending frame: a newer frame replaces the pending one, which is
+ * dropped undecoded, and a stream has at most one decode task queued at a time. So the queue never holds more
+ * tasks than there are streams, and a stream that can't keep up shows its latest frame rather than falling
+ * further behind. A target's frames are decoded one at a time, in order. <br/>
+ * Before decoding, the target is asked for the size it will be displayed at. A size of zero (eg. scrolled out of
+ * view) skips the frame; otherwise the frame is decoded straight to that size, so small tiles only decode a
+ * fraction of the pixels. Every worker owns its own JpegDecoder.
+ */
+public class DecodeScheduler {
+   /**
+    * A stream whose frames are decoded by the scheduler.
+    */
+   public interface Target {
+      /**
+       * @return the width frames should be decoded to, or 0 to skip decoding
+       */
+      int getDecodeWidth();
+
+      /**
+       * @return the height frames should be decoded to, or 0 to skip decoding
+       */
+      int getDecodeHeight();
+
+      /**
+       * Called on a worker thread with the decoded image. The image belongs to the worker's decoder and is
+       * only valid for the duration of the call, so it must be copied.
+       */
+      void frameDecoded(Frame frame, BufferedImage image);
+
+      /**
+       * Called on a worker thread when a frame was dropped without decoding.
+       */
+      void frameSkipped(Frame frame);
+   }
+
+   private final ThreadPoolExecutor pool;
+   private final ThreadLocal<JpegDecoder> decoders = new ThreadLocal<JpegDecoder>() {
+      @Override
+      protected JpegDecoder initialValue() {
+         return new JpegDecoder();
+      }
+   };
+   private final AtomicLong decoded = new AtomicLong();
+   private final AtomicLong skipped = new AtomicLong();
+   private final AtomicLong superseded = new AtomicLong();
+   private final AtomicLong decodeNanos = new AtomicLong();
+
+   /**
+    * @param threads
+    *           number of decode workers
+    * @param maxTargets
+    *           the most targets that will be scheduled, which bounds the task queue
+    */
+   public DecodeScheduler(int threads, int maxTargets) {
+      final AtomicInteger n = new AtomicInteger();
+      pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+            Math.max(1, maxTargets)), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "decode-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * @return one worker per core, leaving one core for receiving and painting
+    */
+   public static int defaultThreads() {
+      return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+   }
+
+   /**
+    * Creates the per-target slot frames are handed to.
+    */
+   public Slot newSlot(Target target) {
+      return new Slot(target);
+   }
+
+   /**
+    * Holds the pending frame of one target.
+    */
+   public class Slot {
+      private final Target target;
+      private final AtomicReference<Frame> pending = new AtomicReference<Frame>();
+      private final AtomicBoolean queued = new AtomicBoolean();
+      private final Runnable task = new Runnable() {
+         @Override
+         public void run() {
+            // Keeps going while frames arrive, so a target is never decoded on two workers at once
+            while (true) {
+               Frame frame = pending.getAndSet(null);
+               if (frame != null) {
+                  decode(target, frame);
+                  continue;
+               }
+               queued.set(false);
+               if (pending.get() == null || !queued.compareAndSet(false, true)) {
+                  return;
+               }
+            }
+         }
+      };
+
+      private Slot(Target target) {
+         this.target = target;
+      }
+
+      /**
+       * Hands a frame over for decoding, replacing any frame still pending. The frame is retained until it has
+       * been decoded or dropped. If the pool refuses the task (more targets than maxTargets, or after shutdown),
+       * the frame is dropped as skipped, and the next submit tries again.
+       */
+      public void submit(Frame frame) {
+         frame.retain();
+         Frame old = pending.getAndSet(frame);
+         if (old != null) {
+            superseded.incrementAndGet();
+            target.frameSkipped(old);
+            old.release();
+         }
+         if (queued.compareAndSet(false, true)) {
+            try {
+               pool.execute(task);
+            } catch (RejectedExecutionException e) {
+               queued.set(false);
+               Frame dropped = pending.getAndSet(null);
+               if (dropped != null) {
+                  skipped.incrementAndGet();
+                  target.frameSkipped(dropped);
+                  dropped.release();
+               }
+            }
+         }
+      }
+
+      /**
+       * Drops the pending frame, if any.
+       */
+      public void clear() {
+         Frame old = pending.getAndSet(null);
+         if (old != null) {
+            old.release();
+         }
+      }
+   }
+
+   private void decode(Target target, Frame frame) {
+      try {
+         int width = target.getDecodeWidth();
+         int height = target.getDecodeHeight();
+         if (width <= 0 || height <= 0) {
+            skipped.incrementAndGet();
+            target.frameSkipped(frame);
+            return;
+         }
+         long start = System.nanoTime();
+         BufferedImage image;
+         try {
+            image = decoders.get().decode(frame, width, height);
+         } catch (IOException e) {
+            skipped.incrementAndGet();
+            target.frameSkipped(frame);
+            return;
+         }
+         decodeNanos.addAndGet(System.nanoTime() - start);
+         decoded.incrementAndGet();
+         target.frameDecoded(frame, image);
+      } finally {
+         frame.release();
+      }
+   }
+
+   /**
+    * Stops the workers. Frames still queued are not decoded.
+    */
+   public void shutdown() {
+      pool.shutdownNow();
+   }
+
+   /**
+    * @return a short description of the work done so far.
+    */
+   public String summary() {
+      long n = decoded.get();
+      return String.format("Decode pool: %d threads, %d decoded (avg %.1fms), %d skipped, %d superseded",
+            pool.getMaximumPoolSize(), n, n == 0 ? 0 : decodeNanos.get() / 1000000.0 / n, skipped.get(),
+            superseded.get());
+   }
+}
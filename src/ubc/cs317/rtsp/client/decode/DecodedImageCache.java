@@ -0,0 +1,124 @@
+package ubc.cs317.rtsp.client.decode;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * A small LRU cache of decoded and scaled frames, keyed by payload hash, so that runs of byte-identical
+ * frames (static scenes, slides) are decoded and scaled once. <br/>
+ * The key also includes the payload length, the output size and the decode quality level, so a cached image
+ * is only reused where a fresh decode would have produced the same thing. Cached images are private copies
+ * that are never written to again, so they are safe to keep on screen. <br/>
+ * A frame is only copied in the second time its payload is decoded: on a live stream, where no payload
+ * repeats, the decoder's own output is shown and nothing is copied or allocated. The copy of an evicted entry
+ * is drawn over for the next one; the eldest entry is never the one on screen, as showing an image makes it
+ * the most recently used.
+ */
+public class DecodedImageCache {
+   private static final int DEFAULT_CAPACITY = 4;
+
+   private final int capacity;
+   private final Map<Key, BufferedImage> images;
+   /** Payloads decoded once and not cached yet. */
+   private final Map<Key, Boolean> seen;
+
+   public DecodedImageCache() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   /**
+    * @param capacity
+    *           how many decoded images to keep
+    */
+   public DecodedImageCache(final int capacity) {
+      this.capacity = capacity;
+      images = new LinkedHashMap<Key, BufferedImage>(capacity * 2, 0.75f, true);
+      seen = new LinkedHashMap<Key, Boolean>(capacity * 8, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > capacity * 4;
+         }
+      };
+   }
+
+   /**
+    * @return the cached image for an identical frame decoded with the same parameters, or null.
+    */
+   public synchronized BufferedImage get(Frame frame, int maxWidth, int maxHeight, int quality) {
+      return images.get(new Key(frame, maxWidth, maxHeight, quality));
+   }
+
+   /**
+    * Caches a copy of a freshly decoded frame, if its payload was decoded before.
+    *
+    * @param decoded
+    *           the decoder output, which may be overwritten by later decodes
+    * @return the cached copy, to be displayed in place of decoded, or decoded itself if not cached
+    */
+   public synchronized BufferedImage put(Frame frame, int maxWidth, int maxHeight, int quality,
+         BufferedImage decoded) {
+      Key key = new Key(frame, maxWidth, maxHeight, quality);
+      if (seen.remove(key) == null) {
+         seen.put(key, Boolean.TRUE);
+         return decoded;
+      }
+      BufferedImage copy = null;
+      if (images.size() >= capacity) {
+         Iterator<BufferedImage> eldest = images.values().iterator();
+         copy = eldest.next();
+         eldest.remove();
+      }
+      if (copy == null || copy.getWidth() != decoded.getWidth() || copy.getHeight() != decoded.getHeight()) {
+         copy = new BufferedImage(decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_INT_RGB);
+      }
+      Graphics2D g = copy.createGraphics();
+      try {
+         g.drawImage(decoded, 0, 0, null);
+      } finally {
+         g.dispose();
+      }
+      images.put(key, copy);
+      return copy;
+   }
+
+   public synchronized void clear() {
+      images.clear();
+      seen.clear();
+   }
+
+   private static class Key {
+      final long hash;
+      final int length;
+      final int maxWidth;
+      final int maxHeight;
+      final int quality;
+
+      Key(Frame frame, int maxWidth, int maxHeight, int quality) {
+         this.hash = frame.getPayloadHash();
+         this.length = frame.getPayloadLength();
+         this.maxWidth = maxWidth;
+         this.maxHeight = maxHeight;
+         this.quality = quality;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Key)) {
+            return false;
+         }
+         Key k = (Key) o;
+         return hash == k.hash && length == k.length && maxWidth == k.maxWidth && maxHeight == k.maxHeight
+               && quality == k.quality;
+      }
+
+      @Override
+      public int hashCode() {
+         return (int) (hash ^ (hash >>> 32)) * 31 + maxWidth * 17 + maxHeight + quality;
+      }
+   }
+}
@@ -0,0 +1,58 @@
+package ubc.cs317.rtsp.client.decode;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * Drops frames by timestamp during fast-forward and rewind, before they are decoded. <br/>
+ * At a scale of N the server sends N times as much media per second. A server that thins the stream itself
+ * sends frames spaced N frame intervals apart; one that doesn't sends every frame, N times as fast. Keeping
+ * only frames at least N intervals (of media time) after the last frame kept brings both cases down to the
+ * normal frame rate, so 8x playback costs about as much decoding as 1x. Frames from a server that already
+ * thinned are all kept. <br/>
+ * The frame interval is estimated from timestamp deltas (milliseconds) while playing at normal speed.
+ */
+public class FrameThinner {
+   private static final double DEFAULT_INTERVAL_MS = 33;
+   /** Keep a frame slightly early rather than late, so rounding in the timestamps doesn't halve the rate. */
+   private static final double SLACK = 0.9;
+
+   private double intervalMs = DEFAULT_INTERVAL_MS;
+   private long lastTimestamp = -1;
+   private long lastKept = -1;
+
+   /**
+    * Call for every frame before decoding it.
+    *
+    * @param frame
+    *           the frame about to be decoded
+    * @param scale
+    *           the current playback scale, negative for rewind
+    * @return false if the frame should be dropped
+    */
+   public synchronized boolean accept(Frame frame, double scale) {
+      long ts = frame.getTimestamp() & 0xFFFFFFFFL;
+      double speed = Math.abs(scale);
+      if (speed == 1 && lastTimestamp >= 0) {
+         long delta = ts - lastTimestamp;
+         if (delta > 0 && delta < 1000) {
+            intervalMs += (delta - intervalMs) / 8;
+         }
+      }
+      lastTimestamp = ts;
+      // Far jumps are seeks, start over from there
+      long sinceKept = Math.abs(ts - lastKept);
+      if (speed <= 1 || lastKept < 0 || sinceKept >= speed * intervalMs * SLACK || sinceKept > 60000) {
+         lastKept = ts;
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Forgets the last frame kept, eg. after a seek.
+    */
+   public synchronized void reset() {
+      lastTimestamp = -1;
+      lastKept = -1;
+   }
+}
@@ -0,0 +1,171 @@
+package ubc.cs317.rtsp.client.decode;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * Decodes JPEG frames straight to the size they are going to be displayed at. <br/>
+ * The JPEG header is read first, and the largest ImageIO source subsampling factor that still covers the
+ * target size is used, so a small window only decodes a fraction of the pixels. The subsampled result is then
+ * scaled to fit the target box (keeping the aspect ratio). <br/>
+ * The ImageReader, the decode destination and the output images are all reused across frames. Output
+ * images alternate between two buffers, so an image returned by decode stays valid until the decode after
+ * the next one; callers must not hold on to it longer than that.
+ */
+public class JpegDecoder {
+   private static final ColorModel GRAY = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+         false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+   private final ImageReader reader;
+   private BufferedImage decodeDest;
+   private final BufferedImage[] output = new BufferedImage[2];
+   private int nextOutput;
+
+   public JpegDecoder() {
+      Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+      if (!readers.hasNext()) {
+         throw new IllegalStateException("No JPEG ImageReader available");
+      }
+      reader = readers.next();
+   }
+
+   /**
+    * Decodes a frame to fit within the given box.
+    *
+    * @param frame
+    *           the frame holding a JPEG payload
+    * @param maxWidth
+    *           width of the box, or <= 0 to decode at full size
+    * @param maxHeight
+    *           height of the box, or <= 0 to decode at full size
+    * @return the decoded image, owned by this decoder (see class documentation)
+    * @throws IOException
+    *            if the payload is not a decodable JPEG
+    */
+   public BufferedImage decode(Frame frame, int maxWidth, int maxHeight) throws IOException {
+      return decode(frame, maxWidth, maxHeight, 1, false);
+   }
+
+   /**
+    * Decodes a frame to fit within the given box, at reduced quality. The output size is the same as at full
+    * quality, but fewer source pixels are decoded.
+    *
+    * @param frame
+    *           the frame holding a JPEG payload
+    * @param maxWidth
+    *           width of the box, or <= 0 to decode at full size
+    * @param maxHeight
+    *           height of the box, or <= 0 to decode at full size
+    * @param extraSubsampling
+    *           additional subsampling factor on top of the one the box allows, 1 for none
+    * @param grayscale
+    *           true to decode only the luma channel, skipping color conversion
+    * @return the decoded image, owned by this decoder (see class documentation)
+    * @throws IOException
+    *            if the payload is not a decodable JPEG
+    */
+   public synchronized BufferedImage decode(Frame frame, int maxWidth, int maxHeight, int extraSubsampling,
+         boolean grayscale) throws IOException {
+      ImageInputStream in = new MemoryCacheImageInputStream(frame.getPayloadStream());
+      try {
+         reader.setInput(in, true, true);
+         int width = reader.getWidth(0);
+         int height = reader.getHeight(0);
+         double scale = 1;
+         if (maxWidth > 0 && maxHeight > 0) {
+            scale = Math.min(1, Math.min((double) maxWidth / width, (double) maxHeight / height));
+         }
+         int targetWidth = Math.max(1, (int) Math.round(width * scale));
+         int targetHeight = Math.max(1, (int) Math.round(height * scale));
+         int factor = Math.max(1, (int) Math.floor(1 / scale)) * Math.max(1, extraSubsampling);
+
+         ImageReadParam param = reader.getDefaultReadParam();
+         param.setSourceSubsampling(factor, factor, 0, 0);
+         if (grayscale) {
+            return fit(readLuma(param), targetWidth, targetHeight);
+         }
+         int decodedWidth = (width + factor - 1) / factor;
+         int decodedHeight = (height + factor - 1) / factor;
+         if (decodeDest == null || decodeDest.getWidth() != decodedWidth
+               || decodeDest.getHeight() != decodedHeight) {
+            ImageTypeSpecifier type = reader.getImageTypes(0).next();
+            decodeDest = type.createBufferedImage(decodedWidth, decodedHeight);
+         }
+         param.setDestination(decodeDest);
+         reader.read(0, param);
+         return fit(decodeDest, targetWidth, targetHeight);
+      } finally {
+         reader.setInput(null);
+         in.close();
+      }
+   }
+
+   /**
+    * Reads the raw (YCbCr) raster, which skips color conversion, and wraps its first band as a gray image.
+    */
+   private BufferedImage readLuma(ImageReadParam param) throws IOException {
+      WritableRaster raw = (WritableRaster) reader.readRaster(0, param);
+      WritableRaster luma = raw.createWritableChild(0, 0, raw.getWidth(), raw.getHeight(), 0, 0, new int[] { 0 });
+      return new BufferedImage(GRAY, luma, false, null);
+   }
+
+   /**
+    * Scales the decoded image into the next output buffer.
+    */
+   private BufferedImage fit(BufferedImage decoded, int width, int height) {
+      BufferedImage out = output[nextOutput];
+      if (out == null || out.getWidth() != width || out.getHeight() != height) {
+         out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+         output[nextOutput] = out;
+      }
+      nextOutput = (nextOutput + 1) % output.length;
+      Graphics2D g = out.createGraphics();
+      try {
+         g.drawImage(decoded, 0, 0, width, height, null);
+      } finally {
+         g.dispose();
+      }
+      return out;
+   }
+
+   /**
+    * Decodes a small generated image through every path, so that the first real frame does not pay for loading
+    * and compiling the decoder. Meant to run in the background while a stream is being set up.
+    */
+   public void warmUp() {
+      try {
+         ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+         ImageIO.write(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB), "jpeg", jpeg);
+         Frame frame = new Frame((byte) 26, false, (short) 0, 0, jpeg.toByteArray());
+         decode(frame, 32, 32);
+         decode(frame, 32, 32, 2, true);
+      } catch (IOException e) {
+         // Nothing to warm up, the first frame will just be slower
+      }
+   }
+
+   /**
+    * Releases the underlying ImageReader.
+    */
+   public void dispose() {
+      reader.dispose();
+   }
+}
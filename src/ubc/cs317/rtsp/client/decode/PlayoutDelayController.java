@@ -0,0 +1,218 @@
+package ubc.cs317.rtsp.client.decode;
+
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.net.RTSPConStats;
+
+/**
+ * Adapts a PresentationClock's playout delay to the network instead of using one fixed depth. <br/>
+ * Every arrival is measured three ways: the RFC 3550 interarrival jitter (a smoothed mean of how much transit
+ * time changes from frame to frame), the spread between the fastest and slowest transit in the current window,
+ * and how many frames behind the highest sequence number a reordered frame arrives. The delay needed is the
+ * largest of the spread, a multiple of the jitter, and the reorder depth in frame intervals, plus a margin;
+ * every frame dropped for being late adds a step on top, which decays again. The worst of the current and the
+ * previous window is used, so the delay grows as soon as the network gets worse but only shrinks after a whole
+ * clean window. The clock's delay is moved towards the target quickly when growing and slowly when shrinking,
+ * so a shorter delay shows as slightly faster playback rather than skipped frames. <br/>
+ * Measurements stop while playing at another scale, where arrival times don't follow the timestamps.
+ */
+public class PlayoutDelayController {
+   public static final long DEFAULT_MIN_DELAY_MS = 20;
+   public static final long DEFAULT_MAX_DELAY_MS = 1000;
+   private static final long WINDOW_NANOS = 5000000000L;
+   private static final double JITTER_MULTIPLIER = 3;
+   private static final long MARGIN_NANOS = 10000000;
+   private static final long LATE_STEP_NANOS = 10000000;
+   /** Most the delay moves per frame towards its target. */
+   private static final long GROW_STEP_NANOS = 5000000;
+   private static final long SHRINK_STEP_NANOS = 500000;
+   /** Smallest change kept in the delay history of the session statistics. */
+   private static final long LOGGED_CHANGE_NANOS = 5000000;
+   /** Transit changes beyond this are a pause or seek, not jitter. */
+   private static final long RESYNC_NANOS = 1000000000L;
+   private static final double DEFAULT_INTERVAL_NANOS = 33000000;
+
+   private final PresentationClock clock;
+   private final int clockRate;
+   private final long minDelayNanos;
+   private final long maxDelayNanos;
+   private volatile RTSPConStats stats;
+
+   private boolean hasTransit;
+   private long lastTransit;
+   private long lastTs;
+   private double jitterNanos;
+   private int highestSeq = -1;
+   private double intervalNanos = DEFAULT_INTERVAL_NANOS;
+   private long windowStart;
+   private long windowMinTransit = Long.MAX_VALUE;
+   private long windowMaxTransit = Long.MIN_VALUE;
+   private int windowReorder;
+   private long lastSpread;
+   private int lastReorder;
+   private long lateNanos;
+   private long targetNanos;
+   private long loggedNanos = -1;
+
+   /**
+    * Adapts the clock's delay between the default bounds.
+    *
+    * @param clock
+    *           the clock whose playout delay is adapted; its current delay is the starting point
+    * @param clockRate
+    *           RTP timestamp units per second
+    */
+   public PlayoutDelayController(PresentationClock clock, int clockRate) {
+      this(clock, clockRate, DEFAULT_MIN_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+   }
+
+   /**
+    * @param clock
+    *           the clock whose playout delay is adapted; its current delay is the starting point
+    * @param clockRate
+    *           RTP timestamp units per second
+    * @param minDelayMs
+    *           shortest delay chosen, however clean the network
+    * @param maxDelayMs
+    *           longest delay chosen, however bad the network
+    */
+   public PlayoutDelayController(PresentationClock clock, int clockRate, long minDelayMs, long maxDelayMs) {
+      this.clock = clock;
+      this.clockRate = clockRate;
+      this.minDelayNanos = minDelayMs * 1000000;
+      this.maxDelayNanos = maxDelayMs * 1000000;
+      targetNanos = clock.getPlayoutDelay();
+   }
+
+   /**
+    * Sets the statistics the chosen delay is reported to, eg. when the session changes.
+    */
+   public void setStats(RTSPConStats stats) {
+      this.stats = stats;
+      loggedNanos = -1;
+   }
+
+   /**
+    * Measures a frame's arrival and moves the playout delay towards the new target. Call before the clock
+    * assigns the frame its deadline.
+    *
+    * @param frame
+    *           a frame that just arrived
+    * @param arrivalNanos
+    *           when it arrived, as System.nanoTime()
+    * @param scale
+    *           the current playback scale
+    */
+   public synchronized void arrived(Frame frame, long arrivalNanos, double scale) {
+      if (scale == 1) {
+         measure(frame, arrivalNanos);
+      } else {
+         hasTransit = false;
+      }
+      if (arrivalNanos - windowStart >= WINDOW_NANOS) {
+         closeWindow(arrivalNanos);
+      }
+      long need = Math.max(Math.max(windowSpread(), lastSpread), (long) (JITTER_MULTIPLIER * jitterNanos));
+      need = Math.max(need, (long) (Math.max(windowReorder, lastReorder) * intervalNanos));
+      targetNanos = Math.max(minDelayNanos, Math.min(maxDelayNanos, need + MARGIN_NANOS + lateNanos));
+      long delay = clock.getPlayoutDelay();
+      long step = Math.max(-SHRINK_STEP_NANOS, Math.min(GROW_STEP_NANOS, targetNanos - delay));
+      if (step != 0) {
+         clock.setPlayoutDelay(delay + step);
+      }
+   }
+
+   private void measure(Frame frame, long arrivalNanos) {
+      long ts = frame.getTimestamp() & 0xFFFFFFFFL;
+      long transit = arrivalNanos - (long) (ts * 1000000000.0 / clockRate);
+      if (hasTransit && Math.abs(transit - lastTransit) < RESYNC_NANOS) {
+         // RFC 3550 section 6.4.1
+         jitterNanos += (Math.abs(transit - lastTransit) - jitterNanos) / 16;
+         long delta = ts - lastTs;
+         if (delta > 0 && delta < clockRate) {
+            intervalNanos += (delta * 1000000000.0 / clockRate - intervalNanos) / 8;
+         }
+      } else if (hasTransit) {
+         // Paused or seeked, transit times from before say nothing about the ones from now on
+         windowMinTransit = Long.MAX_VALUE;
+         windowMaxTransit = Long.MIN_VALUE;
+      }
+      hasTransit = true;
+      lastTransit = transit;
+      lastTs = ts;
+      windowMinTransit = Math.min(windowMinTransit, transit);
+      windowMaxTransit = Math.max(windowMaxTransit, transit);
+
+      int seq = frame.getSequenceNumber() & 0xFFFF;
+      if (highestSeq < 0) {
+         highestSeq = seq;
+      } else {
+         int delta = (short) (seq - highestSeq);
+         if (delta > 0) {
+            highestSeq = seq;
+         } else if (delta < 0 && delta > -64) {
+            windowReorder = Math.max(windowReorder, -delta);
+         }
+      }
+   }
+
+   private long windowSpread() {
+      return windowMaxTransit < windowMinTransit ? 0 : windowMaxTransit - windowMinTransit;
+   }
+
+   private void closeWindow(long now) {
+      lastSpread = windowSpread();
+      lastReorder = windowReorder;
+      windowStart = now;
+      windowMinTransit = Long.MAX_VALUE;
+      windowMaxTransit = Long.MIN_VALUE;
+      windowReorder = 0;
+      lateNanos /= 2;
+      report();
+   }
+
+   /**
+    * Call for each frame dropped for missing its deadline; the delay grows by a step.
+    */
+   public synchronized void late() {
+      lateNanos = Math.min(maxDelayNanos, lateNanos + LATE_STEP_NANOS);
+   }
+
+   private void report() {
+      RTSPConStats s = stats;
+      if (s == null) {
+         return;
+      }
+      long delay = clock.getPlayoutDelay();
+      boolean logged = loggedNanos < 0 || Math.abs(delay - loggedNanos) >= LOGGED_CHANGE_NANOS;
+      if (logged) {
+         loggedNanos = delay;
+      }
+      s.playoutDelayChanged(delay / 1000000, jitterNanos / 1000000, Math.max(lastReorder, windowReorder), logged);
+   }
+
+   /**
+    * Forgets the measurements, eg. when another video is opened. The delay chosen so far is kept as the
+    * starting point.
+    */
+   public synchronized void reset() {
+      hasTransit = false;
+      highestSeq = -1;
+      windowMinTransit = Long.MAX_VALUE;
+      windowMaxTransit = Long.MIN_VALUE;
+      windowReorder = 0;
+   }
+
+   /**
+    * @return the delay currently aimed for, in nanoseconds.
+    */
+   public synchronized long getTargetDelay() {
+      return targetNanos;
+   }
+
+   /**
+    * @return the current interarrival jitter estimate, in nanoseconds.
+    */
+   public synchronized double getJitter() {
+      return jitterNanos;
+   }
+}
@@ -0,0 +1,174 @@
+package ubc.cs317.rtsp.client.decode;
+
+/**
+ * Maps RTP timestamps to local System.nanoTime() presentation deadlines. <br/>
+ * The first frame sets the base: its timestamp is presented at its arrival time plus the playout delay, and
+ * later timestamps follow at the stream's clock rate (divided by the playback scale). Each arrival is compared
+ * with that mapping; the smallest difference over a window is the least delayed path through the network, and
+ * its movement from window to window is the drift between the server's clock and ours. The mapping is slewed
+ * towards it a little per frame, so drift is corrected without visible jumps, while the jitter above the minimum
+ * is absorbed by the playout delay. A frame that doesn't fit the mapping at all (after a pause, seek or scale
+ * change) starts a new base.
+ */
+public class PresentationClock {
+   /** RTP timestamp units per second; this repo's streams carry milliseconds. */
+   public static final int DEFAULT_CLOCK_RATE = 1000;
+   private static final long WINDOW_NANOS = 2000000000L;
+   /** Most the mapping moves per frame while correcting drift. */
+   private static final long SLEW_NANOS = 500000;
+   /** Arrivals further than this from the mapping start a new base. */
+   private static final long RESYNC_NANOS = 1000000000L;
+
+   private final int clockRate;
+   private long playoutDelayNanos;
+   private double scale = 1;
+   private boolean based;
+   private long baseTs;
+   private long baseNanos;
+   private long lastTs;
+   private long correctionNanos;
+   private long targetCorrectionNanos;
+   private long windowStart;
+   private long windowMin = Long.MAX_VALUE;
+   private long lastWindowMin;
+   private long lastWindowStart;
+   private double driftPpm;
+   private long resyncs;
+
+   /**
+    * @param clockRate
+    *           RTP timestamp units per second
+    * @param playoutDelayMs
+    *           how long after the earliest possible arrival frames are presented
+    */
+   public PresentationClock(int clockRate, long playoutDelayMs) {
+      this.clockRate = clockRate;
+      this.playoutDelayNanos = playoutDelayMs * 1000000;
+   }
+
+   /**
+    * Takes a frame's arrival into account and returns its deadline.
+    *
+    * @param timestamp
+    *           the frame's RTP timestamp
+    * @param arrivalNanos
+    *           when the frame arrived, as System.nanoTime()
+    * @return when the frame should be presented, as System.nanoTime()
+    */
+   public synchronized long arrived(int timestamp, long arrivalNanos) {
+      long ts = extend(timestamp);
+      if (!based) {
+         rebase(ts, arrivalNanos);
+      }
+      long lateness = arrivalNanos - (baseNanos + mediaNanos(ts));
+      if (Math.abs(lateness - correctionNanos) > RESYNC_NANOS) {
+         resyncs++;
+         rebase(ts, arrivalNanos);
+         lateness = 0;
+      }
+      if (lateness < windowMin) {
+         windowMin = lateness;
+      }
+      if (arrivalNanos - windowStart >= WINDOW_NANOS) {
+         if (lastWindowStart != 0) {
+            driftPpm = (double) (windowMin - lastWindowMin) * 1000000 / (windowStart - lastWindowStart);
+         }
+         lastWindowMin = windowMin;
+         lastWindowStart = windowStart;
+         targetCorrectionNanos = windowMin;
+         windowStart = arrivalNanos;
+         windowMin = Long.MAX_VALUE;
+      }
+      long error = targetCorrectionNanos - correctionNanos;
+      correctionNanos += Math.max(-SLEW_NANOS, Math.min(SLEW_NANOS, error));
+      return deadline(ts);
+   }
+
+   /**
+    * @return the deadline of a timestamp under the current mapping, without taking an arrival into account.
+    */
+   public synchronized long deadlineOf(int timestamp) {
+      return deadline(extend(timestamp));
+   }
+
+   private long deadline(long ts) {
+      return baseNanos + mediaNanos(ts) + correctionNanos + playoutDelayNanos;
+   }
+
+   private long mediaNanos(long ts) {
+      return (long) ((ts - baseTs) * 1000000000.0 / clockRate / scale);
+   }
+
+   private void rebase(long ts, long arrivalNanos) {
+      based = true;
+      baseTs = ts;
+      baseNanos = arrivalNanos;
+      correctionNanos = 0;
+      targetCorrectionNanos = 0;
+      windowStart = arrivalNanos;
+      windowMin = Long.MAX_VALUE;
+      lastWindowStart = 0;
+   }
+
+   /**
+    * Unwraps a 32 bit timestamp to a 64 bit one, assuming consecutive frames are less than half the range apart.
+    */
+   private long extend(int timestamp) {
+      long ts = timestamp & 0xFFFFFFFFL;
+      if (based) {
+         long candidate = (lastTs & ~0xFFFFFFFFL) | ts;
+         if (candidate - lastTs > 0x80000000L) {
+            candidate -= 0x100000000L;
+         } else if (lastTs - candidate > 0x80000000L) {
+            candidate += 0x100000000L;
+         }
+         ts = candidate;
+      }
+      lastTs = ts;
+      return ts;
+   }
+
+   /**
+    * Changes the playback scale; frames are mapped from a new base from the next one.
+    */
+   public synchronized void setScale(double scale) {
+      if (scale != this.scale) {
+         this.scale = scale;
+         based = false;
+      }
+   }
+
+   /**
+    * Changes the playout delay. Deadlines already handed out are not moved.
+    */
+   public synchronized void setPlayoutDelay(long playoutDelayNanos) {
+      this.playoutDelayNanos = playoutDelayNanos;
+   }
+
+   public synchronized long getPlayoutDelay() {
+      return playoutDelayNanos;
+   }
+
+   /**
+    * Forgets the mapping, eg. when another video is opened.
+    */
+   public synchronized void reset() {
+      based = false;
+      driftPpm = 0;
+   }
+
+   /**
+    * @return the estimated drift of the server's clock against ours, in parts per million (positive when the
+    *         server's clock is slow).
+    */
+   public synchronized double getDriftPpm() {
+      return driftPpm;
+   }
+
+   /**
+    * @return how many times the mapping was started over.
+    */
+   public synchronized long getResyncs() {
+      return resyncs;
+   }
+}
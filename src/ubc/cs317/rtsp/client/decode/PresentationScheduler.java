@@ -0,0 +1,230 @@
+package ubc.cs317.rtsp.client.decode;
+
+import java.util.PriorityQueue;
+
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.net.RTSPConStats;
+
+/**
+ * Presents frames at the deadlines given by a PresentationClock, instead of the moment they arrive. <br/>
+ * Submitted frames are retained and queued by deadline. A presenter thread waits for the earliest one and hands
+ * it to the target ahead of its deadline by the time presenting (decoding and painting) has recently taken, so
+ * the picture changes close to the deadline. Frames that arrive after their deadline, or are still queued
+ * once it has passed by more than the tolerance, are dropped without being decoded; they are counted in the
+ * session statistics together with how far from its deadline each presented frame made it to the target. <br/>
+ * With a PlayoutDelayController set, each arrival and late drop also adapts the clock's playout delay.
+ */
+public class PresentationScheduler {
+   /** Lateness still worth presenting; anything later has been overtaken by the next frame. */
+   private static final long LATE_TOLERANCE_NANOS = 20000000;
+   private static final int MAX_QUEUED = 64;
+
+   /**
+    * Where frames are presented.
+    */
+   public interface Target {
+      /**
+       * Called on the presenter thread when the frame is due. The frame is released after this returns.
+       */
+      void present(Frame frame);
+   }
+
+   private static class Entry implements Comparable<Entry> {
+      final Frame frame;
+      final long deadline;
+
+      Entry(Frame frame, long deadline) {
+         this.frame = frame;
+         this.deadline = deadline;
+      }
+
+      @Override
+      public int compareTo(Entry o) {
+         return deadline < o.deadline ? -1 : deadline == o.deadline ? 0 : 1;
+      }
+   }
+
+   private final Target target;
+   private final PresentationClock clock;
+   private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+   private final Thread presenter;
+   private volatile RTSPConStats stats;
+   private volatile PlayoutDelayController delayController;
+   private long presentNanos;
+   private boolean running = true;
+
+   /**
+    * Creates the scheduler and starts its presenter thread.
+    *
+    * @param target
+    *           where frames are presented
+    * @param clock
+    *           the mapping from timestamps to deadlines
+    */
+   public PresentationScheduler(Target target, PresentationClock clock) {
+      this.target = target;
+      this.clock = clock;
+      presenter = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            presentLoop();
+         }
+      }, "presenter");
+      presenter.setDaemon(true);
+      presenter.start();
+   }
+
+   /**
+    * Sets the statistics late frames and presentation errors are reported to, eg. when the session changes.
+    */
+   public void setStats(RTSPConStats stats) {
+      this.stats = stats;
+      PlayoutDelayController d = delayController;
+      if (d != null) {
+         d.setStats(stats);
+      }
+   }
+
+   /**
+    * Adapts the clock's playout delay with the given controller, or keeps it fixed if null.
+    */
+   public void setDelayController(PlayoutDelayController delayController) {
+      if (delayController != null) {
+         delayController.setStats(stats);
+      }
+      this.delayController = delayController;
+   }
+
+   /**
+    * Queues a frame for its deadline, or drops it straight away if it is already too late. The deadline is
+    * worked out from when the frame arrived (Frame.getArrivalNanos), not from when it is submitted.
+    *
+    * @param frame
+    *           a frame that just arrived
+    * @param scale
+    *           the current playback scale
+    */
+   public void submit(Frame frame, double scale) {
+      long arrival = frame.getArrivalNanos();
+      clock.setScale(scale);
+      PlayoutDelayController d = delayController;
+      if (d != null) {
+         d.arrived(frame, arrival, scale);
+      }
+      long deadline = clock.arrived(frame.getTimestamp(), arrival);
+      if (System.nanoTime() - deadline > LATE_TOLERANCE_NANOS) {
+         late();
+         return;
+      }
+      frame.retain();
+      synchronized (this) {
+         if (queue.size() >= MAX_QUEUED) {
+            // Can't keep up at all, make room by dropping the most urgent one
+            queue.poll().frame.release();
+            late();
+         }
+         queue.add(new Entry(frame, deadline));
+         notifyAll();
+      }
+   }
+
+   private void presentLoop() {
+      while (true) {
+         Entry entry;
+         synchronized (this) {
+            while (running && queue.isEmpty()) {
+               waitNanos(0);
+            }
+            if (!running) {
+               return;
+            }
+            entry = queue.peek();
+            long wait = entry.deadline - presentNanos - System.nanoTime();
+            if (wait > 0) {
+               waitNanos(wait);
+               continue;
+            }
+            queue.poll();
+         }
+         try {
+            long start = System.nanoTime();
+            if (start - entry.deadline > LATE_TOLERANCE_NANOS) {
+               late();
+               continue;
+            }
+            target.present(entry.frame);
+            long end = System.nanoTime();
+            presentNanos += (end - start - presentNanos) / 8;
+            RTSPConStats s = stats;
+            if (s != null) {
+               s.framePresented(end - entry.deadline, clock.getDriftPpm());
+            }
+         } finally {
+            entry.frame.release();
+         }
+      }
+   }
+
+   private void waitNanos(long nanos) {
+      try {
+         if (nanos == 0) {
+            wait();
+         } else {
+            wait(nanos / 1000000, (int) (nanos % 1000000));
+         }
+      } catch (InterruptedException e) {
+         running = false;
+      }
+   }
+
+   private void late() {
+      PlayoutDelayController d = delayController;
+      if (d != null) {
+         d.late();
+      }
+      RTSPConStats s = stats;
+      if (s != null) {
+         s.framePresentedLate();
+      }
+   }
+
+   /**
+    * Drops every queued frame and starts the clock over, eg. after a seek or when another video is opened.
+    */
+   public void clear() {
+      synchronized (this) {
+         for (Entry e : queue) {
+            e.frame.release();
+         }
+         queue.clear();
+         notifyAll();
+      }
+      clock.reset();
+      PlayoutDelayController d = delayController;
+      if (d != null) {
+         d.reset();
+      }
+   }
+
+   /**
+    * @return how many frames are waiting for their deadline.
+    */
+   public synchronized int getQueued() {
+      return queue.size();
+   }
+
+   public PresentationClock getClock() {
+      return clock;
+   }
+
+   /**
+    * Stops the presenter thread, dropping queued frames.
+    */
+   public void shutdown() {
+      clear();
+      synchronized (this) {
+         running = false;
+         notifyAll();
+      }
+   }
+}
@@ -15,6 +15,16 @@ package ubc.cs317.rtsp.client.model;
 
 import java.awt.Image;
 import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import ubc.cs317.rtsp.util.PayloadHash;
 
 /**
  * This class represents an individual frame in a video stream.
@@ -25,7 +35,13 @@ public class Frame {
 	private boolean marker;
 	private short sequenceNumber;
 	private int timestamp;
-	private byte[] payload;
+	private volatile byte[] payload;
+	private final int payloadLength;
+	private volatile long payloadHash;
+	private volatile boolean hashed;
+	private volatile Image image;
+	private volatile long arrivalNanos = System.nanoTime();
+	private final AtomicInteger references = new AtomicInteger();
 
 	/**
 	 * Creates a new frame.
@@ -60,6 +76,7 @@ public class Frame {
 		this.timestamp = timestamp;
 
 		this.payload = new byte[length];
+		this.payloadLength = length;
 		System.arraycopy(payload, offset, this.payload, 0, length);
 	}
 
@@ -88,6 +105,37 @@ public class Frame {
 				payload.length);
 	}
 
+	/**
+	 * Creates a new frame from the remaining bytes of a buffer, such as a
+	 * region of a memory-mapped file. The buffer's position is not changed.
+	 * 
+	 * @param payloadType
+	 *            The numeric type of payload found in the frame.
+	 * @param marker
+	 *            An indication if the frame is an important frame when compared
+	 *            to other frames in the stream.
+	 * @param sequenceNumber
+	 *            A sequential number corresponding to the ordering of the
+	 *            frame.
+	 * @param timestamp
+	 *            The number of milliseconds after the logical start of the
+	 *            stream when this frame is expected to be played.
+	 * @param payload
+	 *            A buffer whose remaining bytes are the payload of the frame.
+	 */
+	public Frame(byte payloadType, boolean marker, short sequenceNumber,
+			int timestamp, ByteBuffer payload) {
+
+		this.payloadType = payloadType;
+		this.marker = marker;
+		this.sequenceNumber = sequenceNumber;
+		this.timestamp = timestamp;
+
+		this.payloadLength = payload.remaining();
+		this.payload = new byte[payloadLength];
+		payload.duplicate().get(this.payload);
+	}
+
 	/**
 	 * Returns the type of payload found in this frame.
 	 * 
@@ -135,7 +183,44 @@ public class Frame {
 	 * @return A byte array corresponding to the raw data of the frame.
 	 */
 	public byte[] getPayload() {
-		return payload.clone();
+		return payload().clone();
+	}
+
+	/**
+	 * Returns a read-only view of the raw data included in the frame. Unlike
+	 * <code>getPayload</code>, the data is not copied, which makes this the
+	 * preferred way to hand the payload to channels.
+	 * 
+	 * @return A read-only ByteBuffer over the raw data of the frame.
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return ByteBuffer.wrap(payload()).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns a stream over the raw data included in the frame, without
+	 * copying it. Useful for handing the payload to decoders.
+	 * 
+	 * @return An InputStream reading the raw data of the frame.
+	 */
+	public InputStream getPayloadStream() {
+		return new ByteArrayInputStream(payload());
+	}
+
+	/**
+	 * Returns a fast, non-cryptographic 64 bit hash of the payload. It is
+	 * computed on first use and remembered, so byte-identical frames (such as
+	 * a static scene) can be recognized cheaply.
+	 * 
+	 * @return The hash of the payload.
+	 */
+	public long getPayloadHash() {
+		if (!hashed) {
+			byte[] data = payload();
+			payloadHash = PayloadHash.hash64(data, 0, data.length);
+			hashed = true;
+		}
+		return payloadHash;
 	}
 
 	/**
@@ -145,15 +230,91 @@ public class Frame {
 	 * @return The length of the payload.
 	 */
 	public int getPayloadLength() {
-		return payload.length;
+		return payloadLength;
 	}
 
 	/**
-	 * Creates an Image based on the payload of the frame.
+	 * Returns the decoded image of the frame. The payload is decoded the first
+	 * time this is called, and the same image is returned to every caller
+	 * afterwards, so several listeners asking for the image cost a single
+	 * decode. The image is shared and must not be modified.
 	 * 
 	 * @return An <code>Image</code> object corresponding to the frame contents.
 	 */
 	public Image getImage() {
-		return Toolkit.getDefaultToolkit().createImage(getPayload());
+		Image decoded = image;
+		if (decoded == null) {
+			synchronized (this) {
+				decoded = image;
+				if (decoded == null) {
+					decoded = decode(payload());
+					image = decoded;
+				}
+			}
+		}
+		return decoded;
+	}
+
+	/**
+	 * Returns when the frame arrived, as <code>System.nanoTime()</code>. This
+	 * is when its packet was received if the connection says so, otherwise
+	 * when the frame was created.
+	 * 
+	 * @return The arrival time in nanoseconds.
+	 */
+	public long getArrivalNanos() {
+		return arrivalNanos;
+	}
+
+	/**
+	 * Sets when the frame arrived, eg. when its packet was received, so that
+	 * time spent passing it along is not taken as network delay.
+	 * 
+	 * @param arrivalNanos
+	 *            The arrival time, as <code>System.nanoTime()</code>.
+	 */
+	public void setArrivalNanos(long arrivalNanos) {
+		this.arrivalNanos = arrivalNanos;
+	}
+
+	private static Image decode(byte[] data) {
+		try {
+			BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(data));
+			if (decoded != null)
+				return decoded;
+		} catch (IOException e) {
+			// Fall back to the toolkit below
+		}
+		return Toolkit.getDefaultToolkit().createImage(data);
+	}
+
+	/**
+	 * Registers one more holder of the payload. Listeners that keep a frame
+	 * after <code>frameReceived</code> returns must call this before
+	 * returning, and <code>release</code> once they are done with it.
+	 */
+	public void retain() {
+		references.incrementAndGet();
+	}
+
+	/**
+	 * Gives up a hold on the payload. When the last holder releases the frame,
+	 * the payload and decoded image are dropped so they can be reclaimed, even
+	 * if the Frame object itself is still referenced. Header fields remain
+	 * available, but the payload and image can no longer be accessed.
+	 */
+	public void release() {
+		if (references.decrementAndGet() == 0) {
+			payload = null;
+			image = null;
+		}
+	}
+
+	private byte[] payload() {
+		byte[] data = payload;
+		if (data == null)
+			throw new IllegalStateException("Frame " + sequenceNumber
+					+ " has been released");
+		return data;
 	}
 }
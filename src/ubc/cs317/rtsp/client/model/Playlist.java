@@ -0,0 +1,170 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import ubc.cs317.rtsp.client.net.RTSPConnection;
+import ubc.cs317.rtsp.client.net.StreamConnection;
+import ubc.cs317.rtsp.client.record.RecordingPlayer;
+
+/**
+ * Plays a list of videos back to back in one Session. <br/>
+ * The item after the current one is always set up ahead of time on the session's standby connection
+ * (Session.queueNext), so moving on only costs a PLAY. The playlist moves on when asked to (next), or by itself
+ * at the end of the current video: a recording stops by itself. A server stream is switched away from ahead of
+ * its end, given by the Range the server answered with, by the time the last switch took, so that the next
+ * video's first frame lands as the current one runs out. Otherwise a stream is taken to have ended once no frame
+ * has arrived for RTSPConnection.STALL_MS; a shorter gap is a stall, which the connection recovers from. The
+ * last frame stays on screen until the next video's first frame replaces it. <br/>
+ * The standby connection only frees up at that first frame, so the item after it is set up by the watcher started
+ * by start, which fills the standby connection whenever it is empty.
+ */
+public class Playlist {
+   private static final long END_GAP_MS = RTSPConnection.STALL_MS;
+   private static final long CHECK_INTERVAL_MS = 100;
+
+   private final Session session;
+   private final LinkedList<String> items = new LinkedList<String>();
+   private boolean preparing;
+   private boolean switchScheduled;
+   private Timer watcher;
+
+   /**
+    * @param session
+    *           the session whose standby connection is used
+    */
+   public Playlist(Session session) {
+      this.session = session;
+   }
+
+   /**
+    * Adds a video to the end of the list. If nothing is waiting on standby, it is set up right away.
+    * 
+    * @param videoName
+    *           the name of the video
+    */
+   public synchronized void add(String videoName) {
+      items.add(videoName);
+      prepare();
+   }
+
+   /**
+    * Switches to the video waiting on standby. The one after it is set up once the switch is done.
+    */
+   public void next() {
+      if (session.getNextVideoName() == null || session.isSwitching()) {
+         return;
+      }
+      session.switchToNextAsync(null);
+   }
+
+   /**
+    * Sets up the head of the list on standby, unless something already is (or is being set up).
+    */
+   private void prepare() {
+      if (preparing || items.isEmpty() || session.getNextVideoName() != null) {
+         return;
+      }
+      preparing = true;
+      session.queueNextAsync(items.poll(), new Runnable() {
+         @Override
+         public void run() {
+            synchronized (Playlist.this) {
+               preparing = false;
+            }
+         }
+      });
+   }
+
+   /**
+    * Starts moving on automatically at the end of each video, and setting up the next item whenever nothing is
+    * on standby.
+    */
+   public synchronized void start() {
+      if (watcher != null) {
+         return;
+      }
+      watcher = new Timer("playlist", true);
+      watcher.schedule(new TimerTask() {
+         @Override
+         public void run() {
+            long wait = millisToSwitch();
+            if (wait == 0) {
+               next();
+            } else if (wait > 0 && wait < CHECK_INTERVAL_MS) {
+               scheduleSwitch(wait);
+            } else if (session.getNextVideoName() == null && !session.isSwitching()) {
+               synchronized (Playlist.this) {
+                  prepare();
+               }
+            }
+         }
+      }, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS);
+   }
+
+   /**
+    * Stops moving on automatically. Videos already set up stay on standby.
+    */
+   public synchronized void stop() {
+      if (watcher != null) {
+         watcher.cancel();
+         watcher = null;
+         switchScheduled = false;
+      }
+   }
+
+   /**
+    * Switches to the next item after the given delay, which falls before the next check. Only one such switch is
+    * pending at a time.
+    */
+   private synchronized void scheduleSwitch(long delayMs) {
+      if (switchScheduled || watcher == null) {
+         return;
+      }
+      switchScheduled = true;
+      watcher.schedule(new TimerTask() {
+         @Override
+         public void run() {
+            synchronized (Playlist.this) {
+               switchScheduled = false;
+            }
+            next();
+         }
+      }, delayMs);
+   }
+
+   /**
+    * @return how long until the current video should be switched away from, in milliseconds, 0 if now, or -1 if
+    *         not known yet
+    */
+   private long millisToSwitch() {
+      if (session.getVideoName() == null || session.getNextVideoName() == null) {
+         return -1;
+      }
+      long sinceLastFrame = session.getMillisSinceLastFrame();
+      if (sinceLastFrame < 0) {
+         return -1;
+      }
+      StreamConnection connection = session.getConnection();
+      if (connection instanceof RecordingPlayer) {
+         return ((RecordingPlayer) connection).isAtEnd() ? 0 : -1;
+      }
+      if (connection.getState() != StreamConnection.State.PLAYING) {
+         return -1;
+      }
+      if (sinceLastFrame >= END_GAP_MS) {
+         return 0;
+      }
+      long remaining = connection instanceof RTSPConnection ? ((RTSPConnection) connection).getRemainingMillis()
+            : -1;
+      if (remaining < 0) {
+         return -1;
+      }
+      return Math.max(0, remaining - Math.max(0, session.getLastSwitchLatencyMs()));
+   }
+
+   public synchronized int size() {
+      return items.size();
+   }
+}
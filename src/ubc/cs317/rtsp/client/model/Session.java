@@ -13,12 +13,23 @@
 
 package ubc.cs317.rtsp.client.model;
 
+import java.io.File;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import ubc.cs317.rtsp.client.exception.RTSPException;
 import ubc.cs317.rtsp.client.model.listener.SessionListener;
+import ubc.cs317.rtsp.client.net.ControlChannel;
+import ubc.cs317.rtsp.client.net.RTSPConStats;
 import ubc.cs317.rtsp.client.net.RTSPConnection;
+import ubc.cs317.rtsp.client.net.StreamConnection;
+import ubc.cs317.rtsp.client.record.RecordingPlayer;
 
 /**
  * This class manages an open session with an RTSP server. It provides the main
@@ -28,8 +39,49 @@ import ubc.cs317.rtsp.client.net.RTSPConnection;
 public class Session {
 
 	private Set<SessionListener> sessionListeners = new HashSet<SessionListener>();
-	private RTSPConnection rtspConnection;
+	private volatile StreamConnection rtspConnection;
 	private String videoName = null;
+	private String server;
+	private int port;
+	private File recordingDirectory;
+	private ControlChannel channel;
+	private RTSPConnection.Transport transport;
+	private StreamConnection standby;
+	private String standbyVideoName;
+	private boolean switching;
+	private long switchStartNanos;
+	private long lastSwitchLatencyMs = -1;
+	private volatile long lastFrameNanos;
+	private final ExecutorService commands = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "session-commands");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	private final ExecutorService retirements = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "session-retire");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	private final ExecutorService pauses = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "session-pause");
+					t.setDaemon(true);
+					return t;
+				}
+			});
 
 	/**
 	 * Creates a new RTSP session. This constructor will also create a new
@@ -46,7 +98,63 @@ public class Session {
 	 */
 	public Session(String server, int port) throws RTSPException {
 
-		rtspConnection = new RTSPConnection(this, server, port);
+		this.server = server;
+		this.port = port;
+		rtspConnection = createConnection();
+	}
+
+	/**
+	 * Creates a new RTSP session over an existing control connection. Many
+	 * sessions may share the same channel; responses are matched to their
+	 * requests by CSeq, or by the Session header if the server does not echo
+	 * the CSeq (see ControlChannel). The channel is closed once every session
+	 * using it has been closed.
+	 * 
+	 * @param channel
+	 *            The control connection to the server.
+	 * @throws RTSPException
+	 *             If the channel is already closed.
+	 */
+	public Session(ControlChannel channel) throws RTSPException {
+
+		this.channel = channel;
+		this.server = channel.getServer();
+		this.port = channel.getPort();
+		rtspConnection = createConnection();
+	}
+
+	/**
+	 * Creates a new session that plays back recorded streams instead of
+	 * talking to a server. Video names opened in this session are the names
+	 * of recordings in the given directory.
+	 * 
+	 * @param recordingDirectory
+	 *            The directory holding the recordings, as written by
+	 *            <code>FrameRecorder</code>.
+	 * @throws RTSPException
+	 *             If the directory does not exist.
+	 */
+	public Session(File recordingDirectory) throws RTSPException {
+
+		this.recordingDirectory = recordingDirectory;
+		rtspConnection = createConnection();
+	}
+
+	/**
+	 * Creates a connection to the same server (or recording directory) as
+	 * the one this session was created with.
+	 */
+	private StreamConnection createConnection() throws RTSPException {
+		if (recordingDirectory != null)
+			return new RecordingPlayer(this, recordingDirectory);
+		RTSPConnection connection;
+		if (channel != null)
+			connection = new RTSPConnection(this, channel);
+		else
+			connection = new RTSPConnection(this, server, port);
+		if (transport != null)
+			connection.setTransport(transport);
+		return connection;
 	}
 
 	/**
@@ -91,6 +199,36 @@ public class Session {
 			listener.videoNameChanged(this.videoName);
 	}
 
+	/**
+	 * Opens a video file and starts playing it straight away, using the
+	 * connection's fastest way to get the first frame on screen (see
+	 * <code>RTSPConnection.setupAndPlay</code>). The video name is set before
+	 * the requests are sent, so frames arriving ahead of the responses are
+	 * not dropped.
+	 * 
+	 * @param videoName
+	 *            The name (URL) of the video to be played.
+	 * @throws RTSPException
+	 *             If the server does not accept the requests, or in case of a
+	 *             connectivity problem.
+	 */
+	public void openAndPlay(String videoName) throws RTSPException {
+		setVideoName(videoName);
+		try {
+			rtspConnection.setupAndPlay(videoName);
+		} catch (RTSPException e) {
+			if (rtspConnection.getState() == StreamConnection.State.INIT)
+				setVideoName(null);
+			throw e;
+		}
+	}
+
+	private synchronized void setVideoName(String videoName) {
+		this.videoName = videoName;
+		for (SessionListener listener : sessionListeners)
+			listener.videoNameChanged(this.videoName);
+	}
+
 	/**
 	 * Starts to play the existing file. It should only be called once a file
 	 * has been opened. This function will return immediately after the request
@@ -120,6 +258,41 @@ public class Session {
 		rtspConnection.pause();
 	}
 
+	/**
+	 * Moves playback of the open file to the given time from its start. While
+	 * paused, playback resumes from there.
+	 * 
+	 * @param millis
+	 *            The position, in milliseconds.
+	 * @throws RTSPException
+	 *             If the server does not accept the request, or in case of a
+	 *             connectivity problem.
+	 */
+	public void seek(long millis) throws RTSPException {
+		rtspConnection.seek(millis);
+	}
+
+	/**
+	 * Changes the playback speed: above 1 to fast-forward, negative to
+	 * rewind. Frames arriving faster than the normal frame rate can be
+	 * thinned before decoding, see <code>FrameThinner</code>.
+	 * 
+	 * @param scale
+	 *            Speed relative to normal playback, not 0.
+	 * @throws RTSPException
+	 *             If the server (or recording) does not support the speed.
+	 */
+	public void setScale(double scale) throws RTSPException {
+		rtspConnection.setScale(scale);
+	}
+
+	/**
+	 * @return The speed frames are delivered at, relative to normal playback.
+	 */
+	public double getScale() {
+		return rtspConnection.getScale();
+	}
+
 	/**
 	 * Closes the currently open file. It should only be called once a file has
 	 * been open.
@@ -129,6 +302,7 @@ public class Session {
 	 *             connectivity problem.
 	 */
 	public synchronized void close() throws RTSPException {
+		discardNext();
 		rtspConnection.teardown();
 		processReceivedFrame(null);
 		videoName = null;
@@ -138,16 +312,369 @@ public class Session {
 
 	/**
 	 * Closes the connection with the current server. This session element
-	 * should not be used anymore after this point.
+	 * should not be used anymore after this point. Requests still queued by
+	 * the asynchronous methods are dropped, and one waiting for its response
+	 * fails.
 	 */
 	public void closeConnection() {
+		commands.shutdownNow();
+		pauses.shutdownNow();
+		// Connections already retired are still closed
+		retirements.shutdown();
+		discardNext();
 		rtspConnection.closeConnection();
 	}
 
+	/**
+	 * Sets up the next video of a playlist ahead of time, on a standby
+	 * connection with its own data socket, while the current video keeps
+	 * playing. Replaces any video already waiting on standby.
+	 * 
+	 * @param videoName
+	 *            The name (URL) of the next video.
+	 * @throws RTSPException
+	 *             If the standby connection cannot be made, or the server
+	 *             does not accept the SETUP.
+	 */
+	public void queueNext(String videoName) throws RTSPException {
+		StreamConnection next = createConnection();
+		try {
+			next.setup(videoName);
+		} catch (RTSPException e) {
+			next.closeConnection();
+			throw e;
+		}
+		StreamConnection old;
+		synchronized (this) {
+			old = standby;
+			standby = next;
+			standbyVideoName = videoName;
+			switching = false;
+		}
+		if (old != null)
+			old.closeConnection();
+	}
+
+	/**
+	 * Starts playing the video set up by <code>queueNext</code>. The current
+	 * video keeps being shown until the first frame of the next one arrives;
+	 * at that frame the session cuts over to the standby connection, and the
+	 * old one is torn down in the background. The time from this call to the
+	 * first frame of the next video is recorded as the switch latency.
+	 * 
+	 * @throws RTSPException
+	 *             If no video is waiting on standby, or the server does not
+	 *             accept the PLAY.
+	 */
+	public void switchToNext() throws RTSPException {
+		StreamConnection next;
+		synchronized (this) {
+			next = standby;
+			if (next == null)
+				throw new RTSPException("No video is queued to switch to!");
+			if (switching)
+				return;
+			switching = true;
+			switchStartNanos = System.nanoTime();
+		}
+		try {
+			next.play();
+		} catch (RTSPException e) {
+			synchronized (this) {
+				switching = false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the standby connection, if any.
+	 */
+	private void discardNext() {
+		StreamConnection old;
+		synchronized (this) {
+			old = standby;
+			standby = null;
+			standbyVideoName = null;
+			switching = false;
+		}
+		if (old != null)
+			old.closeConnection();
+	}
+
+	/**
+	 * Returns the video waiting on standby.
+	 * 
+	 * @return The name of the video set up by <code>queueNext</code>, or null
+	 *         if there is none.
+	 */
+	public synchronized String getNextVideoName() {
+		return standbyVideoName;
+	}
+
+	/**
+	 * Returns whether <code>switchToNext</code> is waiting for the first
+	 * frame of the next video.
+	 * 
+	 * @return True while switching.
+	 */
+	public synchronized boolean isSwitching() {
+		return switching;
+	}
+
+	/**
+	 * Returns how long the last switch to a queued video took.
+	 * 
+	 * @return The time from <code>switchToNext</code> to the first frame of
+	 *         the next video in milliseconds, or -1 if there was no switch.
+	 */
+	public synchronized long getLastSwitchLatencyMs() {
+		return lastSwitchLatencyMs;
+	}
+
+	/**
+	 * Returns how long ago the last frame was received.
+	 * 
+	 * @return Milliseconds since the last frame, or -1 if none was received.
+	 */
+	public long getMillisSinceLastFrame() {
+		long last = lastFrameNanos;
+		return last == 0 ? -1 : (System.nanoTime() - last) / 1000000;
+	}
+
+	/**
+	 * Queues an <code>open</code>. Requests queued by the asynchronous methods
+	 * are sent one at a time, in order, on a background thread, so the caller
+	 * (such as the UI) never waits for the server. Failures are reported to
+	 * the listeners through <code>exceptionThrown</code>.
+	 * 
+	 * @param videoName
+	 *            The name (URL) of the video to be opened.
+	 * @param done
+	 *            Called on the background thread once the request completed
+	 *            or failed, or null.
+	 * @return The pending request.
+	 */
+	public Future<?> openAsync(final String videoName, Runnable done) {
+		return submit(new Command(done) {
+
+			@Override
+			void run() throws RTSPException {
+				open(videoName);
+			}
+		});
+	}
+
+	/**
+	 * Queues an <code>openAndPlay</code>, see <code>openAsync</code>.
+	 */
+	public Future<?> openAndPlayAsync(final String videoName, Runnable done) {
+		return submit(new Command(done) {
+
+			@Override
+			void run() throws RTSPException {
+				openAndPlay(videoName);
+			}
+		});
+	}
+
+	/**
+	 * Queues a <code>queueNext</code>, see <code>openAsync</code>.
+	 */
+	public Future<?> queueNextAsync(final String videoName, Runnable done) {
+		return submit(new Command(done) {
+
+			@Override
+			void run() throws RTSPException {
+				queueNext(videoName);
+			}
+		});
+	}
+
+	/**
+	 * Queues a <code>switchToNext</code>, see <code>openAsync</code>.
+	 */
+	public Future<?> switchToNextAsync(Runnable done) {
+		return submit(new Command(done) {
+
+			@Override
+			void run() throws RTSPException {
+				switchToNext();
+			}
+		});
+	}
+
+	/**
+	 * Queues a <code>play</code>, see <code>openAsync</code>.
+	 */
+	public Future<?> playAsync(Runnable done) {
+		return submit(new Command(done) {
+
+			@Override
+			void run() throws RTSPException {
+				play();
+			}
+		});
+	}
+
+	/**
+	 * Queues a <code>pause</code>, see <code>openAsync</code>. If a PLAY is
+	 * waiting for its response, the PAUSE is sent at once rather than after
+	 * it, and commands queued later wait for the pause to finish.
+	 */
+	public Future<?> pauseAsync(Runnable done) {
+		StreamConnection connection = rtspConnection;
+		if (!(connection instanceof RTSPConnection)
+				|| !((RTSPConnection) connection).isStarting())
+			return submit(new Command(done) {
+
+				@Override
+				void run() throws RTSPException {
+					pause();
+				}
+			});
+		final Future<?> pause = pauses.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					pause();
+				} catch (RTSPException e) {
+					fireExceptionThrown(e);
+				}
+			}
+		});
+		return submit(new Command(done) {
+
+			@Override
+			void run() throws RTSPException {
+				try {
+					pause.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// As for queued commands, only RTSPExceptions are reported
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queues a <code>seek</code>, see <code>openAsync</code>.
+	 */
+	public Future<?> seekAsync(final long millis, Runnable done) {
+		return submit(new Command(done) {
+
+			@Override
+			void run() throws RTSPException {
+				seek(millis);
+			}
+		});
+	}
+
+	/**
+	 * Queues a <code>setScale</code>, see <code>openAsync</code>.
+	 */
+	public Future<?> setScaleAsync(final double scale, Runnable done) {
+		return submit(new Command(done) {
+
+			@Override
+			void run() throws RTSPException {
+				setScale(scale);
+			}
+		});
+	}
+
+	/**
+	 * Queues a <code>close</code>, see <code>openAsync</code>.
+	 */
+	public Future<?> closeAsync(Runnable done) {
+		return submit(new Command(done) {
+
+			@Override
+			void run() throws RTSPException {
+				close();
+			}
+		});
+	}
+
+	private Future<?> submit(final Command command) {
+		return commands.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					command.run();
+				} catch (RTSPException e) {
+					fireExceptionThrown(e);
+				} finally {
+					if (command.done != null)
+						command.done.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Chooses how RTP is delivered to this session: over UDP, interleaved on
+	 * the RTSP connection (TCP), or UDP with an automatic fallback to TCP. The
+	 * choice applies from the next video opened. Recordings ignore it.
+	 * 
+	 * @param transport
+	 *            The transport to use.
+	 */
+	public synchronized void setTransport(RTSPConnection.Transport transport) {
+
+		this.transport = transport;
+		if (rtspConnection instanceof RTSPConnection)
+			((RTSPConnection) rtspConnection).setTransport(transport);
+	}
+
+	/**
+	 * Passes an error from the connection's own threads, such as a failed
+	 * transport fallback, to the listeners.
+	 * 
+	 * @param exception
+	 *            The error to report.
+	 */
+	public void reportException(RTSPException exception) {
+		fireExceptionThrown(exception);
+	}
+
+	private synchronized void fireExceptionThrown(RTSPException exception) {
+		for (SessionListener listener : sessionListeners)
+			listener.exceptionThrown(exception);
+	}
+
+	/**
+	 * A request queued by one of the asynchronous methods.
+	 */
+	private abstract static class Command {
+
+		final Runnable done;
+
+		Command(Runnable done) {
+			this.done = done;
+		}
+
+		abstract void run() throws RTSPException;
+	}
+
+	/**
+	 * Returns the state of the underlying connection. While a request is
+	 * waiting for its response, this is the state before the request.
+	 * 
+	 * @return The current connection state.
+	 */
+	public StreamConnection.State getState() {
+		return rtspConnection.getState();
+	}
+
 	/**
 	 * Processes a frame received from the RTSP server. This method will direct
 	 * the frame to the user interface to be processed and presented to the
-	 * user.
+	 * user. Once every listener has returned, the frame's payload is released
+	 * unless a listener retained it.
 	 * 
 	 * @param frame
 	 *            The recently received frame.
@@ -155,8 +682,91 @@ public class Session {
 	public synchronized void processReceivedFrame(Frame frame) {
 		if (videoName == null)
 			return;
-		for (SessionListener listener : sessionListeners)
-			listener.frameReceived(frame);
+		if (frame != null)
+			lastFrameNanos = System.nanoTime();
+		if (frame != null)
+			frame.retain();
+		try {
+			for (SessionListener listener : sessionListeners)
+				listener.frameReceived(frame);
+		} finally {
+			if (frame != null)
+				frame.release();
+		}
+	}
+
+	/**
+	 * Processes a frame received from one of this session's connections.
+	 * Frames from the current connection are processed as above. The first
+	 * frame from the standby connection, once <code>switchToNext</code> has
+	 * been called, makes it the current connection; any other frame from a
+	 * connection that is not current is dropped.
+	 * 
+	 * @param source
+	 *            The connection the frame was received from.
+	 * @param frame
+	 *            The recently received frame.
+	 */
+	public void processReceivedFrame(StreamConnection source, Frame frame) {
+		StreamConnection retired = null;
+		synchronized (this) {
+			if (source != rtspConnection) {
+				if (source != standby || !switching || frame == null)
+					return;
+				retired = rtspConnection;
+				rtspConnection = standby;
+				standby = null;
+				switching = false;
+				lastSwitchLatencyMs = (System.nanoTime() - switchStartNanos) / 1000000;
+				rtspConnection.getStats().switchCompleted(lastSwitchLatencyMs);
+				videoName = standbyVideoName;
+				standbyVideoName = null;
+				for (SessionListener listener : sessionListeners)
+					listener.videoNameChanged(videoName);
+			}
+			processReceivedFrame(frame);
+		}
+		if (retired != null)
+			retire(retired);
+	}
+
+	/**
+	 * Tears down and closes a connection that is no longer current, off the
+	 * thread that delivers frames, on the one thread the session retires
+	 * connections on.
+	 */
+	private void retire(final StreamConnection connection) {
+		try {
+			retirements.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					connection.closeConnection();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The session was closed meanwhile
+			connection.closeConnection();
+		}
+	}
+
+	/**
+	 * Returns the playback statistics collected by the underlying connection.
+	 * 
+	 * @return The statistics of every stream set up in this session.
+	 */
+	public RTSPConStats getStats() {
+		return rtspConnection.getStats();
+	}
+
+	/**
+	 * Returns the connection frames are received from, for features that are
+	 * specific to one kind of connection (such as seeking in a recording).
+	 * 
+	 * @return The connection used by this session.
+	 */
+	public StreamConnection getConnection() {
+		return rtspConnection;
 	}
 
 	/**
@@ -1,6 +1,11 @@
 package ubc.cs317.rtsp.client.model;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -11,6 +16,8 @@ import java.util.TimerTask;
  *
  */
 public class SessionStat {
+   /** How many of the latest changes the change histories keep, so they stay small over a long session. */
+   public static final int MAX_CHANGES_KEPT = 20;
    private Timer timer;
    public String id;
    public String videoName;
@@ -20,6 +27,61 @@ public class SessionStat {
    public long framesPlayed;
    public long framesLost;
    public long framesOutOfOrder;
+   public long framesDuplicated;
+   public int decodeLevel;
+   public long decodeDeadlineMisses;
+   public long framesSkippedByDecoder;
+   /** Frames dropped before decoding during fast-forward or rewind, see FrameThinner. */
+   public long framesThinned;
+   /** Frames handed to the display by the presentation scheduler, and those dropped for missing their deadline. */
+   public long framesPresented;
+   public long framesLate;
+   /** Sum and maximum of how far from their deadline presented frames were shown. */
+   public long presentationErrorNanos;
+   public long maxPresentationErrorNanos;
+   /** Latest estimate of the server clock's drift against ours. */
+   public double clockDriftPpm;
+   /** Playout delay currently chosen by the PlayoutDelayController, and what it was chosen from. */
+   public long playoutDelayMs;
+   public double jitterMs;
+   public int maxReorderDepth;
+   /** Every logged change of playout delay is counted, but only the latest MAX_CHANGES_KEPT are described. */
+   public long playoutDelayChangeCount;
+   public List<String> playoutDelayChanges = new ArrayList<String>();
+   /** RTCP packets sent, NACKed packets, and what became of them (see RTCPSession). */
+   public long rtcpPacketsSent;
+   public long retransmissionsRequested;
+   public long retransmissionsReceived;
+   public long retransmissionsAbandoned;
+   /** Round trip time measured from the latest NACK answered on its first try, -1 if none was. */
+   public long rttMs = -1;
+   /** FEC packets received, and the lost packets they did and did not rebuild (see FECDecoder). */
+   public long fecPacketsReceived;
+   public long packetsRecovered;
+   public long packetsUnrecoverable;
+   /** Packets dropped because the session's ring was full when a shared receive thread had one for it. */
+   public long ringOverflows;
+   public long decodeCacheHits;
+   public long decodeCacheMisses;
+   /** Every change of decode level is counted, but only the latest MAX_CHANGES_KEPT are described. */
+   public long decodeLevelChangeCount;
+   public List<String> decodeLevelChanges = new ArrayList<String>();
+   public Map<String, Long> maxStageLag = new LinkedHashMap<String, Long>();
+   /** When playback was first requested (System.nanoTime()), 0 if not yet. */
+   public long playRequestedNanos;
+   /** Time from the first play request to the first frame received, -1 if none yet. */
+   public long timeToFirstFrameMs = -1;
+   /** Time from the first play request to the first frame shown, -1 if none yet. */
+   public long timeToFirstImageMs = -1;
+   /** Time from the switch to this session's video to its first frame (see Session.switchToNext), -1 if none. */
+   public long switchLatencyMs = -1;
+   /** How RTP was delivered: "udp", or "tcp" when interleaved on the control connection. */
+   public String transport = "udp";
+   /** Times the session was recovered after a stall or a lost control connection. */
+   public int recoveries;
+   /** Total and longest time from detecting a failure to the session being back in its state. */
+   public long recoveryMs;
+   public long maxRecoveryMs;
    public int cseq;
 
    public SessionStat(String id, String vidName) {
@@ -45,7 +107,9 @@ public class SessionStat {
     * Pause/stops the playback timer.
     */
    public void pausePlay() {
-      timer.cancel();
+      if (timer != null) {
+         timer.cancel();
+      }
    }
 
    /**
@@ -53,9 +117,88 @@ public class SessionStat {
     * ie. when teardown() is called in RTSPConnection
     */
    public void finalize() {
-      timer.cancel();
+      pausePlay();
       this.endTime = new Date();
       timer = null;
    }
 
+   /**
+    * Rate of an event count over the time the video was playing.
+    * 
+    * @param count
+    *           number of events
+    * @return events per second of playback, or 0 if nothing was played yet
+    */
+   public double perSecond(long count) {
+      return playbackLength == 0 ? 0 : count * 1000.0 / playbackLength;
+   }
+
+   /**
+    * @return how far from their deadline presented frames were shown on average, in milliseconds.
+    */
+   public double avgPresentationErrorMs() {
+      return framesPresented == 0 ? 0 : presentationErrorNanos / 1000000.0 / framesPresented;
+   }
+
+   /**
+    * @return the share of displayed frames that reused a previous decode, between 0 and 1.
+    */
+   public double decodeCacheHitRate() {
+      long total = decodeCacheHits + decodeCacheMisses;
+      return total == 0 ? 0 : (double) decodeCacheHits / total;
+   }
+
+   /**
+    * @return the stats of this session as a single line JSON object.
+    */
+   public String toJSON() {
+      long end = endTime == null ? System.currentTimeMillis() : endTime.getTime();
+      StringBuilder lags = new StringBuilder("{");
+      for (Map.Entry<String, Long> lag : maxStageLag.entrySet()) {
+         if (lags.length() > 1) {
+            lags.append(",");
+         }
+         lags.append(quote(lag.getKey())).append(":").append(lag.getValue());
+      }
+      lags.append("}");
+      StringBuilder delays = new StringBuilder("[");
+      for (String change : playoutDelayChanges) {
+         if (delays.length() > 1) {
+            delays.append(",");
+         }
+         delays.append(quote(change));
+      }
+      delays.append("]");
+      return String.format(Locale.ROOT, "{\"id\":%s,\"video\":%s,\"startTime\":%d,\"endTime\":%d,\"requests\":%d,"
+            + "\"framesPlayed\":%d,\"framesLost\":%d,\"framesOutOfOrder\":%d,\"framesDuplicated\":%d,"
+            + "\"playbackLengthMs\":%d,"
+            + "\"sessionLengthMs\":%d,\"frameRate\":%.3f,\"lossRate\":%.3f,\"outOfOrderRate\":%.3f,"
+            + "\"decodeLevel\":%d,\"decodeLevelChanges\":%d,\"decodeDeadlineMisses\":%d,"
+            + "\"framesSkippedByDecoder\":%d,\"decodeCacheHits\":%d,\"decodeCacheHitRate\":%.3f,\"maxStageLag\":%s,"
+            + "\"timeToFirstFrameMs\":%d,\"timeToFirstImageMs\":%d,\"switchLatencyMs\":%d,\"transport\":%s,"
+            + "\"recoveries\":%d,\"recoveryMs\":%d,\"maxRecoveryMs\":%d,\"framesThinned\":%d,"
+            + "\"framesPresented\":%d,\"framesLate\":%d,\"avgPresentationErrorMs\":%.3f,"
+            + "\"maxPresentationErrorMs\":%.3f,\"clockDriftPpm\":%.1f,\"playoutDelayMs\":%d,\"jitterMs\":%.1f,"
+            + "\"maxReorderDepth\":%d,\"playoutDelayChanges\":%s,\"rtcpPacketsSent\":%d,"
+            + "\"retransmissionsRequested\":%d,\"retransmissionsReceived\":%d,\"retransmissionsAbandoned\":%d,"
+            + "\"rttMs\":%d,\"fecPacketsReceived\":%d,\"packetsRecovered\":%d,\"packetsUnrecoverable\":%d,"
+            + "\"ringOverflows\":%d}",
+            quote(id), quote(videoName), startTime.getTime(), end, cseq, framesPlayed, framesLost,
+            framesOutOfOrder, framesDuplicated, playbackLength, end - startTime.getTime(), perSecond(framesPlayed),
+            perSecond(framesLost), perSecond(framesOutOfOrder), decodeLevel, decodeLevelChangeCount,
+            decodeDeadlineMisses, framesSkippedByDecoder, decodeCacheHits, decodeCacheHitRate(), lags,
+            timeToFirstFrameMs, timeToFirstImageMs, switchLatencyMs, quote(transport), recoveries, recoveryMs,
+            maxRecoveryMs, framesThinned, framesPresented, framesLate, avgPresentationErrorMs(),
+            maxPresentationErrorNanos / 1000000.0, clockDriftPpm, playoutDelayMs, jitterMs, maxReorderDepth,
+            delays, rtcpPacketsSent, retransmissionsRequested, retransmissionsReceived, retransmissionsAbandoned,
+            rttMs, fecPacketsReceived, packetsRecovered, packetsUnrecoverable, ringOverflows);
+   }
+
+   private static String quote(String s) {
+      if (s == null) {
+         return "null";
+      }
+      return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+   }
+
 }
@@ -0,0 +1,102 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+
+/**
+ * Hands out one ControlChannel per server, so that every session opened to the same host:port is multiplexed
+ * over a single control connection. <br/>
+ * The pool holds its own reference to each channel, keeping it open while sessions come and go, until the
+ * pool is closed. A channel that failed is replaced by a new connection the next time it is asked for. <br/>
+ * Connecting is done outside the pool's lock, so a slow server does not hold up lookups for the others. If two
+ * callers connect to the same server at once, the first connection stored is kept and the other closed. <br/>
+ * Sessions whose pooled channel fails reconnect through the pool, so they all end up on its replacement.
+ */
+public class ChannelPool {
+   private final Map<String, ControlChannel> channels = new HashMap<String, ControlChannel>();
+   private boolean closed;
+
+   /**
+    * @param server
+    *           The hostname or IP address of the server.
+    * @param port
+    *           The TCP port number where the server is listening to.
+    * @return the control connection to the server, connecting it if needed
+    * @throws RTSPException
+    *            If the pool is closed, or the connection couldn't be established.
+    */
+   public ControlChannel get(String server, int port) throws RTSPException {
+      String key = server + ":" + port;
+      synchronized (this) {
+         if (closed) {
+            throw new RTSPException("Channel pool is closed!");
+         }
+         ControlChannel channel = channels.get(key);
+         if (channel != null && channel.isOpen()) {
+            return channel;
+         }
+      }
+      ControlChannel fresh = ControlChannel.connect(server, port);
+      ControlChannel current;
+      boolean stored = false;
+      synchronized (this) {
+         current = channels.get(key);
+         if (!closed && (current == null || !current.isOpen())) {
+            fresh.pool = this;
+            fresh.retain();
+            channels.put(key, fresh);
+            stored = true;
+         }
+      }
+      if (!stored) {
+         // Closed meanwhile, or another caller's connection got in first
+         fresh.close();
+         return get(server, port);
+      }
+      if (current != null) {
+         current.release();
+      }
+      return fresh;
+   }
+
+   /**
+    * @return true once the pool has been closed.
+    */
+   public synchronized boolean isClosed() {
+      return closed;
+   }
+
+   /**
+    * Releases the pool's reference to every channel. Channels still used by a session stay open until that
+    * session is closed.
+    */
+   public void close() {
+      List<ControlChannel> open;
+      synchronized (this) {
+         closed = true;
+         open = new ArrayList<ControlChannel>(channels.values());
+         channels.clear();
+      }
+      for (ControlChannel channel : open) {
+         channel.release();
+      }
+   }
+
+   /**
+    * @return one summary line per channel.
+    */
+   public synchronized String summary() {
+      StringBuilder sb = new StringBuilder();
+      for (ControlChannel channel : channels.values()) {
+         if (sb.length() > 0) {
+            sb.append("\n");
+         }
+         sb.append(channel.summary());
+      }
+      return sb.toString();
+   }
+}
@@ -0,0 +1,477 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.util.Connector;
+
+/**
+ * An RTSP control connection that can be shared by several RTSPConnections, each managing its own RTSP session
+ * (with its own data socket and stats) over the one TCP connection. <br/>
+ * Requests from every session get their CSeq from one counter and are written under the channel's lock; a
+ * reader thread reads the responses and hands each to the request it answers: by CSeq when the server echoes
+ * it, otherwise the oldest outstanding request of the session named in the Session header, otherwise simply the
+ * oldest outstanding request (RTSP servers answer in order). <br/>
+ * A request is given RESPONSE_TIMEOUT_MS to be answered. A connection that dies without a FIN or RST stays
+ * open as far as TCP knows, so a request left unanswered that long fails the channel, and with it every
+ * outstanding request, as if the connection had dropped. <br/>
+ * The channel is reference counted: every RTSPConnection using it retains it, and the socket is closed when
+ * the last one releases it. <br/>
+ * Sessions using the TCP transport receive their RTP interleaved on this connection. The reader thread hands
+ * each interleaved packet to the sink registered for its channel, straight out of its read buffer.
+ */
+public class ControlChannel {
+   private static final String CRLF = "\r\n";
+   private static final int CON_ATTEMPT_TIMEOUT = 30000;
+   private static final long RESPONSE_TIMEOUT_MS = Long.getLong("rtsp.responseTimeoutMs", 10000);
+
+   private final String server;
+   private final int port;
+   private final Socket socket;
+   private final InterleavedReader reader;
+   private final AtomicReferenceArray<InterleavedReader.Sink> interleaved =
+         new AtomicReferenceArray<InterleavedReader.Sink>(256);
+   private final BufferedWriter writer;
+   private final Map<Integer, Pending> pending = new LinkedHashMap<Integer, Pending>();
+   private int nextCseq;
+   private int references;
+   private long requests;
+   private long unmatched;
+   private volatile long unroutedPackets;
+   private IOException failure;
+   /** The pool the channel was handed out by, if any, so sessions reconnect through it (see ChannelPool). */
+   volatile ChannelPool pool;
+   /**
+    * Whether the server plays a PLAY pipelined behind its SETUP, which has no Session header yet, or null until one
+    * has been tried (see RTSPConnection.setupAndPlay).
+    */
+   volatile Boolean acceptsEarlyPlay;
+
+   /**
+    * A request waiting for its response.
+    */
+   public class Pending {
+      private final int cseq;
+      private final String sessionId;
+      private final long sentNanos = System.nanoTime();
+      private RTSPResponse response;
+      private IOException error;
+      private boolean done;
+
+      private Pending(int cseq, String sessionId) {
+         this.cseq = cseq;
+         this.sessionId = sessionId;
+      }
+
+      /**
+       * Waits for the response, at most RESPONSE_TIMEOUT_MS from when the request was sent. If none comes by
+       * then, the channel is failed.
+       * 
+       * @return the response to this request
+       * @throws IOException
+       *            if the connection failed or was closed first, the response timed out, or the wait was
+       *            interrupted
+       */
+      public RTSPResponse await() throws IOException {
+         synchronized (this) {
+            long left;
+            while (!done && (left = sentNanos + RESPONSE_TIMEOUT_MS * 1000000 - System.nanoTime()) > 0) {
+               try {
+                  wait(left / 1000000, (int) (left % 1000000));
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new InterruptedIOException("Interrupted while waiting for the response to request "
+                        + cseq);
+               }
+            }
+         }
+         if (!isDone()) {
+            responseTimedOut(this);
+         }
+         synchronized (this) {
+            if (error != null) {
+               throw error;
+            }
+            return response;
+         }
+      }
+
+      private synchronized boolean isDone() {
+         return done;
+      }
+
+      private synchronized void complete(RTSPResponse response, IOException error) {
+         this.response = response;
+         this.error = error;
+         done = true;
+         notifyAll();
+      }
+   }
+
+   private ControlChannel(String server, int port, Socket socket) throws IOException {
+      this.server = server;
+      this.port = port;
+      this.socket = socket;
+      reader = new InterleavedReader(socket.getInputStream(), new InterleavedReader.Sink() {
+         @Override
+         public void packetReceived(int channel, byte[] buf, int offset, int length) {
+            InterleavedReader.Sink sink = interleaved.get(channel);
+            if (sink != null) {
+               sink.packetReceived(channel, buf, offset, length);
+            } else {
+               unroutedPackets++;
+            }
+         }
+      });
+      writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+   }
+
+   /**
+    * Connects to an RTSP server. No message is sent at this point.
+    * 
+    * @param server
+    *           The hostname or IP address of the server.
+    * @param port
+    *           The TCP port number where the server is listening to.
+    * @return the connected channel, not yet retained by anyone
+    * @throws RTSPException
+    *            If the connection couldn't be accepted, such as if the host name or port number are invalid or
+    *            there is no connectivity.
+    */
+   public static ControlChannel connect(String server, int port) throws RTSPException {
+      Socket socket;
+      // Try to establish control connection to server within a timeout
+      try {
+         socket = Connector.connect(server, port, CON_ATTEMPT_TIMEOUT);
+      } catch (UnknownHostException e1) {
+         throw new RTSPException(String.format("Invalid host:port: '%s:%d'!", server, port), e1);
+      } catch (SocketTimeoutException e2) {
+         throw new RTSPException(String.format("Connection attemp to '%s:%d' timed out after %d miliseconds!",
+               server, port, CON_ATTEMPT_TIMEOUT), e2);
+      } catch (IOException e) {
+         throw new RTSPException(String.format("Cannot connect to server at '%s:%d': %s", server, port,
+               e.getMessage()), e);
+      }
+      try {
+         final ControlChannel channel = new ControlChannel(server, port, socket);
+         Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               channel.readLoop();
+            }
+         }, "rtsp-control-" + server + ":" + port);
+         t.setDaemon(true);
+         t.start();
+         return channel;
+      } catch (IOException e) {
+         try {
+            socket.close();
+         } catch (IOException e2) {
+
+         }
+         throw new RTSPException("Cannot get input/output from/to server!", e);
+      }
+   }
+
+   /**
+    * Writes a request.
+    * 
+    * @param command
+    *           the RTSP command and resource URL
+    * @param sessionId
+    *           the content of the Session: header, or null
+    * @param transport
+    *           the content of the Transport: header, or null
+    * @param flush
+    *           false to leave the request buffered, so that it goes out together with the next one
+    * @return the pending response
+    * @throws IOException
+    *            if the request could not be written, or the channel has failed
+    */
+   public Pending send(String command, String sessionId, String transport, boolean flush) throws IOException {
+      return send(command, sessionId, transport, null, flush);
+   }
+
+   /**
+    * Writes a request with additional headers.
+    * 
+    * @param command
+    *           the RTSP command and resource URL
+    * @param sessionId
+    *           the content of the Session: header, or null
+    * @param transport
+    *           the content of the Transport: header, or null
+    * @param headers
+    *           more header lines, such as "Range: npt=10-", or null
+    * @param flush
+    *           false to leave the request buffered, so that it goes out together with the next one
+    * @return the pending response
+    * @throws IOException
+    *            if the request could not be written, or the channel has failed
+    */
+   public synchronized Pending send(String command, String sessionId, String transport, String[] headers,
+         boolean flush) throws IOException {
+      if (failure != null) {
+         throw failure;
+      }
+      StringBuilder req = new StringBuilder(command + " RTSP/1.0").append(CRLF).append("CSeq: " + nextCseq)
+            .append(CRLF);
+      if (transport != null) {
+         req.append("Transport: " + transport).append(CRLF);
+      }
+      if (sessionId != null) {
+         req.append("Session: " + sessionId).append(CRLF);
+      }
+      if (headers != null) {
+         for (String header : headers) {
+            req.append(header).append(CRLF);
+         }
+      }
+      req.append(CRLF);
+
+      Pending p = new Pending(nextCseq, sessionId);
+      pending.put(nextCseq, p);
+      try {
+         writer.write(req.toString());
+         if (flush) {
+            writer.flush();
+         }
+      } catch (IOException e) {
+         pending.remove(nextCseq);
+         throw e;
+      }
+      nextCseq++;
+      requests++;
+      return p;
+   }
+
+   /**
+    * Reads responses until the connection ends, routing each to its request.
+    */
+   private void readLoop() {
+      IOException error;
+      try {
+         while (true) {
+            RTSPResponse resp = reader.readResponse();
+            if (resp == null) {
+               error = new IOException("Connection closed by the server");
+               break;
+            }
+            Pending p = match(resp);
+            if (p != null) {
+               p.complete(resp, null);
+            }
+         }
+      } catch (IOException e) {
+         error = e;
+      } catch (RTSPException e) {
+         error = new IOException(e.getMessage(), e);
+      }
+      fail(error);
+   }
+
+   private synchronized Pending match(RTSPResponse resp) {
+      if (pending.isEmpty()) {
+         unmatched++;
+         return null;
+      }
+      try {
+         Pending p = pending.remove(Integer.valueOf(resp.getHeaderValue("CSEQ").trim()));
+         if (p != null) {
+            return p;
+         }
+      } catch (RuntimeException e) {
+         // No usable CSeq, route by session instead
+      }
+      String sessionId = resp.getHeaderValue("SESSION");
+      Iterator<Pending> it = pending.values().iterator();
+      if (sessionId != null) {
+         while (it.hasNext()) {
+            Pending p = it.next();
+            if (sessionId.equals(p.sessionId)) {
+               it.remove();
+               return p;
+            }
+         }
+         it = pending.values().iterator();
+      }
+      Pending oldest = it.next();
+      it.remove();
+      return oldest;
+   }
+
+   /**
+    * Reserves a pair of interleaved channels, RTP on the even one and RTCP on the odd one after it.
+    * 
+    * @param sink
+    *           where packets on both channels are delivered, on the channel's reader thread
+    * @return the RTP channel number
+    * @throws RTSPException
+    *            if every channel is taken
+    */
+   synchronized int openInterleaved(InterleavedReader.Sink sink) throws RTSPException {
+      for (int channel = 0; channel < interleaved.length(); channel += 2) {
+         if (interleaved.get(channel) == null && interleaved.get(channel + 1) == null) {
+            interleaved.set(channel, sink);
+            interleaved.set(channel + 1, sink);
+            return channel;
+         }
+      }
+      throw new RTSPException(String.format("No interleaved channel left on '%s:%d'!", server, port));
+   }
+
+   /**
+    * Moves a pair of interleaved channels, eg. when the server picked others than those requested.
+    * 
+    * @return false if the new channels are taken, in which case the old ones are kept
+    */
+   synchronized boolean moveInterleaved(int from, int to) {
+      if (from == to) {
+         return true;
+      }
+      if (to < 0 || to + 1 >= interleaved.length() || interleaved.get(to) != null
+            || interleaved.get(to + 1) != null) {
+         return false;
+      }
+      InterleavedReader.Sink sink = interleaved.get(from);
+      closeInterleaved(from);
+      interleaved.set(to, sink);
+      interleaved.set(to + 1, sink);
+      return true;
+   }
+
+   /**
+    * Frees a pair of interleaved channels reserved by openInterleaved. Packets still arriving on them are
+    * dropped.
+    */
+   synchronized void closeInterleaved(int channel) {
+      interleaved.set(channel, null);
+      interleaved.set(channel + 1, null);
+   }
+
+   /**
+    * Fails the channel because a request went unanswered, and closes its socket so the reader stops.
+    */
+   private void responseTimedOut(Pending p) {
+      fail(new SocketTimeoutException(String.format("No response to request %d from '%s:%d' within %d ms",
+            p.cseq, server, port, RESPONSE_TIMEOUT_MS)));
+      try {
+         socket.close();
+      } catch (IOException e) {
+
+      }
+   }
+
+   /**
+    * Fails every outstanding request and every later one.
+    */
+   private void fail(IOException error) {
+      List<Pending> failed;
+      synchronized (this) {
+         if (failure == null) {
+            failure = error;
+         }
+         failed = new ArrayList<Pending>(pending.values());
+         pending.clear();
+      }
+      for (Pending p : failed) {
+         p.complete(null, error);
+      }
+   }
+
+   /**
+    * Registers one more user of the channel.
+    * 
+    * @throws RTSPException
+    *            if the channel has already failed or been closed
+    */
+   public synchronized void retain() throws RTSPException {
+      if (failure != null) {
+         throw new RTSPException(String.format("Control connection to '%s:%d' is closed: %s", server, port,
+               failure.getMessage()), failure);
+      }
+      references++;
+   }
+
+   /**
+    * Unregisters a user of the channel, closing it when there are none left.
+    */
+   public void release() {
+      synchronized (this) {
+         if (--references > 0) {
+            return;
+         }
+      }
+      close();
+   }
+
+   /**
+    * Closes the connection, failing any outstanding request.
+    */
+   public void close() {
+      try {
+         socket.close();
+      } catch (IOException e) {
+
+      }
+      fail(new IOException("Control connection closed"));
+   }
+
+   /**
+    * @return false once the connection has failed or been closed.
+    */
+   public synchronized boolean isOpen() {
+      return failure == null;
+   }
+
+   public String getServer() {
+      return server;
+   }
+
+   public int getPort() {
+      return port;
+   }
+
+   /**
+    * @return the address the connection went to, eg. to send RTCP to the same server.
+    */
+   InetAddress getRemoteAddress() {
+      return socket.getInetAddress();
+   }
+
+   /**
+    * @return the local address of the connection, eg. to pick the interface to join multicast groups on.
+    */
+   InetAddress getLocalAddress() {
+      return socket.getLocalAddress();
+   }
+
+   /**
+    * @return how many RTSPConnections currently use this channel.
+    */
+   public synchronized int getReferenceCount() {
+      return references;
+   }
+
+   /**
+    * @return a short description of the channel's use.
+    */
+   public synchronized String summary() {
+      return String.format("Control %s:%d: %d users, %d requests, %d outstanding, %d unmatched responses, "
+            + "%d interleaved packets (%.1f MB), %d unrouted", server, port, references, requests, pending.size(),
+            unmatched, reader.getPackets(), reader.getPacketBytes() / 1048576.0, unroutedPackets);
+   }
+}
@@ -0,0 +1,292 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Rebuilds lost RTP packets from ULPFEC packets (RFC 5109), before they reach the ring's stages. <br/>
+ * FEC packets come as their own stream, told apart by payload type, so they take no sequence numbers from the
+ * media. Each one carries the XOR of a group of media packets (named by a base sequence number and a mask): of
+ * their first two header bytes, timestamps, lengths and payloads. With all but one of the group at hand, the
+ * missing packet is the XOR of the FEC packet with the others. <br/>
+ * Media packets are copied into a short history once the stream has carried FEC, since ring slots are reused.
+ * An FEC packet whose group misses more than one packet is kept, as a late or recovered packet may yet leave
+ * only one missing; once the media has moved on by MAX_AGE packets, the packets it could not rebuild are
+ * counted as unrecoverable. Only protection level 0 is used, with the 16 or 48 bit mask. <br/>
+ * Not thread safe: called only by the ring's producer.
+ */
+class FECDecoder {
+   private static final int RTP_HEADER_LENGTH = 12;
+   private static final int FEC_HEADER_LENGTH = 10;
+   private static final int HISTORY = 128;
+   /** How far the media may move past a waiting FEC packet's group, while the group is still in the history. */
+   private static final int MAX_AGE = HISTORY / 2;
+   private static final int MAX_PENDING = 32;
+
+   private static class FecPacket {
+      final byte[] data;
+      final int length;
+      final int levelOffset;
+      final List<Integer> protectedSeqs = new ArrayList<Integer>();
+
+      FecPacket(byte[] data, int length, int levelOffset) {
+         this.data = data;
+         this.length = length;
+         this.levelOffset = levelOffset;
+      }
+   }
+
+   private final RTSPConStats stats;
+   private final byte[][] history = new byte[HISTORY][];
+   private final int[] historyLength = new int[HISTORY];
+   private final int[] historySeq = new int[HISTORY];
+   private final boolean[] givenUp = new boolean[HISTORY];
+   private final List<FecPacket> pending = new ArrayList<FecPacket>();
+   private final List<byte[]> recovered = new ArrayList<byte[]>();
+   private boolean active;
+   private int highestSeq = -1;
+   /** First packet copied into the history; earlier ones were never kept, so are not counted as lost. */
+   private int firstKept = -1;
+
+   FECDecoder(RTSPConStats stats) {
+      this.stats = stats;
+   }
+
+   /**
+    * Forgets the stream, eg. on a new SETUP.
+    */
+   void reset() {
+      for (int i = 0; i < HISTORY; i++) {
+         history[i] = null;
+         givenUp[i] = false;
+      }
+      pending.clear();
+      recovered.clear();
+      active = false;
+      highestSeq = -1;
+      firstKept = -1;
+   }
+
+   /**
+    * Keeps a copy of a media packet, if the stream carries FEC, and tries the FEC packets waiting for it.
+    *
+    * @return false if the packet is already in the history, eg. rebuilt from FEC before it arrived late, so it
+    *         has been published once already
+    */
+   boolean mediaReceived(byte[] packet, int length) {
+      int seq = ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+      if (highestSeq < 0 || (short) (seq - highestSeq) > 0) {
+         highestSeq = seq;
+      }
+      if (!active) {
+         return true;
+      }
+      if (has(seq)) {
+         return false;
+      }
+      store(seq, packet, length);
+      retryPending();
+      return true;
+   }
+
+   /**
+    * Takes an FEC packet, rebuilding the media packet it protects if exactly one is missing.
+    */
+   void fecReceived(byte[] packet, int length) {
+      stats.fecReceived();
+      if (!active) {
+         active = true;
+         firstKept = highestSeq < 0 ? -1 : (highestSeq + 1) & 0xFFFF;
+      }
+      int offset = RTP_HEADER_LENGTH + 4 * (packet[0] & 0x0F);
+      if (length < offset + FEC_HEADER_LENGTH + 4) {
+         return;
+      }
+      boolean longMask = (packet[offset] & 0x40) != 0;
+      int levelOffset = offset + FEC_HEADER_LENGTH;
+      int levelLength = longMask ? 8 : 4;
+      if (length < levelOffset + levelLength) {
+         return;
+      }
+      byte[] copy = new byte[length];
+      System.arraycopy(packet, 0, copy, 0, length);
+      FecPacket fec = new FecPacket(copy, length, levelOffset);
+      int base = u16(copy, offset + 2);
+      long mask = ((long) u16(copy, levelOffset + 2)) << 32;
+      if (longMask) {
+         mask |= (copy[levelOffset + 4] & 0xFFL) << 24 | (copy[levelOffset + 5] & 0xFFL) << 16
+               | (copy[levelOffset + 6] & 0xFFL) << 8 | (copy[levelOffset + 7] & 0xFFL);
+      }
+      // Bit 47 is base itself, bit 0 the 47th packet after it
+      for (int bit = 0; bit < 48; bit++) {
+         if ((mask & (1L << (47 - bit))) != 0) {
+            fec.protectedSeqs.add((base + bit) & 0xFFFF);
+         }
+      }
+      if (fec.protectedSeqs.isEmpty()) {
+         return;
+      }
+      if (!tryRecover(fec)) {
+         pending.add(fec);
+         if (pending.size() > MAX_PENDING) {
+            giveUp(pending.remove(0));
+         }
+      }
+      retryPending();
+   }
+
+   /**
+    * @return the packets rebuilt since the last call, to be published to the ring in this order.
+    */
+   List<byte[]> takeRecovered() {
+      if (recovered.isEmpty()) {
+         return Collections.emptyList();
+      }
+      List<byte[]> out = new ArrayList<byte[]>(recovered);
+      recovered.clear();
+      return out;
+   }
+
+   private void retryPending() {
+      boolean progress = true;
+      while (progress) {
+         progress = false;
+         for (Iterator<FecPacket> it = pending.iterator(); it.hasNext();) {
+            FecPacket fec = it.next();
+            int first = fec.protectedSeqs.get(0);
+            if (highestSeq >= 0 && (short) (highestSeq - first) >= MAX_AGE) {
+               it.remove();
+               giveUp(fec);
+            } else if (tryRecover(fec)) {
+               it.remove();
+               progress = true;
+            }
+         }
+      }
+   }
+
+   /**
+    * @return true if the FEC packet has nothing more to give: its group is complete, or was just completed.
+    */
+   private boolean tryRecover(FecPacket fec) {
+      int missingSeq = -1;
+      for (int seq : fec.protectedSeqs) {
+         if (!has(seq)) {
+            if (missingSeq >= 0) {
+               return false;
+            }
+            missingSeq = seq;
+         }
+      }
+      if (missingSeq < 0 || predatesHistory(missingSeq)) {
+         return true;
+      }
+      byte[] data = fec.data;
+      int fecHeader = RTP_HEADER_LENGTH + 4 * (data[0] & 0x0F);
+      int protectionLength = u16(data, fec.levelOffset);
+      int payloadOffset = fec.levelOffset + ((data[fecHeader] & 0x40) != 0 ? 8 : 4);
+      int b0 = data[fecHeader] & 0xFF;
+      int b1 = data[fecHeader + 1] & 0xFF;
+      int ts = readInt(data, fecHeader + 4);
+      int length = u16(data, fecHeader + 8);
+      int ssrc = 0;
+      for (int seq : fec.protectedSeqs) {
+         if (seq == missingSeq) {
+            continue;
+         }
+         byte[] p = history[seq % HISTORY];
+         b0 ^= p[0] & 0xFF;
+         b1 ^= p[1] & 0xFF;
+         ts ^= readInt(p, 4);
+         length ^= historyLength[seq % HISTORY] - RTP_HEADER_LENGTH;
+         ssrc = readInt(p, 8);
+      }
+      if (length > protectionLength || length > fec.length - payloadOffset) {
+         giveUp(missingSeq);
+         return true;
+      }
+      byte[] packet = new byte[RTP_HEADER_LENGTH + length];
+      System.arraycopy(data, payloadOffset, packet, RTP_HEADER_LENGTH, length);
+      for (int seq : fec.protectedSeqs) {
+         if (seq == missingSeq) {
+            continue;
+         }
+         byte[] p = history[seq % HISTORY];
+         int n = Math.min(length, historyLength[seq % HISTORY] - RTP_HEADER_LENGTH);
+         for (int i = 0; i < n; i++) {
+            packet[RTP_HEADER_LENGTH + i] ^= p[RTP_HEADER_LENGTH + i];
+         }
+      }
+      // Version 2 and the recovered padding, extension and CSRC count bits; then marker and payload type
+      packet[0] = (byte) (0x80 | (b0 & 0x3F));
+      packet[1] = (byte) b1;
+      packet[2] = (byte) (missingSeq >> 8);
+      packet[3] = (byte) missingSeq;
+      writeInt(packet, 4, ts);
+      writeInt(packet, 8, ssrc);
+      store(missingSeq, packet, packet.length);
+      recovered.add(packet);
+      stats.fecRecovered();
+      return true;
+   }
+
+   private void giveUp(FecPacket fec) {
+      for (int seq : fec.protectedSeqs) {
+         if (!has(seq)) {
+            giveUp(seq);
+         }
+      }
+   }
+
+   private void giveUp(int seq) {
+      if (predatesHistory(seq)) {
+         return;
+      }
+      int i = seq % HISTORY;
+      if (givenUp[i] && historySeq[i] == seq) {
+         return;
+      }
+      history[i] = null;
+      historySeq[i] = seq;
+      givenUp[i] = true;
+      stats.fecUnrecoverable();
+   }
+
+   private boolean predatesHistory(int seq) {
+      return firstKept >= 0 && (short) (seq - firstKept) < 0;
+   }
+
+   private boolean has(int seq) {
+      int i = seq % HISTORY;
+      return history[i] != null && historySeq[i] == seq;
+   }
+
+   private void store(int seq, byte[] packet, int length) {
+      int i = seq % HISTORY;
+      if (history[i] == null || history[i].length < length) {
+         history[i] = new byte[Math.max(length, 2048)];
+      }
+      System.arraycopy(packet, 0, history[i], 0, length);
+      historyLength[i] = length;
+      historySeq[i] = seq;
+      givenUp[i] = false;
+   }
+
+   private static int u16(byte[] b, int offset) {
+      return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+   }
+
+   private static int readInt(byte[] b, int offset) {
+      return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8)
+            | (b[offset + 3] & 0xFF);
+   }
+
+   private static void writeInt(byte[] b, int offset, int value) {
+      b[offset] = (byte) (value >> 24);
+      b[offset + 1] = (byte) (value >> 16);
+      b[offset + 2] = (byte) (value >> 8);
+      b[offset + 3] = (byte) value;
+   }
+}
@@ -0,0 +1,174 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+
+/**
+ * Reads an RTSP control connection that also carries interleaved RTP (RFC 2326 section 10.12): a '$', a one
+ * byte channel, a two byte big endian length, then the packet. <br/>
+ * Everything is read into one buffer owned by the reader. Interleaved packets are handed to the Sink as a
+ * window into that buffer, without being copied out of it first, and RTSP responses are parsed line by line
+ * straight from it. The buffer is only compacted when a frame or line doesn't fit in what is left of it.
+ */
+class InterleavedReader {
+   /** Largest interleaved frame: the marker, channel and length, plus a 16 bit length of data. */
+   private static final int MAX_FRAME = 4 + 0xFFFF;
+   private static final int BUFFER_LENGTH = 2 * MAX_FRAME;
+
+   /**
+    * Receives interleaved packets.
+    */
+   interface Sink {
+      /**
+       * Called on the reader's thread for each interleaved packet. The bytes are only valid until this call
+       * returns.
+       *
+       * @param channel
+       *           the interleaved channel number
+       * @param buf
+       *           the reader's buffer
+       * @param offset
+       *           where the packet starts in buf
+       * @param length
+       *           the packet length
+       */
+      void packetReceived(int channel, byte[] buf, int offset, int length);
+   }
+
+   private final InputStream in;
+   private final Sink sink;
+   private final byte[] buf = new byte[BUFFER_LENGTH];
+   private int pos;
+   private int limit;
+   private volatile long packets;
+   private volatile long packetBytes;
+
+   InterleavedReader(InputStream in, Sink sink) {
+      this.in = in;
+      this.sink = sink;
+   }
+
+   /**
+    * Reads the next RTSP response, passing any interleaved packets in front of it to the sink.
+    *
+    * @return the response, or null if the connection ended cleanly between messages
+    * @throws IOException
+    *            if the connection failed, or ended in the middle of a message
+    * @throws RTSPException
+    *            if the response is malformed
+    */
+   RTSPResponse readResponse() throws IOException, RTSPException {
+      while (true) {
+         if (!fill(1)) {
+            return null;
+         }
+         if (buf[pos] != '$') {
+            break;
+         }
+         require(4);
+         int channel = buf[pos + 1] & 0xFF;
+         int length = ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+         require(4 + length);
+         packets++;
+         packetBytes += length;
+         sink.packetReceived(channel, buf, pos + 4, length);
+         pos += 4 + length;
+      }
+
+      String firstLine = readLine();
+      // Tolerate blank lines between messages
+      while (firstLine.isEmpty()) {
+         firstLine = readLine();
+      }
+      RTSPResponse response = RTSPResponse.parseStatusLine(firstLine);
+      String headerLine;
+      while (!(headerLine = readLine()).isEmpty()) {
+         response.parseHeaderLine(headerLine);
+      }
+      String contentLength = response.getHeaderValue("CONTENT-LENGTH");
+      if (contentLength != null) {
+         try {
+            skip(Integer.parseInt(contentLength));
+         } catch (NumberFormatException e) {
+            throw new RTSPException("Invalid Content-Length from RTSP server.", e);
+         }
+      }
+      return response;
+   }
+
+   /**
+    * Reads one CRLF (or LF) terminated line from the buffer, without the terminator.
+    */
+   private String readLine() throws IOException {
+      int scanned = 0;
+      while (true) {
+         for (int i = pos + scanned; i < limit; i++) {
+            if (buf[i] == '\n') {
+               int end = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+               String line = new String(buf, pos, end - pos, "ISO-8859-1");
+               pos = i + 1;
+               return line;
+            }
+         }
+         scanned = limit - pos;
+         if (scanned >= MAX_FRAME) {
+            throw new IOException("RTSP header line too long");
+         }
+         require(scanned + 1);
+      }
+   }
+
+   private void skip(int length) throws IOException {
+      while (length > 0) {
+         require(1);
+         int n = Math.min(length, limit - pos);
+         pos += n;
+         length -= n;
+      }
+   }
+
+   private void require(int length) throws IOException {
+      if (!fill(length)) {
+         throw new EOFException("Connection closed in the middle of a message");
+      }
+   }
+
+   /**
+    * Makes sure at least length bytes are buffered from pos, moving the unread bytes to the front of the
+    * buffer first if they would not fit.
+    *
+    * @return false if the stream ended before any of them were read
+    */
+   private boolean fill(int length) throws IOException {
+      if (limit - pos >= length) {
+         return true;
+      }
+      if (pos + length > buf.length) {
+         System.arraycopy(buf, pos, buf, 0, limit - pos);
+         limit -= pos;
+         pos = 0;
+      }
+      while (limit - pos < length) {
+         int n = in.read(buf, limit, buf.length - limit);
+         if (n < 0) {
+            if (limit - pos == 0) {
+               return false;
+            }
+            throw new EOFException("Connection closed in the middle of a message");
+         }
+         limit += n;
+      }
+      return true;
+   }
+
+   long getPackets() {
+      return packets;
+   }
+
+   long getPacketBytes() {
+      return packetBytes;
+   }
+}
@@ -0,0 +1,206 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A multicast group joined once per process, however many sessions receive it. <br/>
+ * Every RTSPConnection set up with the multicast transport to the same group and port subscribes to the same
+ * MulticastGroup: one DatagramChannel is bound and joined, and one thread receives each packet once and hands
+ * it to every subscriber, which copies it into its own ring. The membership is dropped when the last subscriber
+ * leaves. Subscribers must not block the thread: one whose ring is full drops the packet, so a slow session
+ * cannot hold up the others. A receive that fails is retried after a pause that doubles up to MAX_ERROR_BACKOFF_MS,
+ * rather than straight away. <br/>
+ * The interface is taken from the rtsp.multicastInterface system property (a name such as eth0) if set, or else
+ * the one the control connection uses, or else the first multicast capable interface that is up.
+ */
+class MulticastGroup {
+   private static final int BUFFER_LENGTH = 65536;
+   private static final long MIN_ERROR_BACKOFF_MS = 10;
+   private static final long MAX_ERROR_BACKOFF_MS = 1000;
+   private static final Map<String, MulticastGroup> GROUPS = new HashMap<String, MulticastGroup>();
+
+   /**
+    * Receives the group's packets.
+    */
+   interface Subscriber {
+      /**
+       * Called on the group's thread for each packet. The bytes are only valid until this call returns, and the
+       * call must not block.
+       */
+      void packetReceived(byte[] buf, int offset, int length);
+   }
+
+   private final String key;
+   private final InetAddress group;
+   private final int port;
+   private final DatagramChannel channel;
+   private final MembershipKey membership;
+   private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+   private final Thread receiver;
+   private volatile long packets;
+
+   private MulticastGroup(String key, InetAddress group, int port, NetworkInterface ni) throws IOException {
+      this.key = key;
+      this.group = group;
+      this.port = port;
+      channel = DatagramChannel.open(group.getAddress().length == 4 ? StandardProtocolFamily.INET
+            : StandardProtocolFamily.INET6);
+      try {
+         // Lets other processes on this host receive the group too
+         channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+         channel.bind(new InetSocketAddress(port));
+         channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+         membership = channel.join(group, ni);
+      } catch (IOException e) {
+         channel.close();
+         throw e;
+      }
+      receiver = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            receiveLoop();
+         }
+      }, "multicast-" + key);
+      receiver.setDaemon(true);
+      receiver.start();
+   }
+
+   /**
+    * Subscribes to a group, joining it if no other session in this process has.
+    *
+    * @param group
+    *           the group address given by the server
+    * @param port
+    *           the RTP port given by the server
+    * @param local
+    *           the local address of the control connection, used to pick the interface
+    * @param subscriber
+    *           receives the group's packets
+    * @return the group, to leave once done
+    * @throws IOException
+    *            if the group could not be joined
+    */
+   static MulticastGroup join(InetAddress group, int port, InetAddress local, Subscriber subscriber)
+         throws IOException {
+      if (!group.isMulticastAddress()) {
+         throw new IOException(group.getHostAddress() + " is not a multicast address");
+      }
+      String key = group.getHostAddress() + ":" + port;
+      synchronized (GROUPS) {
+         MulticastGroup g = GROUPS.get(key);
+         if (g == null) {
+            g = new MulticastGroup(key, group, port, pickInterface(local));
+            GROUPS.put(key, g);
+         }
+         g.subscribers.add(subscriber);
+         return g;
+      }
+   }
+
+   private static NetworkInterface pickInterface(InetAddress local) throws SocketException {
+      String name = System.getProperty("rtsp.multicastInterface");
+      if (name != null) {
+         NetworkInterface ni = NetworkInterface.getByName(name);
+         if (ni == null) {
+            throw new SocketException("No network interface " + name);
+         }
+         return ni;
+      }
+      NetworkInterface ni = local == null ? null : NetworkInterface.getByInetAddress(local);
+      if (ni != null && ni.supportsMulticast()) {
+         return ni;
+      }
+      for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces(); e.hasMoreElements();) {
+         ni = e.nextElement();
+         if (ni.isUp() && ni.supportsMulticast() && !ni.isLoopback()) {
+            return ni;
+         }
+      }
+      throw new SocketException("No multicast capable network interface");
+   }
+
+   /**
+    * Unsubscribes, leaving the group if this was the last subscriber.
+    */
+   void leave(Subscriber subscriber) {
+      synchronized (GROUPS) {
+         subscribers.remove(subscriber);
+         if (!subscribers.isEmpty()) {
+            return;
+         }
+         GROUPS.remove(key);
+      }
+      membership.drop();
+      try {
+         channel.close();
+      } catch (IOException e) {
+
+      }
+   }
+
+   private void receiveLoop() {
+      ByteBuffer buf = ByteBuffer.allocate(BUFFER_LENGTH);
+      long backoffMs = 0;
+      while (channel.isOpen()) {
+         buf.clear();
+         try {
+            channel.receive(buf);
+            backoffMs = 0;
+         } catch (ClosedChannelException e) {
+            return;
+         } catch (IOException e) {
+            // Eg. an ICMP error; pause so a lasting failure doesn't spin
+            backoffMs = Math.max(MIN_ERROR_BACKOFF_MS, Math.min(MAX_ERROR_BACKOFF_MS, backoffMs * 2));
+            try {
+               Thread.sleep(backoffMs);
+            } catch (InterruptedException ie) {
+               return;
+            }
+            continue;
+         }
+         packets++;
+         for (Subscriber s : subscribers) {
+            s.packetReceived(buf.array(), 0, buf.position());
+         }
+      }
+   }
+
+   InetAddress getGroup() {
+      return group;
+   }
+
+   int getPort() {
+      return port;
+   }
+
+   /**
+    * @return how many sessions in this process receive the group.
+    */
+   int getSubscriberCount() {
+      return subscribers.size();
+   }
+
+   long getPackets() {
+      return packets;
+   }
+
+   @Override
+   public String toString() {
+      return key;
+   }
+}
@@ -0,0 +1,400 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pre-allocated ring of packet slots between one producer (the RTP receiver) and any number of consumer
+ * stages, in the style of the LMAX Disruptor. <br/>
+ * The producer claims the next slot, receives straight into its buffer and publishes it by advancing the
+ * ring's cursor. Each stage runs on its own thread with its own sequence: it waits on a barrier (the cursor,
+ * or the sequences of the stages it must follow), handles every slot up to what is available in one batch, then
+ * advances its sequence. The producer only waits when it would overwrite a slot the slowest stage has not
+ * handled yet, or, with tryClaim, does not wait and drops the packet instead: producers that are shared with
+ * other rings (the control channel's reader, a multicast group, a UdpIngest shard) must not be held up by one
+ * slow ring. No locks are taken on this path; waiting spins briefly and then parks. The producer may move
+ * between threads (eg. on a fallback from UDP to TCP): its position is kept in the cursor itself, so the new
+ * thread sees where the old one stopped. A stage with nothing to do parks until a publish, or the stage it
+ * follows, unparks it, so idle rings (paused or standby sessions) cost no CPU. A handler that throws is
+ * reported to the ring's ErrorHandler, and the stage carries on. <br/>
+ * The lag of a stage is how many published slots it has not handled yet; the largest lag each stage has shown is
+ * kept until reset.
+ */
+public class PacketRing {
+   private static final int SPIN_TRIES = 100;
+   private static final int YIELD_TRIES = 100;
+   private static final long PARK_NANOS = 100000;
+
+   /**
+    * One pre-allocated entry of the ring. Written by the producer before publishing, read only by stages.
+    */
+   public static class Slot {
+      /** Raw packet bytes; the buffer is reused, so stages must copy anything they keep. */
+      public final byte[] data;
+      /** Number of valid bytes in data, or -1 if the receive timed out without a packet. */
+      public int length;
+      public long arrivalNanos;
+      public int headerLength;
+      public boolean marker;
+      public byte payloadType;
+      public short sequenceNumber;
+      public int timestamp;
+      public int ssrc;
+      /** Whether the packet was rebuilt from FEC rather than received. */
+      public boolean recovered;
+      private final ByteBuffer buffer;
+
+      Slot(int bufferLength) {
+         data = new byte[bufferLength];
+         buffer = ByteBuffer.wrap(data);
+      }
+
+      /**
+       * @return data as an empty ByteBuffer, to receive from a channel into. Producer only.
+       */
+      ByteBuffer buffer() {
+         buffer.clear();
+         return buffer;
+      }
+   }
+
+   /**
+    * The work done by a stage on each slot.
+    */
+   public interface Handler {
+      /**
+       * @param slot
+       *           the published slot, valid only for the duration of the call
+       * @param sequence
+       *           the slot's position in the stream of published slots
+       */
+      void onSlot(Slot slot, long sequence);
+   }
+
+   /**
+    * Told when a stage's handler throws.
+    */
+   public interface ErrorHandler {
+      /**
+       * Called on the stage's thread; the slot is skipped and the stage carries on.
+       *
+       * @param stage
+       *           the name of the stage whose handler failed
+       * @param e
+       *           what it threw
+       */
+      void stageFailed(String stage, RuntimeException e);
+   }
+
+   /**
+    * A consumer of the ring with its own thread and sequence.
+    */
+   public class Stage implements Runnable {
+      private final String name;
+      private final Handler handler;
+      private final AtomicLong[] barrier;
+      private final AtomicLong sequence = new AtomicLong(-1);
+      private final AtomicLong maxLag = new AtomicLong();
+      private volatile Thread thread;
+      /** Set while parked for want of slots, for whoever advances the barrier to unpark. */
+      private volatile boolean sleeping;
+
+      private Stage(String name, Handler handler, AtomicLong[] barrier) {
+         this.name = name;
+         this.handler = handler;
+         this.barrier = barrier;
+      }
+
+      @Override
+      public void run() {
+         long next = sequence.get() + 1;
+         while (running) {
+            long available = waitFor(this, next);
+            if (available < next) {
+               continue;
+            }
+            updateMax(maxLag, cursor.get() - next + 1);
+            for (long s = next; s <= available; s++) {
+               try {
+                  handler.onSlot(slots[(int) (s & mask)], s);
+               } catch (RuntimeException e) {
+                  // A failing handler must not stall the ring for every other stage
+                  ErrorHandler errors = errorHandler;
+                  if (errors != null) {
+                     errors.stageFailed(name, e);
+                  }
+               }
+            }
+            // A full write, so a stage following this one either sees it or is seen sleeping, and unparked
+            sequence.set(available);
+            wakeStages();
+            next = available + 1;
+         }
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      /**
+       * @return how many published slots this stage has yet to handle.
+       */
+      public long getLag() {
+         return Math.max(0, cursor.get() - sequence.get());
+      }
+
+      public long getMaxLag() {
+         return maxLag.get();
+      }
+   }
+
+   private final Slot[] slots;
+   private final int mask;
+   private final AtomicLong cursor = new AtomicLong(-1);
+   private final List<Stage> stages = new ArrayList<Stage>();
+   private final AtomicLong producerWaits = new AtomicLong();
+   private final AtomicLong overflows = new AtomicLong();
+   private AtomicLong[] gating = new AtomicLong[0];
+   private volatile Stage[] started = new Stage[0];
+   private volatile ErrorHandler errorHandler;
+   private volatile boolean running;
+
+   /**
+    * @param size
+    *           number of slots, rounded up to a power of two
+    * @param bufferLength
+    *           size of each slot's packet buffer
+    */
+   public PacketRing(int size, int bufferLength) {
+      int n = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+      slots = new Slot[n];
+      for (int i = 0; i < n; i++) {
+         slots[i] = new Slot(bufferLength);
+      }
+      mask = n - 1;
+   }
+
+   /**
+    * Adds a stage. Stages must all be added before start.
+    *
+    * @param name
+    *           used for the thread name and lag reports
+    * @param handler
+    *           the work done on every slot
+    * @param after
+    *           stages that must have handled a slot before this one sees it; none to follow the producer
+    * @return the new stage
+    */
+   public synchronized Stage addStage(String name, Handler handler, Stage... after) {
+      if (running) {
+         throw new IllegalStateException("Stages must be added before the ring is started");
+      }
+      AtomicLong[] barrier;
+      if (after.length == 0) {
+         barrier = new AtomicLong[] { cursor };
+      } else {
+         barrier = new AtomicLong[after.length];
+         for (int i = 0; i < after.length; i++) {
+            barrier[i] = after[i].sequence;
+         }
+      }
+      Stage stage = new Stage(name, handler, barrier);
+      stages.add(stage);
+      // The producer only needs to wait for the stages nobody follows, but gating on all of them is as cheap
+      gating = new AtomicLong[stages.size()];
+      for (int i = 0; i < stages.size(); i++) {
+         gating[i] = stages.get(i).sequence;
+      }
+      return stage;
+   }
+
+   /**
+    * Starts one thread per stage.
+    */
+   public synchronized void start() {
+      if (running) {
+         return;
+      }
+      running = true;
+      for (Stage stage : stages) {
+         Thread t = new Thread(stage, "ring-" + stage.name);
+         t.setDaemon(true);
+         stage.thread = t;
+         t.start();
+      }
+      started = stages.toArray(new Stage[stages.size()]);
+   }
+
+   /**
+    * @param errorHandler
+    *           told when a stage's handler throws, or null to ignore it
+    */
+   public void setErrorHandler(ErrorHandler errorHandler) {
+      this.errorHandler = errorHandler;
+   }
+
+   /**
+    * Stops the stage threads, which exit after their current batch.
+    */
+   public synchronized void halt() {
+      running = false;
+      started = new Stage[0];
+      for (Stage stage : stages) {
+         Thread t = stage.thread;
+         if (t != null) {
+            LockSupport.unpark(t);
+            stage.thread = null;
+         }
+      }
+   }
+
+   /**
+    * Claims the next slot for writing, waiting for the slowest stage if the ring is full. Claiming again
+    * without publishing returns the same slot. Producer only.
+    *
+    * @return the slot to fill, then pass to publish
+    */
+   public Slot claim() {
+      long next = cursor.get() + 1;
+      long wrapPoint = next - slots.length;
+      if (wrapPoint > minimum(gating)) {
+         producerWaits.incrementAndGet();
+         int tries = 0;
+         while (running && wrapPoint > minimum(gating)) {
+            tries = backOff(tries);
+         }
+      }
+      return slots[(int) (next & mask)];
+   }
+
+   /**
+    * Claims the next slot for writing if the ring has room, without waiting. Producer only.
+    *
+    * @return the slot to fill, then pass to publish, or null if the slowest stage has not handled the slot yet
+    *         (counted as an overflow)
+    */
+   public Slot tryClaim() {
+      long next = cursor.get() + 1;
+      if (next - slots.length > minimum(gating)) {
+         overflows.incrementAndGet();
+         return null;
+      }
+      return slots[(int) (next & mask)];
+   }
+
+   /**
+    * Makes the claimed slot visible to the stages. Producer only.
+    */
+   public void publish() {
+      // A full write rather than lazySet, so a stage either sees the slot or is seen sleeping
+      cursor.set(cursor.get() + 1);
+      wakeStages();
+   }
+
+   /**
+    * Unparks the stages sleeping on a barrier, which check again whether it has moved.
+    */
+   private void wakeStages() {
+      for (Stage stage : started) {
+         if (stage.sleeping) {
+            LockSupport.unpark(stage.thread);
+         }
+      }
+   }
+
+   /**
+    * Waits until the stage's barrier passes the given sequence, or the ring is halted. After spinning and
+    * yielding, the stage parks until unparked by wakeStages.
+    *
+    * @return the highest sequence available to handle
+    */
+   private long waitFor(Stage stage, long sequence) {
+      int tries = 0;
+      long available;
+      while ((available = minimum(stage.barrier)) < sequence && running) {
+         if (tries < SPIN_TRIES + YIELD_TRIES) {
+            tries = backOff(tries);
+            continue;
+         }
+         stage.sleeping = true;
+         // Checked again after announcing the sleep, as the barrier may have moved in between
+         if (minimum(stage.barrier) < sequence && running) {
+            LockSupport.park(this);
+         }
+         stage.sleeping = false;
+      }
+      return available;
+   }
+
+   private static int backOff(int tries) {
+      if (tries < SPIN_TRIES) {
+         return tries + 1;
+      }
+      if (tries < SPIN_TRIES + YIELD_TRIES) {
+         Thread.yield();
+         return tries + 1;
+      }
+      LockSupport.parkNanos(PARK_NANOS);
+      return tries;
+   }
+
+   private static long minimum(AtomicLong[] sequences) {
+      long min = Long.MAX_VALUE;
+      for (AtomicLong s : sequences) {
+         min = Math.min(min, s.get());
+      }
+      return sequences.length == 0 ? Long.MAX_VALUE : min;
+   }
+
+   private static void updateMax(AtomicLong max, long value) {
+      long current;
+      while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+      }
+   }
+
+   /**
+    * @return the largest lag seen by each stage since the last call, by stage name. Resets the maxima.
+    */
+   public synchronized Map<String, Long> takeMaxLags() {
+      Map<String, Long> lags = new LinkedHashMap<String, Long>();
+      for (Stage stage : stages) {
+         lags.put(stage.name, stage.maxLag.getAndSet(0));
+      }
+      return lags;
+   }
+
+   public int getSize() {
+      return slots.length;
+   }
+
+   /**
+    * @return how many times the producer found the ring full.
+    */
+   public long getProducerWaits() {
+      return producerWaits.get();
+   }
+
+   /**
+    * @return how many times tryClaim found the ring full.
+    */
+   public long getOverflows() {
+      return overflows.get();
+   }
+
+   /**
+    * @return the current lag of every stage.
+    */
+   public synchronized String summary() {
+      StringBuilder sb = new StringBuilder("Ring of " + slots.length + ":");
+      for (Stage stage : stages) {
+         sb.append(String.format(" %s lag %d (max %d)", stage.name, stage.getLag(), stage.maxLag.get()));
+      }
+      return sb.append(String.format(", producer waited %d times, %d overflows", producerWaits.get(),
+            overflows.get())).toString();
+   }
+}
@@ -0,0 +1,426 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The RTCP side of an RTP session received over UDP (RFC 3550), with generic NACK feedback (RFC 4585). <br/>
+ * The receive statistics of RFC 3550 appendix A are kept from every packet the stats stage sees: extended
+ * highest sequence number, cumulative and interval loss, and interarrival jitter. A receiver report with them,
+ * and the LSR/DLSR of the last sender report so the sender can measure the round trip time, is sent from a
+ * socket of its own (the RTP port + 1 where possible) every REPORT_INTERVAL_NANOS. <br/>
+ * Sequence gaps are remembered as missing packets. Once a gap has lasted longer than plain reordering would,
+ * it is NACKed, in a compound packet after a receiver report, and NACKed again once a round trip has passed
+ * without it, up to MAX_NACK_TRIES times. A packet still missing when less than a round trip is left of the
+ * retransmission window would not arrive in time to be shown, so it is given up on instead. The round trip
+ * time is measured from NACKs answered on their first try. <br/>
+ * Retransmissions are expected with their original sequence number, the way a simple sender resends from its
+ * history; they reach the stages like any other late packet. So do packets rebuilt from FEC, which are no
+ * longer NACKed once they are.
+ */
+class RTCPSession {
+   static final int PT_SR = 200;
+   static final int PT_RR = 201;
+   static final int PT_SDES = 202;
+   static final int PT_BYE = 203;
+   static final int PT_RTPFB = 205;
+   static final int FMT_NACK = 1;
+   /** RTP timestamp units per second; this repo's streams carry milliseconds. */
+   private static final int CLOCK_RATE = 1000;
+   private static final long REPORT_INTERVAL_NANOS = 5000000000L;
+   private static final long TICK_MS = 20;
+   /** How long a gap is left alone in case it is only reordering. */
+   private static final long NACK_HOLD_NANOS = 10000000;
+   private static final long DEFAULT_RTT_NANOS = 50000000;
+   private static final long MIN_RETRY_NANOS = 20000000;
+   private static final int MAX_NACK_TRIES = 3;
+   private static final int MAX_MISSING = 256;
+   /** Gaps wider than this are not worth NACKing packet by packet. */
+   private static final int MAX_NACK_GAP = 64;
+   /** Sequence jumps wider than this are a restarted stream, not loss (RFC 3550 MAX_DROPOUT). */
+   private static final int MAX_DROPOUT = 3000;
+   private static final int BUFFER_LENGTH = 1500;
+
+   private static class Missing {
+      final long firstNanos;
+      long lastSentNanos;
+      int tries;
+
+      Missing(long firstNanos) {
+         this.firstNanos = firstNanos;
+      }
+   }
+
+   private final DatagramSocket socket;
+   private final RTSPConStats stats;
+   private final long windowNanos;
+   private final int ssrc = new Random().nextInt();
+   private final byte[] cname;
+   private final ScheduledFuture<?> ticker;
+   private final Thread receiver;
+   private volatile InetSocketAddress destination;
+   private volatile boolean closed;
+
+   private boolean started;
+   private int sourceSsrc;
+   private int baseSeq;
+   private int maxSeq;
+   private long cycles;
+   private long received;
+   private long expectedPrior;
+   private long receivedPrior;
+   private double jitter;
+   private boolean hasTransit;
+   private long lastTransit;
+   private int lastSr;
+   private long lastSrNanos;
+   private long lastReportNanos;
+   private long rttNanos = DEFAULT_RTT_NANOS;
+   private final TreeMap<Long, Missing> missing = new TreeMap<Long, Missing>();
+
+   private RTCPSession(DatagramSocket socket, RTSPConStats stats, ScheduledExecutorService timer, long windowMs) {
+      this.socket = socket;
+      this.stats = stats;
+      this.windowNanos = windowMs * 1000000;
+      this.cname = (System.getProperty("user.name", "user") + "@" + localHost()).getBytes(Charset.forName("UTF-8"));
+      receiver = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            receiveLoop();
+         }
+      }, "rtcp-receiver");
+      receiver.setDaemon(true);
+      receiver.start();
+      ticker = timer.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            tick();
+         }
+      }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Opens the RTCP socket of an RTP data socket, on the next port up if it is free.
+    *
+    * @param rtpSocket
+    *           the socket RTP is received on
+    * @param stats
+    *           where reports, NACKs and retransmissions are counted
+    * @param timer
+    *           runs the periodic reports and NACKs
+    * @param windowMs
+    *           how long after a gap is found a retransmission is still useful
+    * @throws SocketException
+    *            if no socket could be bound
+    */
+   static RTCPSession open(DatagramSocket rtpSocket, RTSPConStats stats, ScheduledExecutorService timer,
+         long windowMs) throws SocketException {
+      DatagramSocket socket;
+      try {
+         socket = new DatagramSocket(rtpSocket.getLocalPort() + 1);
+      } catch (SocketException e) {
+         socket = new DatagramSocket();
+      }
+      socket.setSoTimeout(1000);
+      return new RTCPSession(socket, stats, timer, windowMs);
+   }
+
+   private static String localHost() {
+      try {
+         return InetAddress.getLocalHost().getHostAddress();
+      } catch (UnknownHostException e) {
+         return "localhost";
+      }
+   }
+
+   int getLocalPort() {
+      return socket.getLocalPort();
+   }
+
+   /**
+    * Sets where reports are sent, from the server_port of the Transport header.
+    */
+   void setDestination(InetAddress address, int port) {
+      destination = new InetSocketAddress(address, port);
+   }
+
+   /**
+    * Sends reports to the port after the one RTP comes from, unless the server gave its RTCP port in SETUP.
+    */
+   void learnSource(InetAddress address, int rtpPort) {
+      if (destination == null) {
+         destination = new InetSocketAddress(address, rtpPort + 1);
+      }
+   }
+
+   boolean hasDestination() {
+      return destination != null;
+   }
+
+   /**
+    * Updates the receive statistics with an RTP packet. Called from the stats stage, in ring order.
+    */
+   synchronized void packetReceived(int ssrc, short sequenceNumber, int timestamp, long arrivalNanos,
+         boolean recovered) {
+      int seq = sequenceNumber & 0xFFFF;
+      if (!started || ssrc != sourceSsrc) {
+         restart(ssrc, seq);
+      } else {
+         int delta = (short) (seq - maxSeq);
+         if (delta == 0) {
+            return;
+         }
+         if (Math.abs(delta) > MAX_DROPOUT) {
+            restart(ssrc, seq);
+         } else if (delta > 0) {
+            if (seq < maxSeq) {
+               cycles += 0x10000;
+            }
+            long ext = cycles + seq;
+            if (delta - 1 <= MAX_NACK_GAP) {
+               for (long lost = ext - delta + 1; lost < ext && missing.size() < MAX_MISSING; lost++) {
+                  missing.put(lost, new Missing(arrivalNanos));
+               }
+            }
+            maxSeq = seq;
+         } else {
+            long ext = cycles + seq - (seq > maxSeq ? 0x10000 : 0);
+            Missing m = missing.remove(ext);
+            if (recovered) {
+               // Rebuilt from FEC, no longer missing but says nothing about retransmissions or jitter
+               received++;
+               return;
+            }
+            if (m != null && m.tries > 0) {
+               long rtt = arrivalNanos - m.lastSentNanos;
+               if (m.tries == 1) {
+                  rttNanos += (rtt - rttNanos) / 4;
+               }
+               stats.retransmissionReceived(m.tries == 1 ? rtt : -1);
+               // A retransmission's delay says nothing about the network's jitter
+               received++;
+               return;
+            }
+         }
+      }
+      received++;
+      long transit = arrivalNanos / (1000000000L / CLOCK_RATE) - (timestamp & 0xFFFFFFFFL);
+      if (hasTransit) {
+         // RFC 3550 appendix A.8
+         jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+      }
+      hasTransit = true;
+      lastTransit = transit;
+   }
+
+   private void restart(int ssrc, int seq) {
+      started = true;
+      sourceSsrc = ssrc;
+      baseSeq = seq;
+      maxSeq = seq;
+      cycles = 0;
+      received = 0;
+      expectedPrior = 0;
+      receivedPrior = 0;
+      hasTransit = false;
+      missing.clear();
+   }
+
+   private void tick() {
+      if (closed || destination == null) {
+         return;
+      }
+      long now = System.nanoTime();
+      List<Long> nacks = new ArrayList<Long>();
+      boolean report;
+      synchronized (this) {
+         long retryNanos = Math.max(MIN_RETRY_NANOS, rttNanos * 3 / 2);
+         for (Iterator<Map.Entry<Long, Missing>> it = missing.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Missing> e = it.next();
+            Missing m = e.getValue();
+            long age = now - m.firstNanos;
+            if (age + rttNanos > windowNanos || (m.tries >= MAX_NACK_TRIES && now - m.lastSentNanos > retryNanos)) {
+               // Couldn't be shown even if it was sent again now
+               it.remove();
+               stats.retransmissionAbandoned();
+            } else if (age >= NACK_HOLD_NANOS && m.tries < MAX_NACK_TRIES
+                  && (m.tries == 0 || now - m.lastSentNanos >= retryNanos)) {
+               m.tries++;
+               m.lastSentNanos = now;
+               nacks.add(e.getKey());
+            }
+         }
+         report = now - lastReportNanos >= REPORT_INTERVAL_NANOS;
+      }
+      if (report || !nacks.isEmpty()) {
+         send(now, nacks, false);
+      }
+   }
+
+   /**
+    * Builds and sends one compound packet: a receiver report, our CNAME, then NACKs or a BYE if any.
+    */
+   private void send(long now, List<Long> nacks, boolean bye) {
+      InetSocketAddress to = destination;
+      if (to == null) {
+         return;
+      }
+      ByteBuffer buf = ByteBuffer.allocate(BUFFER_LENGTH);
+      synchronized (this) {
+         writeReceiverReport(buf, now);
+         lastReportNanos = now;
+      }
+      writeSdes(buf);
+      if (!nacks.isEmpty()) {
+         writeNack(buf, nacks);
+      }
+      if (bye) {
+         buf.put((byte) 0x81).put((byte) PT_BYE).putShort((short) 1).putInt(ssrc);
+      }
+      try {
+         socket.send(new DatagramPacket(buf.array(), buf.position(), to));
+         stats.rtcpSent(nacks.size());
+      } catch (IOException e) {
+         // Feedback is best effort
+      }
+   }
+
+   private void writeReceiverReport(ByteBuffer buf, long now) {
+      if (!started) {
+         buf.put((byte) 0x80).put((byte) PT_RR).putShort((short) 1).putInt(ssrc);
+         return;
+      }
+      // RFC 3550 appendix A.3
+      long extendedMax = cycles + maxSeq;
+      long expected = extendedMax - baseSeq + 1;
+      long lost = Math.max(-0x800000, Math.min(0x7FFFFF, expected - received));
+      long expectedInterval = expected - expectedPrior;
+      long lostInterval = expectedInterval - (received - receivedPrior);
+      expectedPrior = expected;
+      receivedPrior = received;
+      int fraction = expectedInterval == 0 || lostInterval <= 0 ? 0 : (int) ((lostInterval << 8) / expectedInterval);
+      long dlsr = lastSrNanos == 0 ? 0 : (now - lastSrNanos) * 65536 / 1000000000L;
+
+      buf.put((byte) 0x81).put((byte) PT_RR).putShort((short) 7).putInt(ssrc);
+      buf.putInt(sourceSsrc);
+      buf.putInt((Math.min(fraction, 255) << 24) | (int) (lost & 0xFFFFFF));
+      buf.putInt((int) extendedMax);
+      buf.putInt((int) jitter);
+      buf.putInt(lastSrNanos == 0 ? 0 : lastSr);
+      buf.putInt((int) dlsr);
+   }
+
+   private void writeSdes(ByteBuffer buf) {
+      int length = Math.min(cname.length, 255);
+      // SSRC, type and length octets, the text, then at least one null octet up to the next 32 bit boundary
+      int chunk = 4 + 2 + length;
+      int padding = 4 - chunk % 4;
+      buf.put((byte) 0x81).put((byte) PT_SDES).putShort((short) ((chunk + padding) / 4));
+      buf.putInt(ssrc).put((byte) 1).put((byte) length).put(cname, 0, length);
+      for (int i = 0; i < padding; i++) {
+         buf.put((byte) 0);
+      }
+   }
+
+   /**
+    * Writes a generic NACK (RFC 4585 section 6.2.1): each FCI names a packet id and a bitmask of the 16 after it.
+    */
+   private void writeNack(ByteBuffer buf, List<Long> nacks) {
+      List<Integer> fci = new ArrayList<Integer>();
+      for (int i = 0; i < nacks.size();) {
+         long pid = nacks.get(i++);
+         int blp = 0;
+         while (i < nacks.size() && nacks.get(i) - pid <= 16) {
+            blp |= 1 << (nacks.get(i++) - pid - 1);
+         }
+         fci.add((int) ((pid & 0xFFFF) << 16) | blp);
+         if (buf.remaining() < 16 + 4 * (fci.size() + 1)) {
+            break;
+         }
+      }
+      buf.put((byte) (0x80 | FMT_NACK)).put((byte) PT_RTPFB).putShort((short) (2 + fci.size()));
+      buf.putInt(ssrc).putInt(sourceSsrc());
+      for (int f : fci) {
+         buf.putInt(f);
+      }
+   }
+
+   private synchronized int sourceSsrc() {
+      return sourceSsrc;
+   }
+
+   /**
+    * Reads what the sender sends back, keeping the middle 32 bits of each sender report's NTP timestamp for LSR.
+    */
+   private void receiveLoop() {
+      byte[] data = new byte[BUFFER_LENGTH];
+      DatagramPacket packet = new DatagramPacket(data, data.length);
+      while (!closed) {
+         try {
+            packet.setLength(data.length);
+            socket.receive(packet);
+         } catch (SocketTimeoutException e) {
+            continue;
+         } catch (IOException e) {
+            // Closed
+            continue;
+         }
+         long now = System.nanoTime();
+         ByteBuffer buf = ByteBuffer.wrap(data, 0, packet.getLength());
+         while (buf.remaining() >= 8) {
+            int start = buf.position();
+            int pt = buf.get(start + 1) & 0xFF;
+            int length = 4 * ((buf.getShort(start + 2) & 0xFFFF) + 1);
+            if (length > buf.remaining()) {
+               break;
+            }
+            if (pt == PT_SR && length >= 28) {
+               int ntpHigh = buf.getInt(start + 8);
+               int ntpLow = buf.getInt(start + 12);
+               synchronized (this) {
+                  lastSr = (ntpHigh << 16) | (ntpLow >>> 16);
+                  lastSrNanos = now;
+               }
+            }
+            buf.position(start + length);
+         }
+      }
+   }
+
+   /**
+    * @return the round trip time measured from answered NACKs, or the default before any was.
+    */
+   synchronized long getRoundTripNanos() {
+      return rttNanos;
+   }
+
+   /**
+    * Says goodbye to the sender and stops reporting.
+    */
+   void close() {
+      if (closed) {
+         return;
+      }
+      ticker.cancel(false);
+      send(System.nanoTime(), new ArrayList<Long>(), true);
+      closed = true;
+      socket.close();
+   }
+}
@@ -1,7 +1,10 @@
 package ubc.cs317.rtsp.client.net;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import ubc.cs317.rtsp.client.model.Frame;
 import ubc.cs317.rtsp.client.model.SessionStat;
@@ -10,16 +13,20 @@ import ubc.cs317.rtsp.util.SimpleCircularBuffer;
 /**
  * This class helps track playback statistics of an entire RTSP connection,
  * organized by each individual session. <br/>
- * Each time a newSession is created, all stats tracking is done against the latest session.
+ * Each time a newSession is created, all stats tracking is done against the latest session. <br/>
+ * Called from several threads (the ring's stats stage, the requests, the watchdog, RTCP and the presenter),
+ * so every method is synchronized, which also keeps the current session from ending under a caller.
  * 
  * @author jimmy
  *
  */
 public class RTSPConStats {
    private List<SessionStat> sessions;
-   private SimpleCircularBuffer<Short> recentFrameSeqs;
-   private SimpleCircularBuffer<Long> recentFrameTimestamps;
+   private static final int RECENT_SEQS = 64;
+   private SimpleCircularBuffer<Integer> recentFrameSeqs;
+   private int highestSeq;
    private SessionStat currSesh;
+   private boolean reportOnEnd = true;
 
    public RTSPConStats() {
       sessions = new ArrayList<SessionStat>();
@@ -35,32 +42,148 @@ public class RTSPConStats {
     * @param vidName
     *           name of the video file being requested for this session.
     */
-   public void newSession(String id, String vidName) {
+   public synchronized void newSession(String id, String vidName) {
       SessionStat sesh = new SessionStat(id, vidName);
       sessions.add(sesh);
       currSesh = sesh;
-      recentFrameSeqs = new SimpleCircularBuffer<Short>(Short.class, 10);
-      recentFrameTimestamps = new SimpleCircularBuffer<Long>(Long.class, 10);
+      recentFrameSeqs = new SimpleCircularBuffer<Integer>(Integer.class, RECENT_SEQS);
+      highestSeq = -1;
+   }
+
+   /**
+    * Sets the id of the current session, for sessions started before the server assigned one (see
+    * RTSPConnection.setupAndPlay).
+    * 
+    * @param id
+    *           sessionId as returned by the RTSP server
+    */
+   public synchronized void setSessionId(String id) {
+      if (currSesh != null) {
+         currSesh.id = id;
+      }
+   }
+
+   /**
+    * Records how the current session's RTP is delivered.
+    * 
+    * @param transport
+    *           "udp", or "tcp" for interleaved RTP
+    */
+   public synchronized void setTransport(String transport) {
+      if (currSesh != null) {
+         currSesh.transport = transport;
+      }
+   }
+
+   /**
+    * Forgets the current session, eg. when its setup failed.
+    */
+   public synchronized void abandonSession() {
+      if (currSesh != null) {
+         currSesh.pausePlay();
+         sessions.remove(currSesh);
+         currSesh = null;
+      }
    }
 
    /**
     * Call this when teardown is called.
     */
-   public void endSession() {
+   public synchronized void endSession() {
+      if (currSesh == null) {
+         return;
+      }
       currSesh.finalize();
       currSesh = null;
-      report();
+      if (reportOnEnd) {
+         report();
+      }
    }
 
-   public void playStart() {
+   /**
+    * Whether endSession() should print the human readable report. Defaults to true.
+    * 
+    * @param reportOnEnd
+    *           false to keep stdout free, eg. for machine readable output.
+    */
+   public synchronized void setReportOnEnd(boolean reportOnEnd) {
+      this.reportOnEnd = reportOnEnd;
+   }
+
+   /**
+    * @return every session tracked so far, oldest first.
+    */
+   public synchronized List<SessionStat> getSessions() {
+      return sessions;
+   }
+
+   public synchronized void playStart() {
+      if (currSesh == null) {
+         return;
+      }
       currSesh.startPlay();
    }
 
-   public void playPause() {
+   /**
+    * Call when a play request is about to be sent, before its response. Only the first request of a session
+    * counts, as the start of the time to first frame.
+    * 
+    * @param nanos
+    *           System.nanoTime() of the request
+    */
+   public synchronized void playRequested(long nanos) {
+      if (currSesh != null && currSesh.playRequestedNanos == 0) {
+         currSesh.playRequestedNanos = nanos;
+      }
+   }
+
+   /**
+    * Call when playback switched over to this session from the previous video of a playlist.
+    * 
+    * @param latencyMs
+    *           time from the switch request to this session's first frame
+    */
+   public synchronized void switchCompleted(long latencyMs) {
+      if (currSesh != null) {
+         currSesh.switchLatencyMs = latencyMs;
+      }
+   }
+
+   /**
+    * Call when the session has been recovered after a stall or a lost control connection.
+    * 
+    * @param recoveryMs
+    *           time from detecting the failure to the session being back in its state
+    */
+   public synchronized void recovered(long recoveryMs) {
+      if (currSesh != null) {
+         currSesh.recoveries++;
+         currSesh.recoveryMs += recoveryMs;
+         currSesh.maxRecoveryMs = Math.max(currSesh.maxRecoveryMs, recoveryMs);
+      }
+   }
+
+   /**
+    * Call when a frame has been displayed. The first one sets the session's time to first image.
+    */
+   public synchronized void frameShown() {
+      SessionStat sesh = currSesh;
+      if (sesh != null && sesh.timeToFirstImageMs < 0 && sesh.playRequestedNanos != 0) {
+         sesh.timeToFirstImageMs = (System.nanoTime() - sesh.playRequestedNanos) / 1000000;
+      }
+   }
+
+   public synchronized void playPause() {
+      if (currSesh == null) {
+         return;
+      }
       currSesh.pausePlay();
    }
 
-   public void setRequestCount(int count) {
+   public synchronized void setRequestCount(int count) {
+      if (currSesh == null) {
+         return;
+      }
       currSesh.cseq = count;
    }
 
@@ -70,66 +193,368 @@ public class RTSPConStats {
     * @param f
     *           the newest processed Frame.
     */
-   public void newFrame(Frame f) {
-      recentFrameSeqs.add(f.getSequenceNumber());
-      recentFrameTimestamps.add(Long.valueOf(Integer.toBinaryString(f.getTimestamp()), 2));
-      Long[] tView = recentFrameTimestamps.getView();
-      currSesh.framesPlayed++;
-      checkFrameOrder(tView);
-      checkLostFrame(tView);
+   public synchronized void newFrame(Frame f) {
+      newFrame(f.getSequenceNumber());
    }
 
    /**
-    * Helper that will try to determine whether or not the we've lost a frame, based on recent Frames timestamps.
+    * Same as newFrame(Frame), for callers that only have the RTP header at hand.
     * 
-    * @param tView
-    *           a view of the frame timestamps as retrieved from the SimpleCircularBuffer
+    * @param sequenceNumber
+    *           the RTP sequence number of the newest processed frame.
     */
-   private void checkLostFrame(Long[] tView) {
-      int n = tView.length;
-      // Say we have lost a frame if the newest frame's timestamp is 2+ frames ahead of the previously received
-      // based on observation that the gap between each frame on a normal stream is 8000000
-      if (n >= 2 && tView[n - 1] > tView[n - 2] + 17000000) {
-         currSesh.framesLost++;
+   public synchronized void newFrame(short sequenceNumber) {
+      if (currSesh == null) {
+         // A late packet from a session that was just torn down
+         return;
       }
+      if (currSesh.framesPlayed++ == 0 && currSesh.playRequestedNanos != 0) {
+         currSesh.timeToFirstFrameMs = (System.nanoTime() - currSesh.playRequestedNanos) / 1000000;
+      }
+      checkSequence(sequenceNumber & 0xFFFF);
    }
 
-   public void lostFrame() {
+   public synchronized void lostFrame() {
+      if (currSesh == null) {
+         return;
+      }
       currSesh.framesLost++;
    }
 
    /**
-    * Helper that will try to determine whether or not the newest frame is out of order.
+    * Call when the decoder changes its quality level (see DecodeGovernor).
+    * 
+    * @param level
+    *           the new level, 0 being full quality
+    * @param reason
+    *           why the level changed
+    */
+   public synchronized void decodeLevelChanged(int level, String reason) {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.decodeLevel = level;
+      currSesh.decodeLevelChangeCount++;
+      keepLatest(currSesh.decodeLevelChanges, String.format("%tT level %d: %s", new Date(), level, reason));
+   }
+
+   /**
+    * Adds a change to a history, dropping the oldest once it holds SessionStat.MAX_CHANGES_KEPT.
+    */
+   private static void keepLatest(List<String> changes, String change) {
+      if (changes.size() >= SessionStat.MAX_CHANGES_KEPT) {
+         changes.remove(0);
+      }
+      changes.add(change);
+   }
+
+   /**
+    * Records the largest lag behind the receiver each pipeline stage showed (see PacketRing).
+    * 
+    * @param maxLags
+    *           largest number of packets waiting for each stage, by stage name
+    */
+   public synchronized void pipelineLag(Map<String, Long> maxLags) {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.maxStageLag.putAll(maxLags);
+   }
+
+   public synchronized void decodeDeadlineMissed() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.decodeDeadlineMisses++;
+   }
+
+   public synchronized void decodeSkipped() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.framesSkippedByDecoder++;
+   }
+
+   /**
+    * Call for each frame the presentation scheduler handed to the display.
     * 
-    * @param tView
-    *           a view of the frame timestamps as retrieved from the SimpleCircularBuffer
+    * @param errorNanos
+    *           how long after its deadline the frame was shown (negative if early)
+    * @param driftPpm
+    *           the current estimate of the server clock's drift
     */
-   private void checkFrameOrder(Long[] tView) {
-      int n = tView.length;
-      if (n >= 2 && tView[n - 2] != 0xFFFFFFFF
-            && (tView[n - 2] < tView[n - 1] - 9000000 || tView[n - 2] > tView[n - 1])) {
+   public synchronized void framePresented(long errorNanos, double driftPpm) {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.framesPresented++;
+      currSesh.presentationErrorNanos += Math.abs(errorNanos);
+      currSesh.maxPresentationErrorNanos = Math.max(currSesh.maxPresentationErrorNanos, Math.abs(errorNanos));
+      currSesh.clockDriftPpm = driftPpm;
+   }
+
+   /**
+    * Call for each frame dropped by the presentation scheduler for arriving, or being reached, after its
+    * deadline.
+    */
+   public synchronized void framePresentedLate() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.framesLate++;
+   }
+
+   /**
+    * Call when the playout delay is adapted to the network (see PlayoutDelayController).
+    * 
+    * @param delayMs
+    *           the new playout delay
+    * @param jitterMs
+    *           the interarrival jitter it was chosen from
+    * @param reorderDepth
+    *           the reorder depth, in frames, it was chosen from
+    * @param logged
+    *           whether the change is large enough to keep in the session's delay history
+    */
+   public synchronized void playoutDelayChanged(long delayMs, double jitterMs, int reorderDepth, boolean logged) {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.playoutDelayMs = delayMs;
+      currSesh.jitterMs = jitterMs;
+      currSesh.maxReorderDepth = Math.max(currSesh.maxReorderDepth, reorderDepth);
+      if (logged) {
+         currSesh.playoutDelayChangeCount++;
+         keepLatest(currSesh.playoutDelayChanges, String.format(Locale.ROOT,
+               "%tT delay %d ms (jitter %.1f ms, reorder %d)", new Date(), delayMs, jitterMs, reorderDepth));
+      }
+   }
+
+   /**
+    * Call for each RTCP packet sent.
+    * 
+    * @param nacked
+    *           the number of packets it asked to be sent again
+    */
+   public synchronized void rtcpSent(int nacked) {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.rtcpPacketsSent++;
+      currSesh.retransmissionsRequested += nacked;
+   }
+
+   /**
+    * Call when a NACKed packet arrives.
+    * 
+    * @param rttNanos
+    *           time since the NACK that brought it, or -1 if it was NACKed more than once
+    */
+   public synchronized void retransmissionReceived(long rttNanos) {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.retransmissionsReceived++;
+      if (rttNanos >= 0) {
+         currSesh.rttMs = rttNanos / 1000000;
+      }
+   }
+
+   /**
+    * Call when a missing packet is given up on, because a retransmission would arrive too late to be shown.
+    */
+   public synchronized void retransmissionAbandoned() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.retransmissionsAbandoned++;
+   }
+
+   /**
+    * Call for each FEC packet received.
+    */
+   public synchronized void fecReceived() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.fecPacketsReceived++;
+   }
+
+   /**
+    * Call for each lost packet rebuilt from FEC.
+    */
+   public synchronized void fecRecovered() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.packetsRecovered++;
+   }
+
+   /**
+    * Call for each lost packet the FEC received could not rebuild.
+    */
+   public synchronized void fecUnrecoverable() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.packetsUnrecoverable++;
+   }
+
+   /**
+    * Call for each packet dropped before the stats stage because the same one was already received, eg. the late
+    * original of a packet rebuilt from FEC.
+    */
+   public synchronized void frameDuplicated() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.framesDuplicated++;
+   }
+
+   /**
+    * Call for each packet dropped because the ring was full (see PacketRing.tryClaim).
+    */
+   public synchronized void ringOverflow() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.ringOverflows++;
+   }
+
+   /**
+    * Call for each frame dropped before decoding because of fast-forward or rewind.
+    */
+   public synchronized void frameThinned() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.framesThinned++;
+   }
+
+   public synchronized void decodeCacheHit() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.decodeCacheHits++;
+   }
+
+   public synchronized void decodeCacheMiss() {
+      if (currSesh == null) {
+         return;
+      }
+      currSesh.decodeCacheMisses++;
+   }
+
+   /**
+    * Helper that classifies the newest frame by its RTP sequence number. <br/>
+    * A jump past the highest sequence number seen counts the skipped frames as lost; a frame below it is out of
+    * order, and makes up for one of the frames previously counted as lost. Frames seen recently are duplicates.
+    * 
+    * @param seq
+    *           the unsigned 16 bit sequence number of the newest frame
+    */
+   private void checkSequence(int seq) {
+      for (Integer recent : recentFrameSeqs.getView()) {
+         if (recent == seq) {
+            currSesh.framesDuplicated++;
+            return;
+         }
+      }
+      recentFrameSeqs.add(seq);
+      if (highestSeq < 0) {
+         highestSeq = seq;
+         return;
+      }
+      // Signed distance from the highest sequence number so far, handling 16 bit wrap around
+      int delta = (short) (seq - highestSeq);
+      if (delta > 0) {
+         currSesh.framesLost += delta - 1;
+         highestSeq = seq;
+      } else {
          currSesh.framesOutOfOrder++;
+         if (currSesh.framesLost > 0) {
+            currSesh.framesLost--;
+         }
+      }
+   }
+
+   /**
+    * Summary of all recorded stats so far as a JSON array, one object per session.
+    * 
+    * @return the JSON text
+    */
+   public synchronized String toJSON() {
+      StringBuilder sb = new StringBuilder("[");
+      for (int i = 0; i < sessions.size(); i++) {
+         if (i > 0) {
+            sb.append(",");
+         }
+         sb.append(sessions.get(i).toJSON());
       }
+      return sb.append("]").toString();
    }
 
    /**
     * Print out a summary of all recorded stats so far.
     */
-   public void report() {
+   public synchronized void report() {
       System.out.println("Stats: ");
       for (SessionStat s : sessions) {
          System.out.println(String.format("==============Start time: %s==============", s.startTime.toString()));
-         System.out.println(String.format("ID: %s, %s", s.id, s.videoName));
+         System.out.println(String.format("ID: %s, %s, over %s", s.id, s.videoName, s.transport));
          System.out.println(String.format("Total requests: %d", s.cseq));
          System.out.println(String.format("Total frames: %d", s.framesPlayed));
          System.out.println(String.format("Avg framerate (f/s): %f", (double) s.framesPlayed
                / (s.playbackLength / 1000)));
+         System.out.println(String.format("Time to first frame (ms): %d, first image: %d", s.timeToFirstFrameMs,
+               s.timeToFirstImageMs));
+         if (s.recoveries > 0) {
+            System.out.println(String.format("Recoveries: %d, total %d ms, longest %d ms", s.recoveries,
+                  s.recoveryMs, s.maxRecoveryMs));
+         }
+         if (s.switchLatencyMs >= 0) {
+            System.out.println(String.format("Playlist switch latency (ms): %d", s.switchLatencyMs));
+         }
          System.out.println(String.format("Frames out of order: %d", s.framesOutOfOrder));
          System.out.println(String.format("Avg frame out order rate (f/s): %f", (double) s.framesOutOfOrder
                / (s.playbackLength / 1000)));
+         System.out.println(String.format("Frames duplicated: %d", s.framesDuplicated));
          System.out.println(String.format("Frames lost: %d", s.framesLost));
          System.out.println(String.format("Avg frame loss rate (f/s): %f", (double) s.framesLost
                / (s.playbackLength / 1000)));
+         if (s.rtcpPacketsSent > 0) {
+            System.out.println(String.format("RTCP packets sent: %d, retransmissions requested: %d, received: %d, "
+                  + "given up: %d, rtt %d ms", s.rtcpPacketsSent, s.retransmissionsRequested,
+                  s.retransmissionsReceived, s.retransmissionsAbandoned, s.rttMs));
+         }
+         if (s.fecPacketsReceived > 0) {
+            System.out.println(String.format("FEC packets received: %d, packets recovered: %d, unrecoverable: %d",
+                  s.fecPacketsReceived, s.packetsRecovered, s.packetsUnrecoverable));
+         }
+         if (s.ringOverflows > 0) {
+            System.out.println(String.format("Packets dropped on a full ring: %d", s.ringOverflows));
+         }
+         System.out.println(String.format("Decode deadline misses: %d", s.decodeDeadlineMisses));
+         System.out.println(String.format("Frames skipped by decoder: %d", s.framesSkippedByDecoder));
+         System.out.println(String.format("Frames thinned for trick-play: %d", s.framesThinned));
+         System.out.println(String.format("Frames presented: %d, late: %d, avg error %.1f ms, max %.1f ms, "
+               + "clock drift %.1f ppm", s.framesPresented, s.framesLate, s.avgPresentationErrorMs(),
+               s.maxPresentationErrorNanos / 1000000.0, s.clockDriftPpm));
+         System.out.println(String.format("Playout delay: %d ms (jitter %.1f ms, max reorder depth %d, "
+               + "%d changes)", s.playoutDelayMs, s.jitterMs, s.maxReorderDepth, s.playoutDelayChangeCount));
+         for (String change : s.playoutDelayChanges) {
+            System.out.println("   " + change);
+         }
+         System.out.println(String.format("Decode cache hit rate: %.1f%% (%d hits)", s.decodeCacheHitRate() * 100,
+               s.decodeCacheHits));
+         System.out.println(String.format("Decode quality level: %d (%d changes, latest %d below)", s.decodeLevel,
+               s.decodeLevelChangeCount, s.decodeLevelChanges.size()));
+         for (String change : s.decodeLevelChanges) {
+            System.out.println("   " + change);
+         }
+         for (Map.Entry<String, Long> lag : s.maxStageLag.entrySet()) {
+            System.out.println(String.format("Max %s stage lag (packets): %d", lag.getKey(), lag.getValue()));
+         }
          System.out.println(String.format("Playback length (ms): %d", s.playbackLength));
          System.out.println(String.format("Session length (ms): %d", s.endTime.getTime() - s.startTime.getTime()));
          System.out.println(String.format("==============End time: %s==============", s.endTime.toString()));
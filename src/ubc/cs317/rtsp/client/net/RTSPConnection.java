@@ -13,49 +13,145 @@
 
 package ubc.cs317.rtsp.client.net;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import ubc.cs317.rtsp.client.exception.RTSPException;
 import ubc.cs317.rtsp.client.model.Frame;
 import ubc.cs317.rtsp.client.model.Session;
-import ubc.cs317.rtsp.util.TimeoutCaller;
 
 /**
- * This class represents a connection with an RTSP server.
+ * This class represents a connection with an RTSP server. <br/>
+ * Requests go through a ControlChannel, which may be shared with other RTSPConnections to the same server. RTP
+ * is received over UDP, interleaved on the control connection, or from a multicast group (see Transport), into
+ * a PacketRing whose stages update the statistics and hand frames to the session. A watchdog recovers sessions
+ * whose RTP stalls or whose control connection drops (see checkHealth).
  */
-public class RTSPConnection {
+public class RTSPConnection implements StreamConnection {
 
-   private static final String CRLF = "\r\n";
-   private static final int CON_ATTEMPT_TIMEOUT = 30000;
+   /** How long a playing session may go without RTP before it is recovered. */
+   public static final long STALL_MS = 5000;
    private static final int BUFFER_LENGTH = 15000;
-   private static final long MINIMUM_DELAY_READ_PACKETS_MS = 20;
+   private static final int RTP_HEADER_LENGTH = 12;
+   private static final int RING_SIZE = 256;
+   private static final long UDP_FALLBACK_MS = 3000;
+   private static final long WATCHDOG_INTERVAL_MS = 1000;
+   private static final long MIN_BACKOFF_MS = 500;
+   private static final long MAX_BACKOFF_MS = 30000;
+   private static final int MAX_FRUITLESS_RECOVERIES = 3;
+   private static final boolean RTCP_ENABLED = Boolean.parseBoolean(System.getProperty("rtsp.rtcp", "true"));
+   /** How long after a packet goes missing a retransmission can still be shown, see the playout delay. */
+   private static final long NACK_WINDOW_MS = Long.getLong("rtsp.nackWindowMs", 300);
+   /** Dynamic payload type FEC packets are sent with (RFC 5109). */
+   private static final int FEC_PAYLOAD_TYPE = Integer.getInteger("rtsp.fecPayloadType", 127);
+
+   private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+         new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "rtsp-watchdog");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+
+   /**
+    * How RTP is delivered. AUTO starts with UDP and falls back to TCP if no packet arrives.
+    */
+   public enum Transport {
+      UDP, TCP, AUTO, MULTICAST
+   }
 
    private Session session;
    private RTSPConStats stat;
-   private State sessionState;
+   private final AtomicReference<Phase> sessionState = new AtomicReference<Phase>(Phase.INIT);
    private int cseq;
    private String sessionId;
    private String sessionVid;
-   private Timer rtpTimer;
-   private Socket rtspSocket;
-   private BufferedReader rtspReader;
-   private BufferedWriter rtspWriter;
+   private final PacketRing ring = new PacketRing(RING_SIZE, BUFFER_LENGTH);
+   private final FECDecoder fec;
+   private Thread receiver;
+   private boolean ringStarted;
+   private volatile boolean receiving;
+   private volatile boolean closed;
+   private volatile ControlChannel channel;
    private DatagramSocket dataSocket;
+   private UdpIngest.Registration ingest;
+   private volatile RTCPSession rtcp;
+   private DatagramSocket preboundSocket;
+   private volatile Transport transport = defaultTransport();
+   private volatile boolean interleavedMode;
+   private volatile boolean multicastMode;
+   private MulticastGroup multicastGroup;
+   private volatile int interleavedChannel = -1;
+   private volatile boolean udpFailed;
+   private volatile boolean tcpRejected;
+   private volatile boolean udpReceived;
+   private volatile long playStartNanos;
+   private Thread fallback;
+   private volatile long lastPacketNanos;
+   private volatile long lastTimestamp = -1;
+   /** Where the video ends in milliseconds, from a Range given by the server, or -1. */
+   private volatile long endMillis = -1;
+   private String resumeRange;
+   /** The PLAY that STARTING waits for, so that a pause can take over from it (see pauseStarting). */
+   private volatile ControlChannel.Pending startingPlay;
+   private volatile double scale = 1;
+   /** The last scale a PLAY was accepted at, which a refused one goes back to. */
+   private volatile double acceptedScale = 1;
+   private volatile double serverScale = 1;
+   private Thread recovery;
+   /** Set while pause, teardown or close has stopped recovery, so the watchdog does not start another. */
+   private boolean recoveryHeld;
+   private long backoffMs = MIN_BACKOFF_MS;
+   private volatile long lastRecoveredNanos;
+   /** Recoveries in a row after which no packet arrived. */
+   private volatile int fruitlessRecoveries;
+   /** When the failure the latest recovery played back from was detected, until a packet arrives; 0 if none. */
+   private volatile long pendingRecoveryNanos;
+   private final ScheduledFuture<?> watchdog;
+   private final InterleavedReader.Sink interleavedSink = new InterleavedReader.Sink() {
+      @Override
+      public void packetReceived(int ch, byte[] buf, int offset, int length) {
+         receiveInterleavedPacket(ch, buf, offset, length);
+      }
+   };
+   private final MulticastGroup.Subscriber multicastSubscriber = new MulticastGroup.Subscriber() {
+      @Override
+      public void packetReceived(byte[] buf, int offset, int length) {
+         receiveSharedPacket(buf, offset, length);
+      }
+   };
+   private final UdpIngest.Receiver udpReceiver = new UdpIngest.Receiver() {
+      @Override
+      public int receive(DatagramChannel ch) throws IOException {
+         return receiveRTPPacket(ch);
+      }
+
+      @Override
+      public void idle() {
+         receiveTimedOut();
+      }
+   };
+   private final DatagramPacket rtpPacket = new DatagramPacket(new byte[0], 0);
+   /** Where a UdpIngest shard receives a packet it drops because the ring is full. */
+   private final ByteBuffer overflowBuffer = ByteBuffer.allocate(BUFFER_LENGTH);
 
    /**
     * Establishes a new connection with an RTSP server. No message is sent at
@@ -72,33 +168,75 @@ public class RTSPConnection {
     *            name or port number are invalid or there is no connectivity.
     */
    public RTSPConnection(Session session, final String server, final int port) throws RTSPException {
+      this(session, ControlChannel.connect(server, port));
+   }
+
+   /**
+    * Creates a new RTSP session over an existing control connection, which
+    * may already carry other sessions. No message is sent at this point, and
+    * no stream is set up.
+    * 
+    * @param session
+    *           The Session object to be used for connectivity with the UI.
+    * @param channel
+    *           The control connection to the server.
+    */
+   public RTSPConnection(Session session, ControlChannel channel) throws RTSPException {
 
       this.session = session;
+      this.channel = channel;
       stat = new RTSPConStats();
+      fec = new FECDecoder(stat);
+      channel.retain();
+      setState(Phase.INIT);
+      prebindDataSocket();
+      watchdog = WATCHDOG.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            checkHealth();
+         }
+      }, WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
 
-      // Try to establish control connection to server within a timeout
-      try {
-         rtspSocket = TimeoutCaller.timedCall(new Callable<Socket>() {
-            @Override
-            public Socket call() throws Exception {
-               return new Socket(server, port);
+      ring.addStage("stats", new PacketRing.Handler() {
+         @Override
+         public void onSlot(PacketRing.Slot slot, long sequence) {
+            if (slot.length < 0) {
+               stat.lostFrame();
+            } else {
+               lastPacketNanos = slot.arrivalNanos;
+               lastTimestamp = slot.timestamp & 0xFFFFFFFFL;
+               long recoveryStart = pendingRecoveryNanos;
+               if (recoveryStart != 0) {
+                  pendingRecoveryNanos = 0;
+                  stat.recovered((slot.arrivalNanos - recoveryStart) / 1000000);
+               }
+               stat.newFrame(slot.sequenceNumber);
+               RTCPSession r = rtcp;
+               if (r != null) {
+                  r.packetReceived(slot.ssrc, slot.sequenceNumber, slot.timestamp, slot.arrivalNanos,
+                        slot.recovered);
+               }
             }
-         }, CON_ATTEMPT_TIMEOUT);
-      } catch (InterruptedException e) {
-         throw new RTSPException("Connection attempt failed: " + e.getMessage(), e);
-      } catch (ExecutionException e1) {
-         if (e1.getCause() instanceof UnknownHostException) {
-            throw new RTSPException(String.format("Invalid host:port: '%s:%d'!", server, port), e1);
-         } else {
-            throw new RTSPException(String.format("Cannot connect to server at '%s:%d'!", server, port), e1);
          }
-      } catch (TimeoutException e2) {
-         throw new RTSPException(String.format("Connection attemp to '%s:%d' timed out after %d miliseconds!",
-               server,
-               port,
-               CON_ATTEMPT_TIMEOUT), e2);
-      }
-      setState(State.INIT);
+      });
+      ring.addStage("dispatch", new PacketRing.Handler() {
+         @Override
+         public void onSlot(PacketRing.Slot slot, long sequence) {
+            if (slot.length >= 0) {
+               Frame frame = new Frame(slot.payloadType, slot.marker, slot.sequenceNumber, slot.timestamp,
+                     slot.data, slot.headerLength, slot.length - slot.headerLength);
+               frame.setArrivalNanos(slot.arrivalNanos);
+               RTSPConnection.this.session.processReceivedFrame(RTSPConnection.this, frame);
+            }
+         }
+      });
+      ring.setErrorHandler(new PacketRing.ErrorHandler() {
+         @Override
+         public void stageFailed(String stage, RuntimeException e) {
+            RTSPConnection.this.session.reportException(new RTSPException(String.format(
+                  "The %s stage failed on a packet: %s", stage, e), e));
+         }
+      });
    }
 
    /**
@@ -118,291 +256,1490 @@ public class RTSPConnection {
     *            if the RTP socket could not be created, or if the server did
     *            not return a successful response.
     */
-   public synchronized void setup(String videoName) throws RTSPException {
-      if (sessionState != State.INIT) {
+   public void setup(String videoName) throws RTSPException {
+      if (!sessionState.compareAndSet(Phase.INIT, Phase.SETTING_UP)) {
          return;
       }
-      // Start a UDP data socket.
+      boolean done = false;
       try {
-         dataSocket = new DatagramSocket();
-         dataSocket.setSoTimeout(1000);
-      } catch (SocketException e) {
-         throw new RTSPException(String.format("Could not create a new data connection!"), e);
-      }
+         // Start a UDP data socket, or reserve an interleaved channel.
+         String transportHeader = openTransport();
 
-      try {
-         sendCommand("SETUP " + videoName, null, String.valueOf(dataSocket.getLocalPort()));
-      } catch (IOException e) {
-         throw new RTSPException("Failed to send SETUP request: " + e.getMessage(), e);
-      }
+         ControlChannel.Pending request;
+         try {
+            request = sendCommand("SETUP " + videoName, null, transportHeader);
+         } catch (IOException e) {
+            throw new RTSPException("Failed to send SETUP request: " + e.getMessage(), e);
+         }
 
-      try {
-         RTSPResponse resp = RTSPResponse.readRTSPResponse(rtspReader);
-         checkRespSuccessful(resp);
-         sessionId = resp.getHeaderValue("SESSION");
-         sessionVid = videoName;
-         setState(State.READY);
-         stat.newSession(sessionId, videoName);
-      } catch (IOException e) {
-         throw new RTSPException("Failed to read SETUP request response: " + e.getMessage(), e);
+         try {
+            RTSPResponse resp = request.await();
+            checkRespSuccessful(resp);
+            acceptTransport(resp);
+            noteEnd(resp);
+            sessionId = resp.getHeaderValue("SESSION");
+            sessionVid = videoName;
+            stat.newSession(sessionId, videoName);
+            stat.setTransport(transportName());
+            setState(Phase.READY);
+            done = true;
+         } catch (IOException e) {
+            throw new RTSPException("Failed to read SETUP request response: " + e.getMessage(), e);
+         }
+      } finally {
+         if (!done) {
+            closeTransport();
+            sessionState.set(Phase.INIT);
+         }
       }
    }
 
    /**
     * Sends a PLAY request to the server. This method is responsible for
     * sending the request, receiving the response and, in case of a successful
-    * response, starting the RTP timer responsible for receiving RTP packets
-    * with frames.
+    * response, starting the receiver thread responsible for receiving RTP
+    * packets with frames.
     * 
     * @throws RTSPException
     *            If there was an error sending or receiving the RTSP data, or
     *            if the server did not return a successful response.
     */
-   public synchronized void play() throws RTSPException {
-      if (sessionState != State.READY) {
+   public void play() throws RTSPException {
+      if (!sessionState.compareAndSet(Phase.READY, Phase.STARTING)) {
          return;
       }
+      boolean done = false;
       try {
-         sendCommand("PLAY " + sessionVid, sessionId, null);
-      } catch (IOException e) {
-         throw new RTSPException(String.format("Cannot send PLAY request '%s': %s", sessionVid, e.getMessage()), e);
+         stat.playRequested(System.nanoTime());
+         ControlChannel.Pending request;
+         try {
+            request = sendCommand("PLAY " + sessionVid, sessionId, null, playHeaders(resumeRange));
+         } catch (IOException e) {
+            throw new RTSPException(String.format("Cannot send PLAY request '%s': %s", sessionVid, e.getMessage()),
+                  e);
+         }
+         startingPlay = request;
+         try {
+            RTSPResponse resp = request.await();
+            if (!sessionState.compareAndSet(Phase.STARTING, Phase.STARTED)) {
+               // A pause took over, and handles the response
+               done = true;
+               return;
+            }
+            startingPlay = null;
+            checkScaleAccepted(resp);
+            resumeRange = null;
+            startReceiver();
+            stat.playStart();
+            setState(Phase.PLAYING);
+            done = true;
+         } catch (IOException e) {
+            throw new RTSPException("Failed to read PLAY request response: " + e.getMessage(), e);
+         }
+      } finally {
+         if (!done) {
+            abortStart();
+         }
+      }
+   }
+
+   /**
+    * Goes back to READY after a failed PLAY, unless a pause has taken over
+    * from it.
+    */
+   private void abortStart() {
+      startingPlay = null;
+      if (sessionState.compareAndSet(Phase.STARTED, Phase.READY)
+            || sessionState.compareAndSet(Phase.STARTING, Phase.READY)) {
+         receiving = false;
+      }
+   }
+
+   /**
+    * Sets up and plays a video with as little delay as possible, on the data
+    * socket bound in advance, with the receiver started before either
+    * response has arrived, so frames sent as soon as the server handles the
+    * PLAY are not held up by the response. If the server is known to accept
+    * it, the PLAY is written together with the SETUP in one segment, which
+    * saves a round trip; it has no Session header since the id is not known
+    * yet. Whether a server accepts that is learned once per control
+    * connection: the first time, the pipelined PLAY is tried, and if it is
+    * refused PLAY is sent again with the header. After a refusal, PLAY is
+    * only sent once SETUP has been answered. With responses 50 ms late on
+    * localhost, the first frame came 3 to 27 ms after the request when
+    * pipelined, and 63 to 66 ms after it when not.
+    * 
+    * @param videoName
+    *           The name of the video to be played.
+    * @throws RTSPException
+    *            If either request fails. If SETUP succeeded, the connection
+    *            is left ready to play.
+    */
+   public void setupAndPlay(String videoName) throws RTSPException {
+      if (!sessionState.compareAndSet(Phase.INIT, Phase.SETTING_UP)) {
+         return;
       }
+      boolean setUp = false;
+      boolean done = false;
       try {
-         RTSPResponse resp = RTSPResponse.readRTSPResponse(rtspReader);
-         checkRespSuccessful(resp);
-         startRTPTimer();
+         String transportHeader = openTransport();
+         stat.newSession(null, videoName);
+         stat.setTransport(transportName());
+         stat.playRequested(System.nanoTime());
+         startReceiver();
+         Boolean early = channel.acceptsEarlyPlay;
+         ControlChannel.Pending setupRequest;
+         ControlChannel.Pending playRequest = null;
+         try {
+            if (early == Boolean.FALSE) {
+               setupRequest = sendCommand("SETUP " + videoName, null, transportHeader);
+            } else {
+               setupRequest = writeCommand("SETUP " + videoName, null, transportHeader);
+               playRequest = sendCommand("PLAY " + videoName, null, null);
+            }
+         } catch (IOException e) {
+            throw new RTSPException("Failed to send SETUP and PLAY requests: " + e.getMessage(), e);
+         }
+
+         RTSPResponse playResp;
+         try {
+            RTSPResponse resp = setupRequest.await();
+            checkRespSuccessful(resp);
+            acceptTransport(resp);
+            noteEnd(resp);
+            sessionId = resp.getHeaderValue("SESSION");
+            sessionVid = videoName;
+            stat.setSessionId(sessionId);
+            stat.setTransport(transportName());
+            setUp = true;
+            if (playRequest == null) {
+               playRequest = sendCommand("PLAY " + sessionVid, sessionId, null);
+            }
+            startingPlay = playRequest;
+            sessionState.set(Phase.STARTING);
+            playResp = playRequest.await();
+         } catch (IOException e) {
+            throw new RTSPException("Failed to read SETUP and PLAY responses: " + e.getMessage(), e);
+         }
+         if (!sessionState.compareAndSet(Phase.STARTING, Phase.STARTED)) {
+            // A pause took over, and handles the response
+            done = true;
+            return;
+         }
+         try {
+            if (early == null && playResp.getResponseCode() == 200) {
+               channel.acceptsEarlyPlay = Boolean.TRUE;
+            } else if (early != Boolean.FALSE && playResp.getResponseCode() != 200) {
+               ControlChannel.Pending retry = sendCommand("PLAY " + sessionVid, sessionId, null);
+               startingPlay = retry;
+               sessionState.set(Phase.STARTING);
+               playResp = retry.await();
+               if (playResp.getResponseCode() == 200) {
+                  channel.acceptsEarlyPlay = Boolean.FALSE;
+               }
+               if (!sessionState.compareAndSet(Phase.STARTING, Phase.STARTED)) {
+                  done = true;
+                  return;
+               }
+            }
+         } catch (IOException e) {
+            throw new RTSPException("Failed to read PLAY request response: " + e.getMessage(), e);
+         }
+         checkRespSuccessful(playResp);
+         noteEnd(playResp);
+         startingPlay = null;
          stat.playStart();
-         setState(State.PLAYING);
-      } catch (IOException e) {
-         throw new RTSPException("Failed to read PLAY request response: " + e.getMessage(), e);
+         setState(Phase.PLAYING);
+         done = true;
+      } finally {
+         if (!done) {
+            if (setUp) {
+               abortStart();
+            } else {
+               receiving = false;
+               stat.abandonSession();
+               closeTransport();
+               prebindDataSocket();
+               sessionState.set(Phase.INIT);
+            }
+         }
       }
    }
 
    /**
-    * Starts a timer that reads RTP packets repeatedly. The timer will wait at
-    * least MINIMUM_DELAY_READ_PACKETS_MS after receiving a packet to read the
-    * next one.
+    * Binds the data socket for the next setup ahead of time, so that setup
+    * does not have to. Failures are left for setup to report.
     */
-   private void startRTPTimer() {
+   private void prebindDataSocket() {
+      if (preboundSocket != null) {
+         return;
+      }
+      try {
+         preboundSocket = newDataSocket();
+      } catch (IOException e) {
+         preboundSocket = null;
+      }
+   }
 
-      rtpTimer = new Timer();
-      rtpTimer.schedule(new TimerTask() {
-         @Override
-         public void run() {
-            receiveRTPPacket();
+   /**
+    * Binds a data socket: the socket of a channel for UdpIngest, or a
+    * blocking socket with a 1 second timeout for a receiver thread.
+    */
+   private static DatagramSocket newDataSocket() throws IOException {
+      if (UdpIngest.isEnabled()) {
+         DatagramChannel ch = DatagramChannel.open();
+         try {
+            ch.bind(new InetSocketAddress(0));
+         } catch (IOException e) {
+            ch.close();
+            throw e;
          }
-      }, 0, MINIMUM_DELAY_READ_PACKETS_MS);
+         return ch.socket();
+      }
+      DatagramSocket socket = new DatagramSocket();
+      socket.setSoTimeout(1000);
+      return socket;
    }
 
    /**
-    * Receives a single RTP packet and processes the corresponding frame. The
-    * data received from the datagram socket is assumed to be no larger than
-    * BUFFER_LENGTH bytes. This data is then parsed into a Frame object (using
-    * the parseRTPPacket method) and the method session.processReceivedFrame is
-    * called with the resulting packet. In case of timeout no exception should
-    * be thrown and no frame should be processed.
+    * Returns the pre-bound data socket, or a new one if there is none.
     */
-   private void receiveRTPPacket() {
+   private DatagramSocket takeDataSocket() throws RTSPException {
+      DatagramSocket socket = preboundSocket;
+      preboundSocket = null;
+      if (socket != null) {
+         return socket;
+      }
       try {
-         byte[] buf = new byte[BUFFER_LENGTH];
-         DatagramPacket packet = new DatagramPacket(buf, BUFFER_LENGTH);
-         dataSocket.receive(packet);
-         Frame frame = parseRTPPacket(packet.getData(), packet.getLength());
-         session.processReceivedFrame(frame);
-         stat.newFrame(frame);
-      } catch (SocketTimeoutException e2) {
-         // Do nothing on timeouts
-         stat.lostFrame();
+         return newDataSocket();
       } catch (IOException e) {
-         // e.printStackTrace();
+         throw new RTSPException(String.format("Could not create a new data connection!"), e);
       }
    }
 
    /**
-    * Sends a PAUSE request to the server. This method is responsible for
-    * sending the request, receiving the response and, in case of a successful
-    * response, cancelling the RTP timer responsible for receiving RTP packets
-    * with frames.
-    * 
-    * @throws RTSPException
-    *            If there was an error sending or receiving the RTSP data, or
-    *            if the server did not return a successful response.
+    * Resumes receiving RTP packets. The ring stages, and the receiver thread
+    * if UdpIngest is off, are started on first use and live as long as the
+    * connection; while not playing, the receiver parks.
     */
-   public synchronized void pause() throws RTSPException {
-      if (sessionState != State.PLAYING) {
+   private void startReceiver() {
+      udpReceived = false;
+      playStartNanos = System.nanoTime();
+      receiving = true;
+      if (!ringStarted) {
+         ringStarted = true;
+         ring.start();
+      }
+      if (UdpIngest.isEnabled()) {
          return;
       }
-      try {
-         sendCommand("PAUSE " + sessionVid, sessionId, null);
-         RTSPResponse resp = RTSPResponse.readRTSPResponse(rtspReader);
-         checkRespSuccessful(resp);
-         rtpTimer.cancel();
-         stat.playPause();
-         setState(State.READY);
-      } catch (IOException e) {
-         throw new RTSPException("Cannot send PAUSE request: " + e.getMessage(), e);
+      if (receiver == null) {
+         receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               while (!closed) {
+                  if (!receiving || interleavedMode || multicastMode) {
+                     LockSupport.park(this);
+                     continue;
+                  }
+                  receiveRTPPacket();
+               }
+            }
+         }, "rtp-receiver");
+         receiver.setDaemon(true);
+         receiver.start();
+      } else {
+         LockSupport.unpark(receiver);
       }
    }
 
    /**
-    * Sends a TEARDOWN request to the server. This method is responsible for
-    * sending the request, receiving the response and, in case of a successful
-    * response, closing the RTP socket. This method does not close the RTSP
-    * connection, and a further SETUP in the same connection should be
-    * accepted. Also this method can be called both for a paused and for a
-    * playing stream, so the timer responsible for receiving RTP packets will
-    * also be cancelled.
-    * 
-    * @throws RTSPException
-    *            If there was an error sending or receiving the RTSP data, or
-    *            if the server did not return a successful response.
+    * Receives a single RTP packet straight into the next ring slot and
+    * publishes it to the stages. The data received from the datagram socket
+    * is assumed to be no larger than BUFFER_LENGTH bytes. Only the header is
+    * parsed here (using the parseRTPPacket method); frames are built by the
+    * dispatch stage. In case of timeout no exception should be thrown and no
+    * frame should be processed, but the timeout is published so the stats
+    * stage can count it.
     */
-   public synchronized void teardown() throws RTSPException {
-      if (sessionState == State.INIT) {
+   private void receiveRTPPacket() {
+      DatagramSocket socket = dataSocket;
+      if (socket == null) {
          return;
       }
+      PacketRing.Slot slot = ring.claim();
       try {
-         sendCommand("TEARDOWN " + sessionVid, sessionId, null);
-         RTSPResponse resp = RTSPResponse.readRTSPResponse(rtspReader);
-         checkRespSuccessful(resp);
-         stat.setRequestCount(cseq);
-         rtpTimer.cancel();
-         stat.endSession();
-         dataSocket.close();
-         dataSocket = null;
-         setState(State.INIT);
+         rtpPacket.setData(slot.data);
+         socket.receive(rtpPacket);
+         if (rtpPacket.getLength() < RTP_HEADER_LENGTH) {
+            // Truncated packet, or the socket was closed under us by teardown(); the slot is reused
+            return;
+         }
+         slot.arrivalNanos = System.nanoTime();
+         parseRTPPacket(slot, rtpPacket.getLength());
+         udpReceived = true;
+         RTCPSession r = rtcp;
+         if (r != null && !r.hasDestination()) {
+            r.learnSource(rtpPacket.getAddress(), rtpPacket.getPort());
+         }
+         publish(slot);
+      } catch (SocketTimeoutException e2) {
+         receiveTimedOut();
       } catch (IOException e) {
-         throw new RTSPException("Unable to complete TEARDOWN request: " + e.getMessage(), e);
+         // e.printStackTrace();
       }
    }
 
    /**
-    * Closes the connection with the RTSP server. This method should also close
-    * any open resource associated to this connection, such as the RTP
-    * connection, if it is still open.
+    * Receives a single RTP packet waiting on a UdpIngest channel straight
+    * into the next ring slot, and publishes it. Runs on the channel's shard,
+    * which is the ring's only producer while this session uses UDP. Packets
+    * arriving while not playing are dropped, as the shard must drain them.
+    * The shard serves other sessions too, so it does not wait for a full
+    * ring: the packet is drained and dropped.
+    * 
+    * @return the packet length, or -1 if none was waiting
     */
-   public synchronized void closeConnection() {
-      if (sessionState != State.INIT) {
-         try {
-            teardown();
-         } catch (RTSPException e) {
-
+   private int receiveRTPPacket(DatagramChannel ch) throws IOException {
+      PacketRing.Slot slot = ring.tryClaim();
+      if (slot == null) {
+         overflowBuffer.clear();
+         if (ch.receive(overflowBuffer) == null) {
+            return -1;
          }
-         rtpTimer.cancel();
-         if (dataSocket != null) {
-            dataSocket.close();
-            dataSocket = null;
+         if (receiving) {
+            stat.ringOverflow();
          }
+         return overflowBuffer.position();
       }
-      try {
-         rtspReader.close();
-         rtspWriter.close();
-         rtspSocket.close();
-      } catch (IOException e) {
+      ByteBuffer buf = slot.buffer();
+      SocketAddress from = ch.receive(buf);
+      if (from == null) {
+         return -1;
+      }
+      int length = buf.position();
+      if (!receiving || length < RTP_HEADER_LENGTH) {
+         // The slot is reused
+         return length;
+      }
+      slot.arrivalNanos = System.nanoTime();
+      parseRTPPacket(slot, length);
+      udpReceived = true;
+      RTCPSession r = rtcp;
+      if (r != null && !r.hasDestination()) {
+         InetSocketAddress source = (InetSocketAddress) from;
+         r.learnSource(source.getAddress(), source.getPort());
+      }
+      publish(slot);
+      return length;
+   }
 
-      } finally {
-         rtspReader = null;
-         rtspWriter = null;
-         rtspSocket = null;
+   /**
+    * Publishes a receive timeout for the stats stage to count, and checks
+    * whether to fall back to TCP. The timeout is not published if the ring
+    * is full, since UdpIngest shards must not wait.
+    */
+   private void receiveTimedOut() {
+      if (receiving) {
+         PacketRing.Slot slot = ring.tryClaim();
+         if (slot != null) {
+            slot.length = -1;
+            ring.publish();
+         }
+         checkUdpFallback();
       }
    }
 
    /**
-    * Helper to keep RTSP Session state. Encapsulates all state handling logic.
+    * Copies an interleaved RTP packet from the control connection's read
+    * buffer into the next ring slot, and publishes it to the stages. Runs on
+    * the channel's reader thread, which is the ring's only producer while
+    * this session uses TCP. RTCP, on the odd channel, is ignored.
+    */
+   private void receiveInterleavedPacket(int ch, byte[] buf, int offset, int length) {
+      if (ch == interleavedChannel) {
+         receiveSharedPacket(buf, offset, length);
+      }
+   }
+
+   /**
+    * Copies an RTP packet received by a thread this session shares (the
+    * control channel's reader, or a multicast group's) into the next ring
+    * slot, and publishes it to the stages. The thread must not wait on this
+    * session, so the packet is dropped if the ring is full.
+    */
+   private void receiveSharedPacket(byte[] buf, int offset, int length) {
+      if (!receiving || length < RTP_HEADER_LENGTH || length > BUFFER_LENGTH) {
+         return;
+      }
+      PacketRing.Slot slot = ring.tryClaim();
+      if (slot == null) {
+         stat.ringOverflow();
+         return;
+      }
+      System.arraycopy(buf, offset, slot.data, 0, length);
+      slot.arrivalNanos = System.nanoTime();
+      parseRTPPacket(slot, length);
+      publish(slot);
+   }
+
+   /**
+    * Publishes a parsed media packet, followed by any packets FEC rebuilt
+    * with it. An FEC packet goes to the decoder instead, and its slot is
+    * reused, as is the slot of a media packet the decoder already holds (a
+    * late original of a rebuilt packet, or a duplicate), which is counted as
+    * a duplicate. Rebuilt packets are dropped if the ring is full, as the
+    * producer may be a shared thread.
+    */
+   private void publish(PacketRing.Slot slot) {
+      if (slot.payloadType == FEC_PAYLOAD_TYPE) {
+         fec.fecReceived(slot.data, slot.length);
+      } else if (fec.mediaReceived(slot.data, slot.length)) {
+         ring.publish();
+      } else {
+         stat.frameDuplicated();
+      }
+      for (byte[] packet : fec.takeRecovered()) {
+         if (packet.length > BUFFER_LENGTH) {
+            continue;
+         }
+         PacketRing.Slot recovered = ring.tryClaim();
+         if (recovered == null) {
+            stat.ringOverflow();
+            continue;
+         }
+         System.arraycopy(packet, 0, recovered.data, 0, packet.length);
+         recovered.arrivalNanos = System.nanoTime();
+         parseRTPPacket(recovered, packet.length);
+         recovered.recovered = true;
+         ring.publish();
+      }
+   }
+
+   /**
+    * Prepares the data path for a SETUP, a UDP socket or a pair of
+    * interleaved channels, depending on the transport.
     * 
-    * @param desiredState
-    * @throws RTSPException
+    * @return the Transport header to send
     */
-   private void setState(State desiredState) throws RTSPException {
-      switch (desiredState) {
-      case INIT: {
-         sessionState = State.INIT;
-         sessionVid = null;
-         cseq = 0;
+   private String openTransport() throws RTSPException {
+      // Nothing is being received yet, so the producer isn't using the decoder
+      fec.reset();
+      multicastMode = transport == Transport.MULTICAST;
+      if (multicastMode) {
+         interleavedMode = false;
+         // The server picks the group and ports
+         return "RTP/AVP;multicast";
+      }
+      interleavedMode = transport == Transport.TCP || (transport == Transport.AUTO && udpFailed && !tcpRejected);
+      if (interleavedMode) {
+         interleavedChannel = channel.openInterleaved(interleavedSink);
+         return String.format("RTP/AVP/TCP;unicast;interleaved=%d-%d", interleavedChannel, interleavedChannel + 1);
+      }
+      dataSocket = takeDataSocket();
+      if (dataSocket.getChannel() != null) {
          try {
-            rtspReader = new BufferedReader(new InputStreamReader(rtspSocket.getInputStream()));
-            rtspWriter = new BufferedWriter(new OutputStreamWriter(rtspSocket.getOutputStream()));
+            ingest = UdpIngest.register(dataSocket.getChannel(), udpReceiver);
          } catch (IOException e) {
-            throw new RTSPException("Cannot get input/output from/to server!", e);
+            throw new RTSPException("Could not receive on the data connection: " + e.getMessage(), e);
          }
-         break;
       }
-      case READY: {
-         sessionState = State.READY;
-         break;
+      if (RTCP_ENABLED) {
+         try {
+            rtcp = RTCPSession.open(dataSocket, stat, WATCHDOG, NACK_WINDOW_MS);
+            return String.format("RTP/UDP; client_port= %d-%d", dataSocket.getLocalPort(), rtcp.getLocalPort());
+         } catch (SocketException e) {
+            // Play without feedback
+         }
       }
-      case PLAYING: {
-         sessionState = State.PLAYING;
-         break;
+      return "RTP/UDP; client_port= " + dataSocket.getLocalPort();
+   }
+
+   /**
+    * Follows the interleaved channels picked by the server, if they differ
+    * from those requested, sends RTCP to the server_port it gave, or joins
+    * the multicast group it gave.
+    */
+   private void acceptTransport(RTSPResponse resp) throws RTSPException {
+      String header = resp.getHeaderValue("TRANSPORT");
+      if (multicastMode) {
+         joinMulticast(header);
+         return;
+      }
+      if (header == null) {
+         return;
+      }
+      if (!interleavedMode) {
+         RTCPSession r = rtcp;
+         int[] ports = parsePorts(header, "server_port");
+         if (r != null && ports != null) {
+            r.setDestination(channel.getRemoteAddress(), ports.length > 1 ? ports[1] : ports[0] + 1);
+         }
+         return;
+      }
+      int start = header.indexOf("interleaved=");
+      if (start < 0) {
+         return;
       }
+      int end = start + "interleaved=".length();
+      while (end < header.length() && Character.isDigit(header.charAt(end))) {
+         end++;
+      }
+      try {
+         int ch = Integer.parseInt(header.substring(start + "interleaved=".length(), end));
+         if (!channel.moveInterleaved(interleavedChannel, ch)) {
+            throw new RTSPException(String.format("Server picked interleaved channel %d, which is taken!", ch));
+         }
+         interleavedChannel = ch;
+      } catch (NumberFormatException e) {
+         // Keep the requested channels
       }
    }
 
    /**
-    * Parses an RTP packet into a Frame object.
-    * 
-    * @param packet
-    *           the byte representation of a frame, corresponding to the RTP
-    *           packet.
-    * @return A Frame object.
-    */
-   private static Frame parseRTPPacket(byte[] packet, int length) {
-      boolean marker = false;
-      // first 7bits
-      byte payloadType = (byte) (packet[0] >>> 1);
-      // next 16bits Big endian
-      short sequenceNumber = (byte) (((packet[0] << 7 | packet[1] >>> 1) << 8) | (packet[1] << 7 | packet[2] >>> 1));
-      // next 32bits Big endian
-      int timestamp = ((packet[2] << 7 | packet[3] >>> 1) << 24) | ((packet[3] << 7 | packet[4] >>> 1) << 16)
-            | ((packet[4] << 7 | packet[5] >>> 1) << 8) | (packet[5] << 7 | packet[6] >>> 1);
+    * Joins the group of a multicast Transport header, eg.
+    * "RTP/AVP;multicast;destination=239.1.2.3;port=5004-5005;ttl=16".
+    */
+   private void joinMulticast(String header) throws RTSPException {
+      int[] ports = header == null ? null : parsePorts(header, "port");
+      String destination = header == null ? null : transportParameter(header, "destination");
+      if (ports == null || destination == null || header.toLowerCase(Locale.ROOT).indexOf("multicast") < 0) {
+         throw new RTSPException("Server did not offer a multicast group: " + header);
+      }
+      try {
+         multicastGroup = MulticastGroup.join(InetAddress.getByName(destination), ports[0],
+               channel.getLocalAddress(), multicastSubscriber);
+      } catch (IOException e) {
+         throw new RTSPException(String.format("Could not join multicast group %s: %s", destination,
+               e.getMessage()), e);
+      }
+   }
 
-      return new Frame(payloadType, marker, sequenceNumber, timestamp, packet, 12, length - 12);
+   /**
+    * @return the transport the current session uses, for the stats.
+    */
+   private String transportName() {
+      MulticastGroup group = multicastGroup;
+      if (group != null) {
+         return "multicast " + group;
+      }
+      return multicastMode ? "multicast" : interleavedMode ? "tcp" : "udp";
    }
 
    /**
-    * Helper used to send RTSP requests to the server. Handles the CSeq header, and msg formatting.
+    * Finds a parameter of a Transport header by its whole name, so that
+    * "port" does not match "client_port" or "server_port".
     * 
-    * @param command
-    *           the RTSP command and resource URL
-    * @param sessionID
-    *           the content of the Session: header
-    * @param transport
-    *           the port passed in the Transport: header
-    * @throws IOException
+    * @return the trimmed value, or null if the parameter is missing
     */
-   private void sendCommand(String command, String sessionId, String port) throws IOException {
-      if (rtspWriter == null) {
-         return;
+   private static String transportParameter(String header, String name) {
+      for (String param : header.split(";")) {
+         int eq = param.indexOf('=');
+         if (eq >= 0 && param.substring(0, eq).trim().equalsIgnoreCase(name)) {
+            return param.substring(eq + 1).trim();
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Parses a port or port range parameter of a Transport header, eg.
+    * "server_port=5000-5001".
+    * 
+    * @param name
+    *           the parameter name, without the "="
+    * @return one or two ports, or null if the parameter is missing or invalid
+    */
+   private static int[] parsePorts(String header, String name) {
+      String value = transportParameter(header, name);
+      if (value == null) {
+         return null;
       }
-      StringBuilder req = new StringBuilder(command + " RTSP/1.0").append(CRLF).append("CSeq: " + cseq).append(CRLF);
-      if (port != null) {
-         req.append("Transport: RTP/UDP; client_port= " + port).append(CRLF);
+      int end = 0;
+      while (end < value.length() && (Character.isDigit(value.charAt(end)) || value.charAt(end) == '-')) {
+         end++;
       }
-      if (sessionId != null) {
-         req.append("Session: " + sessionId).append(CRLF);
+      String[] parts = value.substring(0, end).split("-");
+      try {
+         int[] ports = new int[Math.min(parts.length, 2)];
+         for (int i = 0; i < ports.length; i++) {
+            ports[i] = Integer.parseInt(parts[i]);
+         }
+         return ports.length == 0 ? null : ports;
+      } catch (NumberFormatException e) {
+         return null;
       }
-      req.append(CRLF);
-
-      rtspWriter.write(req.toString());
-      rtspWriter.flush();
-      // Only increment the sequence # if request was sent successfully.
-      cseq++;
    }
 
    /**
-    * Helper to check if an RTSPResponse was successful,
-    * if not throws RTSPException with error code and message.
-    * 
-    * @param resp
-    * @throws RTSPException
+    * Releases the data path set up by openTransport.
     */
-   private void checkRespSuccessful(RTSPResponse resp) throws RTSPException {
-      if (resp.getResponseCode() != 200) {
-         throw new RTSPException(resp.getResponseCode() + resp.getResponseMessage());
+   private void closeTransport() {
+      if (multicastGroup != null) {
+         multicastGroup.leave(multicastSubscriber);
+         multicastGroup = null;
+      }
+      RTCPSession r = rtcp;
+      if (r != null) {
+         rtcp = null;
+         r.close();
+      }
+      if (ingest != null) {
+         ingest.cancel();
+         ingest = null;
+      }
+      if (dataSocket != null) {
+         dataSocket.close();
+         dataSocket = null;
+      }
+      if (interleavedChannel >= 0) {
+         channel.closeInterleaved(interleavedChannel);
+         interleavedChannel = -1;
       }
    }
 
-   private enum State {
-      INIT, READY, PLAYING;
+   /**
+    * Called on receive timeouts. With the AUTO transport, once nothing has
+    * arrived over UDP for UDP_FALLBACK_MS after PLAY, sets the session up
+    * again over TCP, on a separate thread since this one is the receiver.
+    */
+   private void checkUdpFallback() {
+      if (transport != Transport.AUTO || interleavedMode || udpReceived || tcpRejected
+            || System.nanoTime() - playStartNanos < UDP_FALLBACK_MS * 1000000) {
+         return;
+      }
+      synchronized (this) {
+         if (fallback != null || closed) {
+            return;
+         }
+         fallback = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  fallBackToTcp();
+               } finally {
+                  synchronized (RTSPConnection.this) {
+                     fallback = null;
+                  }
+               }
+            }
+         }, "rtsp-tcp-fallback");
+         fallback.setDaemon(true);
+         fallback.start();
+      }
+   }
+
+   /**
+    * Tears the UDP session down and plays the same video again over TCP,
+    * which later sessions of this connection keep using. If the server does
+    * not take TCP either, goes back to UDP and stops trying.
+    */
+   private void fallBackToTcp() {
+      String video = sessionVid;
+      try {
+         teardown();
+         if (getState() != State.INIT) {
+            // A request from the user got there first
+            return;
+         }
+         udpFailed = true;
+         try {
+            setupAndPlay(video);
+         } catch (RTSPException e) {
+            tcpRejected = true;
+            if (getState() == State.READY) {
+               teardown();
+            }
+            setupAndPlay(video);
+         }
+      } catch (RTSPException e) {
+         session.reportException(new RTSPException("Falling back to RTP over TCP failed: " + e.getMessage(), e));
+      }
+   }
+
+   /**
+    * Runs on the watchdog. Starts a recovery if the session is playing but
+    * has received nothing for STALL_MS, or if its control connection was
+    * lost while set up. After a recovery that brought no packets back, the
+    * next one waits for the backoff as well; after MAX_FRUITLESS_RECOVERIES
+    * of them, the stream is taken to have ended and stalls are ignored until
+    * packets arrive again.
+    */
+   private void checkHealth() {
+      Phase phase = sessionState.get();
+      if (closed || (phase != Phase.PLAYING && phase != Phase.READY)) {
+         return;
+      }
+      long now = System.nanoTime();
+      boolean controlLost = !channel.isOpen();
+      long lastActivity = Math.max(lastPacketNanos, playStartNanos);
+      boolean stalled = phase == Phase.PLAYING && now - lastActivity > STALL_MS * 1000000;
+      if (lastRecoveredNanos != 0 && lastPacketNanos - lastRecoveredNanos > 0) {
+         fruitlessRecoveries = 0;
+      }
+      if (stalled && !controlLost && fruitlessRecoveries >= MAX_FRUITLESS_RECOVERIES) {
+         // End of stream
+         return;
+      }
+      if (stalled && lastRecoveredNanos != 0 && lastPacketNanos - lastRecoveredNanos < 0
+            && now - lastRecoveredNanos < (STALL_MS + backoffMs) * 1000000) {
+         return;
+      }
+      if (controlLost || stalled) {
+         startRecovery(phase, controlLost ? "control connection lost" : "no RTP for " + STALL_MS + " ms");
+      }
+   }
+
+   private synchronized void startRecovery(final Phase from, String reason) {
+      if (closed || recovery != null || recoveryHeld) {
+         return;
+      }
+      final Phase transitional = from == Phase.PLAYING ? Phase.RECOVERING_PLAYBACK : Phase.RECOVERING;
+      if (!sessionState.compareAndSet(from, transitional)) {
+         return;
+      }
+      recovery = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               recover(from);
+            } finally {
+               synchronized (RTSPConnection.this) {
+                  recovery = null;
+               }
+            }
+         }
+      }, "rtsp-recovery " + reason);
+      recovery.setDaemon(true);
+      recovery.start();
+   }
+
+   /**
+    * Brings the session back to the given state, retrying with exponential
+    * backoff. If the previous recovery brought no packets back, starts with
+    * its backoff rather than immediately.
+    */
+   private void recover(Phase to) {
+      long started = System.nanoTime();
+      receiving = false;
+      if (to == Phase.PLAYING) {
+         stat.playPause();
+      }
+      if (lastRecoveredNanos == 0 || lastPacketNanos - lastRecoveredNanos > 0) {
+         backoffMs = MIN_BACKOFF_MS;
+      }
+      long delayMs = lastRecoveredNanos != 0 && lastPacketNanos - lastRecoveredNanos <= 0 ? backoffMs : 0;
+      while (!closed && !isRecoveryHeld()) {
+         try {
+            if (delayMs > 0) {
+               Thread.sleep(delayMs);
+               backoffMs = Math.min(MAX_BACKOFF_MS, delayMs * 2);
+            }
+            resumeSession(to == Phase.PLAYING);
+            boolean fruitless = lastRecoveredNanos != 0 && lastPacketNanos - lastRecoveredNanos <= 0;
+            fruitlessRecoveries = fruitless ? fruitlessRecoveries + 1 : 0;
+            lastRecoveredNanos = System.nanoTime();
+            if (to == Phase.PLAYING) {
+               // Counted by the stats stage at the first packet; a fruitless run counts once, from its start
+               if (pendingRecoveryNanos == 0) {
+                  pendingRecoveryNanos = started;
+               }
+               stat.playStart();
+            } else {
+               stat.recovered((lastRecoveredNanos - started) / 1000000);
+            }
+            sessionState.set(to);
+            return;
+         } catch (RTSPException e) {
+            delayMs = Math.max(MIN_BACKOFF_MS, Math.min(MAX_BACKOFF_MS, delayMs * 2));
+         } catch (InterruptedException e) {
+            break;
+         }
+      }
+      // Closed, or stopped by pause or teardown (see abandonSession)
+      closeTransport();
+      sessionState.set(Phase.INIT);
+   }
+
+   private synchronized boolean isRecoveryHeld() {
+      return recoveryHeld;
+   }
+
+   /**
+    * Interrupts a recovery in progress and waits for it to end, leaving the
+    * session either settled where the recovery was taking it, or in INIT
+    * with its transport closed if it had not got there. No recovery starts
+    * until releaseRecovery is called. Must not be called holding this
+    * object's lock, which the recovery thread takes to end.
+    * 
+    * @return the phase the session is in
+    */
+   private Phase stopRecovery() throws RTSPException {
+      Thread r;
+      synchronized (this) {
+         recoveryHeld = true;
+         r = recovery;
+      }
+      // Joining under the lock would deadlock; closeConnection stops recovery before taking it
+      if (r != null && !Thread.holdsLock(this)) {
+         r.interrupt();
+         try {
+            r.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RTSPException("Interrupted while stopping the recovery of the session", e);
+         }
+      }
+      return sessionState.get();
+   }
+
+   private synchronized void releaseRecovery() {
+      recoveryHeld = false;
+   }
+
+   /**
+    * Ends a session whose recovery was stopped before it was set up again:
+    * tears it down on the server if it may still have it, and resets the
+    * connection as a TEARDOWN would.
+    * 
+    * @return false if there was no such session
+    */
+   private boolean abandonSession() throws RTSPException {
+      if (sessionVid == null || !sessionState.compareAndSet(Phase.INIT, Phase.TEARING_DOWN)) {
+         return false;
+      }
+      if (sessionId != null && channel.isOpen()) {
+         try {
+            sendCommand("TEARDOWN " + sessionVid, sessionId, null).await();
+         } catch (IOException e) {
+            // The server drops the session with the connection
+         }
+      }
+      receiving = false;
+      endSession();
+      return true;
+   }
+
+   /**
+    * One recovery attempt: reconnects if the control connection is gone
+    * (otherwise tears the old session down, in case the server still has
+    * it), sets the video up again with a new data path and, if it was
+    * playing, plays it from the last timestamp received. A server that
+    * rejects the Range is asked to play from wherever it resumes.
+    */
+   private void resumeSession(boolean play) throws RTSPException {
+      try {
+         if (!channel.isOpen()) {
+            reconnect();
+         } else if (sessionId != null) {
+            sendCommand("TEARDOWN " + sessionVid, sessionId, null).await();
+         }
+         closeTransport();
+         RTSPResponse resp = sendCommand("SETUP " + sessionVid, null, openTransport()).await();
+         checkRespSuccessful(resp);
+         acceptTransport(resp);
+         sessionId = resp.getHeaderValue("SESSION");
+         stat.setSessionId(sessionId);
+         long ts = lastTimestamp;
+         String range = ts < 0 ? null : String.format(Locale.ROOT, "npt=%.3f-", ts / 1000.0);
+         if (!play) {
+            resumeRange = range;
+            return;
+         }
+         resp = sendCommand("PLAY " + sessionVid, sessionId, null, playHeaders(range)).await();
+         if (resp.getResponseCode() != 200 && range != null) {
+            resp = sendCommand("PLAY " + sessionVid, sessionId, null, playHeaders(null)).await();
+         }
+         checkRespSuccessful(resp);
+         acceptedScale = scale;
+         applyScale(resp);
+         startReceiver();
+      } catch (IOException e) {
+         throw new RTSPException("Recovery failed: " + e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Replaces a failed control connection with a new one to the same
+    * server. A pooled one is replaced through its ChannelPool, so the
+    * sessions that shared it share its replacement; others reconnect on
+    * their own.
+    */
+   private void reconnect() throws RTSPException {
+      ControlChannel old = channel;
+      ChannelPool pool = old.pool;
+      ControlChannel fresh;
+      if (pool != null && !pool.isClosed()) {
+         fresh = pool.get(old.getServer(), old.getPort());
+      } else {
+         fresh = ControlChannel.connect(old.getServer(), old.getPort());
+      }
+      fresh.retain();
+      synchronized (this) {
+         if (closed) {
+            fresh.release();
+            throw new RTSPException("Connection closed during recovery");
+         }
+         channel = fresh;
+      }
+      old.release();
+      sessionId = null;
+   }
+
+   /**
+    * The headers of a PLAY request: the Range, if any, and the Scale if not
+    * playing at normal speed.
+    */
+   private String[] playHeaders(String range) {
+      double s = scale;
+      String scaleHeader = s == 1 ? null : String.format(Locale.ROOT, "Scale: %.3f", s);
+      if (range == null) {
+         return scaleHeader == null ? null : new String[] { scaleHeader };
+      }
+      return scaleHeader == null ? new String[] { "Range: " + range } : new String[] { "Range: " + range,
+            scaleHeader };
+   }
+
+   /**
+    * Checks a PLAY response, then records the scale the server applied. A
+    * refusal of a new scale puts back the last one accepted, so the next
+    * PLAY is not refused as well.
+    */
+   private void checkScaleAccepted(RTSPResponse resp) throws RTSPException {
+      double requested = scale;
+      if (resp.getResponseCode() != 200 && requested != acceptedScale) {
+         scale = acceptedScale;
+         throw new RTSPException(String.format(Locale.ROOT, "Server refused to play at scale %.3f: %d %s",
+               requested, resp.getResponseCode(), resp.getResponseMessage()));
+      }
+      checkRespSuccessful(resp);
+      acceptedScale = requested;
+      applyScale(resp);
+      noteEnd(resp);
+   }
+
+   /**
+    * Records where the video ends from the Range of a SETUP or PLAY response,
+    * eg. npt=0-30.5. A Range without an end leaves it as it was.
+    */
+   private void noteEnd(RTSPResponse resp) {
+      String header = resp.getHeaderValue("RANGE");
+      if (header == null) {
+         return;
+      }
+      String value = header.trim();
+      int semicolon = value.indexOf(';');
+      if (semicolon >= 0) {
+         value = value.substring(0, semicolon);
+      }
+      int dash = value.indexOf('-');
+      if (!value.startsWith("npt=") || dash < 0) {
+         return;
+      }
+      try {
+         endMillis = Math.round(Double.parseDouble(value.substring(dash + 1).trim()) * 1000);
+      } catch (NumberFormatException e) {
+         // Open-ended, eg. npt=10-
+      }
+   }
+
+   /**
+    * @return how long, in milliseconds of playback at the current scale, is
+    *         left between the last timestamp received and the end of the
+    *         video; or -1 if either is unknown, or while rewinding.
+    */
+   public long getRemainingMillis() {
+      long end = endMillis;
+      long ts = lastTimestamp;
+      double applied = getScale();
+      if (end < 0 || ts < 0 || applied <= 0) {
+         return -1;
+      }
+      return Math.max(0, Math.round((end - ts) / applied));
+   }
+
+   private void applyScale(RTSPResponse resp) {
+      String header = resp.getHeaderValue("SCALE");
+      double applied = 1;
+      if (header != null) {
+         try {
+            applied = Double.parseDouble(header.trim());
+         } catch (NumberFormatException e) {
+            applied = 1;
+         }
+      }
+      serverScale = applied;
+   }
+
+   /**
+    * Moves playback to the given time from the start of the video. While
+    * playing, a PLAY with the new Range is sent straight away; while paused,
+    * the Range goes with the next PLAY.
+    * 
+    * @param millis
+    *           the position, in milliseconds
+    * @throws RTSPException
+    *            If the server refuses the new position.
+    */
+   public void seek(long millis) throws RTSPException {
+      String range = String.format(Locale.ROOT, "npt=%.3f-", Math.max(0, millis) / 1000.0);
+      if (sessionState.compareAndSet(Phase.READY, Phase.STARTING)) {
+         resumeRange = range;
+         sessionState.set(Phase.READY);
+         return;
+      }
+      replay(range, "Cannot seek");
+   }
+
+   /**
+    * Changes the playback speed, sent as the Scale header of PLAY requests.
+    * While playing, a PLAY from the last timestamp received is sent straight
+    * away, so the new speed starts where the picture is.
+    * 
+    * @param scale
+    *           speed relative to normal playback, negative to rewind, not 0
+    * @throws RTSPException
+    *            If the server refuses the scale; playback goes on at the
+    *            previous speed.
+    */
+   public void setScale(double scale) throws RTSPException {
+      if (scale == 0) {
+         throw new IllegalArgumentException("Scale must not be 0");
+      }
+      this.scale = scale;
+      long ts = lastTimestamp;
+      replay(ts < 0 ? null : String.format(Locale.ROOT, "npt=%.3f-", ts / 1000.0), "Cannot change scale");
+   }
+
+   /**
+    * @return the scale the server is playing at, 1 if it ignored the
+    *         requested one.
+    */
+   public double getScale() {
+      return sessionState.get().settled == State.PLAYING ? serverScale : scale;
+   }
+
+   /**
+    * Sends a PLAY with the given Range (and the current scale) while
+    * playing. Does nothing in any other state.
+    */
+   private void replay(String range, String what) throws RTSPException {
+      if (!sessionState.compareAndSet(Phase.PLAYING, Phase.SEEKING)) {
+         return;
+      }
+      try {
+         checkScaleAccepted(sendCommand("PLAY " + sessionVid, sessionId, null, playHeaders(range)).await());
+      } catch (IOException e) {
+         throw new RTSPException(what + ": " + e.getMessage(), e);
+      } finally {
+         sessionState.set(Phase.PLAYING);
+      }
+   }
+
+   /**
+    * Chooses how RTP is delivered for the next SETUP. A session already set
+    * up keeps its transport.
+    * 
+    * @param transport
+    *           UDP, TCP, or AUTO to fall back from UDP to TCP
+    */
+   public void setTransport(Transport transport) {
+      this.transport = transport;
+   }
+
+   public Transport getTransport() {
+      return transport;
+   }
+
+   /**
+    * @return true if the current session's RTP is interleaved on the control
+    *         connection.
+    */
+   public boolean isInterleaved() {
+      return interleavedMode;
+   }
+
+   /**
+    * @return one line per UdpIngest shard of this process, with its
+    *         channels, packets, packet rate and load, or an empty string if
+    *         no UDP session has been set up through them.
+    */
+   public static String ingestSummary() {
+      return UdpIngest.summary();
+   }
+
+   /**
+    * The transport for new connections, from the rtsp.transport system
+    * property (udp, tcp, auto or multicast).
+    */
+   private static Transport defaultTransport() {
+      try {
+         return Transport.valueOf(System.getProperty("rtsp.transport", "auto").toUpperCase());
+      } catch (IllegalArgumentException e) {
+         return Transport.AUTO;
+      }
+   }
+
+   /**
+    * Sends a PAUSE request to the server. This method is responsible for
+    * sending the request, receiving the response and, in case of a successful
+    * response, stopping the receiver thread responsible for receiving RTP
+    * packets with frames. A PLAY still waiting for its response does not hold
+    * the PAUSE back: see pauseStarting.
+    * 
+    * @throws RTSPException
+    *            If there was an error sending or receiving the RTSP data, or
+    *            if the server did not return a successful response.
+    */
+   public void pause() throws RTSPException {
+      try {
+         stopRecovery();
+         if (abandonSession()) {
+            throw new RTSPException("The session was lost and could not be recovered before the pause, "
+                  + "so it has been closed");
+         }
+         while (!sessionState.compareAndSet(Phase.PLAYING, Phase.PAUSING)) {
+            Phase phase = sessionState.get();
+            if (phase == Phase.STARTING && startingPlay != null
+                  && sessionState.compareAndSet(Phase.STARTING, Phase.PAUSING)) {
+               pauseStarting();
+               return;
+            }
+            if (phase != Phase.STARTED && phase != Phase.STARTING) {
+               return;
+            }
+            // The PLAY is being written or its response handled, neither of
+            // which waits on the server
+            Thread.yield();
+         }
+         boolean done = false;
+         try {
+            RTSPResponse resp = sendCommand("PAUSE " + sessionVid, sessionId, null).await();
+            checkRespSuccessful(resp);
+            receiving = false;
+            stat.playPause();
+            setState(Phase.READY);
+            done = true;
+         } catch (IOException e) {
+            throw new RTSPException("Cannot send PAUSE request: " + e.getMessage(), e);
+         } finally {
+            if (!done) {
+               sessionState.set(Phase.PLAYING);
+            }
+         }
+      } finally {
+         releaseRecovery();
+      }
+   }
+
+   /**
+    * Pauses while a PLAY is waiting for its response. The PAUSE goes out at
+    * once, pipelined behind the PLAY, and this takes over from the play,
+    * which leaves the session alone once answered. The session ends up READY
+    * if the PAUSE succeeds, and otherwise as the PLAY left it.
+    */
+   private void pauseStarting() throws RTSPException {
+      ControlChannel.Pending play = startingPlay;
+      startingPlay = null;
+      boolean played = false;
+      boolean done = false;
+      try {
+         ControlChannel.Pending request;
+         try {
+            request = sendCommand("PAUSE " + sessionVid, sessionId, null);
+         } catch (IOException e) {
+            throw new RTSPException("Cannot send PAUSE request: " + e.getMessage(), e);
+         }
+         try {
+            played = play.await().getResponseCode() == 200;
+            RTSPResponse resp = request.await();
+            checkRespSuccessful(resp);
+            if (played) {
+               resumeRange = null;
+            }
+            receiving = false;
+            setState(Phase.READY);
+            done = true;
+         } catch (IOException e) {
+            throw new RTSPException("Failed to read PAUSE request response: " + e.getMessage(), e);
+         }
+      } finally {
+         if (!done) {
+            if (played) {
+               resumeRange = null;
+               startReceiver();
+               stat.playStart();
+               sessionState.set(Phase.PLAYING);
+            } else {
+               receiving = false;
+               sessionState.set(Phase.READY);
+            }
+         }
+      }
+   }
+
+   /**
+    * Sends a TEARDOWN request to the server. This method is responsible for
+    * sending the request, receiving the response and, in case of a successful
+    * response, closing the RTP socket. This method does not close the RTSP
+    * connection, and a further SETUP in the same connection should be
+    * accepted. Also this method can be called both for a paused and for a
+    * playing stream, so the receiver thread responsible for receiving RTP
+    * packets will also be stopped.
+    * 
+    * @throws RTSPException
+    *            If there was an error sending or receiving the RTSP data, or
+    *            if the server did not return a successful response.
+    */
+   public void teardown() throws RTSPException {
+      try {
+         stopRecovery();
+         if (abandonSession()) {
+            return;
+         }
+         Phase from = sessionState.get();
+         if ((from != Phase.READY && from != Phase.PLAYING) || !sessionState.compareAndSet(from,
+               Phase.TEARING_DOWN)) {
+            return;
+         }
+         boolean done = false;
+         try {
+            RTSPResponse resp = sendCommand("TEARDOWN " + sessionVid, sessionId, null).await();
+            checkRespSuccessful(resp);
+            receiving = false;
+            endSession();
+            done = true;
+         } catch (IOException e) {
+            throw new RTSPException("Unable to complete TEARDOWN request: " + e.getMessage(), e);
+         } finally {
+            if (!done) {
+               sessionState.set(from);
+            }
+         }
+      } finally {
+         releaseRecovery();
+      }
+   }
+
+   /**
+    * Resets the connection once its session is over, ready for a new SETUP.
+    * Only called by the holder of TEARING_DOWN.
+    */
+   private void endSession() throws RTSPException {
+      stat.setRequestCount(cseq);
+      stat.pipelineLag(ring.takeMaxLags());
+      stat.endSession();
+      pendingRecoveryNanos = 0;
+      fruitlessRecoveries = 0;
+      closeTransport();
+      prebindDataSocket();
+      resumeRange = null;
+      lastTimestamp = -1;
+      endMillis = -1;
+      scale = 1;
+      acceptedScale = 1;
+      serverScale = 1;
+      setState(Phase.INIT);
+   }
+
+   /**
+    * Closes the connection with the RTSP server. This method should also close
+    * any open resource associated to this connection, such as the RTP
+    * connection, if it is still open.
+    */
+   public void closeConnection() {
+      try {
+         // Outside the lock, which the recovery thread takes to end
+         stopRecovery();
+      } catch (RTSPException e) {
+         // Interrupted; the recovery is interrupted again below
+      }
+      closeSession();
+   }
+
+   private synchronized void closeSession() {
+      if (sessionState.get() != Phase.INIT || sessionVid != null) {
+         try {
+            teardown();
+         } catch (RTSPException e) {
+
+         }
+         receiving = false;
+         closeTransport();
+      }
+      if (preboundSocket != null) {
+         preboundSocket.close();
+         preboundSocket = null;
+      }
+      closed = true;
+      watchdog.cancel(false);
+      if (recovery != null) {
+         recovery.interrupt();
+      }
+      if (receiver != null) {
+         LockSupport.unpark(receiver);
+      }
+      ring.halt();
+      channel.release();
+   }
+
+   /**
+    * @return the playback statistics tracked for this connection.
+    */
+   public RTSPConStats getStats() {
+      return stat;
+   }
+
+   /**
+    * @return the ring between the receiver and the stages, eg. to inspect their lag.
+    */
+   public PacketRing getRing() {
+      return ring;
+   }
+
+   public State getState() {
+      return sessionState.get().settled;
+   }
+
+   /**
+    * @return true if a PLAY has been sent and is waiting for its response.
+    */
+   public boolean isStarting() {
+      return sessionState.get() == Phase.STARTING;
+   }
+
+   /**
+    * Helper to keep RTSP Session state. Encapsulates all state handling logic.
+    * Only called by the holder of a transitional phase (or the constructor),
+    * so a plain set is enough.
+    * 
+    * @param desiredState
+    * @throws RTSPException
+    */
+   private void setState(Phase desiredState) throws RTSPException {
+      switch (desiredState) {
+      case INIT: {
+         sessionVid = null;
+         cseq = 0;
+         break;
+      }
+      default:
+         break;
+      }
+      sessionState.set(desiredState);
+   }
+
+   /**
+    * Parses the header of an RTP packet into its ring slot.
+    * 
+    * @param slot
+    *           the slot holding the byte representation of a frame,
+    *           corresponding to the RTP packet.
+    * @param length
+    *           the length of the packet.
+    */
+   private static void parseRTPPacket(PacketRing.Slot slot, int length) {
+      byte[] packet = slot.data;
+      // byte 0: version, padding, extension and CSRC count; byte 1: marker bit and 7 bit payload type
+      int headerLength = RTP_HEADER_LENGTH + 4 * (packet[0] & 0x0F);
+      boolean marker = (packet[1] & 0x80) != 0;
+      byte payloadType = (byte) (packet[1] & 0x7F);
+      // next 16bits Big endian
+      short sequenceNumber = (short) (((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF));
+      // next 32bits Big endian
+      int timestamp = ((packet[4] & 0xFF) << 24) | ((packet[5] & 0xFF) << 16) | ((packet[6] & 0xFF) << 8)
+            | (packet[7] & 0xFF);
+      // next 32bits Big endian
+      int ssrc = ((packet[8] & 0xFF) << 24) | ((packet[9] & 0xFF) << 16) | ((packet[10] & 0xFF) << 8)
+            | (packet[11] & 0xFF);
+
+      slot.length = length;
+      slot.headerLength = Math.min(headerLength, length);
+      slot.marker = marker;
+      slot.payloadType = payloadType;
+      slot.sequenceNumber = sequenceNumber;
+      slot.timestamp = timestamp;
+      slot.ssrc = ssrc;
+      slot.recovered = false;
+   }
+
+   /**
+    * Helper used to send RTSP requests to the server. The channel handles the CSeq header, and msg formatting;
+    * this connection counts its own requests for the stats.
+    * 
+    * @param command
+    *           the RTSP command and resource URL
+    * @param sessionID
+    *           the content of the Session: header
+    * @param transport
+    *           the content of the Transport: header
+    * @return the pending response
+    * @throws IOException
+    */
+   private ControlChannel.Pending sendCommand(String command, String sessionId, String transport)
+         throws IOException {
+      return sendCommand(command, sessionId, transport, null);
+   }
+
+   /**
+    * Same as sendCommand, with additional header lines.
+    */
+   private ControlChannel.Pending sendCommand(String command, String sessionId, String transport, String[] headers)
+         throws IOException {
+      ControlChannel.Pending request = channel.send(command, sessionId, transport, headers, true);
+      // Only increment the sequence # if request was sent successfully.
+      cseq++;
+      return request;
+   }
+
+   /**
+    * Same as sendCommand, but leaves the request buffered so several requests
+    * can be sent together.
+    */
+   private ControlChannel.Pending writeCommand(String command, String sessionId, String transport)
+         throws IOException {
+      ControlChannel.Pending request = channel.send(command, sessionId, transport, false);
+      cseq++;
+      return request;
+   }
+
+   /**
+    * @return the control connection used by this connection.
+    */
+   public ControlChannel getChannel() {
+      return channel;
+   }
+
+   /**
+    * Helper to check if an RTSPResponse was successful,
+    * if not throws RTSPException with error code and message.
+    * 
+    * @param resp
+    * @throws RTSPException
+    */
+   private void checkRespSuccessful(RTSPResponse resp) throws RTSPException {
+      if (resp.getResponseCode() != 200) {
+         throw new RTSPException(resp.getResponseCode() + resp.getResponseMessage());
+      }
+   }
+
+   /**
+    * The states of the session, plus one transitional phase per request while
+    * it waits for its response. A transitional phase reports the state the
+    * session was in before the request. A request takes its phase with a
+    * compare-and-set before touching the control connection, so one made
+    * from the wrong state is rejected without taking a lock; the fields it
+    * sets are published to the next request by the atomic reference.
+    */
+   private enum Phase {
+      INIT(State.INIT), SETTING_UP(State.INIT), READY(State.READY), STARTING(State.READY), PLAYING(State.PLAYING),
+      PAUSING(State.PLAYING), TEARING_DOWN(State.READY), RECOVERING(State.READY),
+      RECOVERING_PLAYBACK(State.PLAYING), SEEKING(State.PLAYING), STARTED(State.READY);
+
+      final State settled;
+
+      private Phase(State settled) {
+         this.settled = settled;
+      }
    }
 }
@@ -116,27 +116,56 @@ public class RTSPResponse {
 		String firstLine = reader.readLine();
 		if (firstLine == null)
 			return null;
+		RTSPResponse response = parseStatusLine(firstLine);
+
+		String headerLine;
+		while ((headerLine = reader.readLine()) != null
+				&& !headerLine.equals("")) {
+			response.parseHeaderLine(headerLine);
+		}
+
+		return response;
+	}
+
+	/**
+	 * Parses the first line of a response, such as "RTSP/1.0 200 OK".
+	 * 
+	 * @param firstLine
+	 *            The status line, without the line terminator.
+	 * @return An RTSPResponse object with no headers yet.
+	 * @throws RTSPException
+	 *             If the line doesn't match the expected format.
+	 */
+	static RTSPResponse parseStatusLine(String firstLine) throws RTSPException {
+
 		String[] firstLineSplit = firstLine.split(" ", 3);
 
 		if (firstLineSplit.length != 3
 				|| !"RTSP/1.0".equalsIgnoreCase(firstLineSplit[0]))
 			throw new RTSPException("Invalid response from RTSP server.");
 
-		RTSPResponse response = new RTSPResponse(firstLineSplit[0],
-				Integer.parseInt(firstLineSplit[1]), firstLineSplit[2]);
-
-		String headerLine;
-		while ((headerLine = reader.readLine()) != null
-				&& !headerLine.equals("")) {
+		try {
+			return new RTSPResponse(firstLineSplit[0],
+					Integer.parseInt(firstLineSplit[1]), firstLineSplit[2]);
+		} catch (NumberFormatException e) {
+			throw new RTSPException("Invalid response from RTSP server.", e);
+		}
+	}
 
-			String[] headerLineSplit = headerLine.split(":", 2);
-			if (headerLineSplit.length != 2)
-				continue;
+	/**
+	 * Adds a "Name: value" header line to this response. Lines without a
+	 * colon are ignored.
+	 * 
+	 * @param headerLine
+	 *            The header line, without the line terminator.
+	 */
+	void parseHeaderLine(String headerLine) {
 
-			response.headers.put(headerLineSplit[0].toUpperCase(), headerLineSplit[1].trim());
-		}
+		String[] headerLineSplit = headerLine.split(":", 2);
+		if (headerLineSplit.length != 2)
+			return;
 
-		return response;
+		headers.put(headerLineSplit[0].toUpperCase(), headerLineSplit[1].trim());
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package ubc.cs317.rtsp.client.net;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+
+/**
+ * A source of frames driven by a Session. RTSPConnection is the network implementation; other implementations
+ * (eg. local playback of recordings) follow the same INIT/READY/PLAYING life cycle, push frames through
+ * Session.processReceivedFrame and track playback through RTSPConStats, so that the UI and stats code cannot
+ * tell them apart.
+ */
+public interface StreamConnection {
+
+   /**
+    * Prepares the named video for playback.
+    * 
+    * @param videoName
+    *           the name of the video to be setup.
+    * @throws RTSPException
+    *            if the video cannot be set up.
+    */
+   public void setup(String videoName) throws RTSPException;
+
+   /**
+    * Starts (or resumes) delivering frames to the session.
+    * 
+    * @throws RTSPException
+    *            if playback cannot be started.
+    */
+   public void play() throws RTSPException;
+
+   /**
+    * Prepares the named video and starts delivering its frames, as quickly as the implementation can.
+    * 
+    * @param videoName
+    *           the name of the video to be played.
+    * @throws RTSPException
+    *            if the video cannot be set up or played; if setup succeeded the connection is left ready.
+    */
+   public void setupAndPlay(String videoName) throws RTSPException;
+
+   /**
+    * Stops delivering frames, keeping the current position.
+    * 
+    * @throws RTSPException
+    *            if playback cannot be paused.
+    */
+   public void pause() throws RTSPException;
+
+   /**
+    * Moves playback to the given time from the start of the video. While playing, frames from there follow; while
+    * paused, playback resumes from there.
+    * 
+    * @param millis
+    *           the position, in milliseconds
+    * @throws RTSPException
+    *            if the position cannot be changed.
+    */
+   public void seek(long millis) throws RTSPException;
+
+   /**
+    * Changes the playback speed, eg. 4 for fast-forward at 4x, or -2 for rewind at 2x. Takes effect straight away
+    * while playing, otherwise from the next play.
+    * 
+    * @param scale
+    *           speed relative to normal playback, not 0
+    * @throws RTSPException
+    *            if the speed cannot be changed; the previous one is kept.
+    */
+   public void setScale(double scale) throws RTSPException;
+
+   /**
+    * @return the speed frames are being delivered at, relative to normal playback (1 if the source ignored a
+    *         requested scale).
+    */
+   public double getScale();
+
+   /**
+    * Releases the current video. A further setup should be accepted afterwards.
+    * 
+    * @throws RTSPException
+    *            if the video cannot be released cleanly.
+    */
+   public void teardown() throws RTSPException;
+
+   /**
+    * Releases every resource held by this connection. It should not be used anymore after this point.
+    */
+   public void closeConnection();
+
+   /**
+    * @return the playback statistics tracked for this connection.
+    */
+   public RTSPConStats getStats();
+
+   /**
+    * @return the state the connection is in, or was last in if a request is still waiting for its response.
+    */
+   public State getState();
+
+   /**
+    * The life cycle every connection follows.
+    */
+   public enum State {
+      INIT, READY, PLAYING;
+   }
+}
@@ -0,0 +1,285 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receives the UDP RTP of every session in the process on a fixed pool of threads, instead of one thread per
+ * session. <br/>
+ * There are as many shards as the rtsp.ingestThreads system property says, by default one per core; 0 turns the
+ * pool off, and each session receives on its own thread again. Each shard is one thread with its own Selector,
+ * owning the non-blocking DatagramChannels of the sessions given to it: a new channel goes to the shard with
+ * the fewest. When a channel is readable, the shard has its Receiver drain it, up to BATCH packets so a busy
+ * session cannot starve the others, and then moves on. The shard is therefore the ring producer of each of
+ * its sessions. A channel that has been silent for IDLE_MS is reported to its Receiver, like a receive
+ * timeout. <br/>
+ * Each shard counts its channels, packets and bytes, the packet rate over the last second, and its load: the
+ * fraction of that second spent receiving rather than waiting in select.
+ */
+class UdpIngest {
+   private static final int THREADS = Integer.getInteger("rtsp.ingestThreads",
+         Runtime.getRuntime().availableProcessors());
+   /** Most packets taken from one channel before the shard looks at its other channels. */
+   private static final int BATCH = 32;
+   private static final long IDLE_MS = 1000;
+   private static final long TICK_MS = 250;
+   private static final long RATE_WINDOW_NANOS = 1000000000L;
+   private static Shard[] shards;
+
+   /**
+    * Receives one channel's packets, on its shard's thread.
+    */
+   interface Receiver {
+      /**
+       * Receives the next packet waiting on the channel, if any.
+       *
+       * @return the packet length, or -1 if none was waiting
+       * @throws IOException
+       *            if the channel failed
+       */
+      int receive(DatagramChannel channel) throws IOException;
+
+      /**
+       * Called when nothing has arrived on the channel for IDLE_MS.
+       */
+      void idle();
+   }
+
+   /**
+    * A channel given to a shard, until cancelled or closed.
+    */
+   static class Registration {
+      private final DatagramChannel channel;
+      private final Receiver receiver;
+      private final Shard shard;
+      private SelectionKey key;
+      private long lastNanos = System.nanoTime();
+      private volatile boolean cancelled;
+      private boolean removed;
+      /** Set once the channel is counted out of its shard, by whichever of cancel and the shard comes first. */
+      private final AtomicBoolean released = new AtomicBoolean();
+
+      private Registration(DatagramChannel channel, Receiver receiver, Shard shard) {
+         this.channel = channel;
+         this.receiver = receiver;
+         this.shard = shard;
+      }
+
+      /**
+       * Stops receiving the channel. Packets may still be delivered while the shard is inside a batch.
+       */
+      void cancel() {
+         cancelled = true;
+         release();
+         shard.selector.wakeup();
+      }
+
+      private void release() {
+         if (released.compareAndSet(false, true)) {
+            shard.channels.decrementAndGet();
+         }
+      }
+
+      int getShard() {
+         return shard.index;
+      }
+   }
+
+   private static class Shard implements Runnable {
+      private final int index;
+      private final Selector selector;
+      private final Queue<Registration> added = new ConcurrentLinkedQueue<Registration>();
+      /** Kept apart from the selector's keys, which a closed channel's key leaves without being counted out. */
+      private final List<Registration> owned = new ArrayList<Registration>();
+      private final AtomicInteger channels = new AtomicInteger();
+      private volatile long packets;
+      private volatile long bytes;
+      private volatile double packetRate;
+      private volatile double load;
+      private long windowStart = System.nanoTime();
+      private long windowPackets;
+      private long busyNanos;
+
+      Shard(int index) throws IOException {
+         this.index = index;
+         this.selector = Selector.open();
+      }
+
+      @Override
+      public void run() {
+         long lastTick = System.nanoTime();
+         while (true) {
+            try {
+               selector.select(TICK_MS);
+            } catch (IOException e) {
+               continue;
+            }
+            long start = System.nanoTime();
+            for (Registration r; (r = added.poll()) != null;) {
+               try {
+                  r.key = r.channel.register(selector, SelectionKey.OP_READ, r);
+                  r.lastNanos = start;
+                  owned.add(r);
+               } catch (ClosedChannelException e) {
+                  r.release();
+               }
+            }
+            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+               SelectionKey key = it.next();
+               it.remove();
+               drain((Registration) key.attachment(), start);
+            }
+            if (start - lastTick >= TICK_MS * 1000000) {
+               lastTick = start;
+               tick(start);
+            }
+            busyNanos += System.nanoTime() - start;
+            if (start - windowStart >= RATE_WINDOW_NANOS) {
+               long elapsed = start - windowStart;
+               packetRate = windowPackets * 1e9 / elapsed;
+               load = Math.min(1, busyNanos / (double) elapsed);
+               windowStart = start;
+               windowPackets = 0;
+               busyNanos = 0;
+            }
+         }
+      }
+
+      private void drain(Registration r, long now) {
+         if (r.removed) {
+            return;
+         }
+         if (r.cancelled) {
+            remove(r);
+            return;
+         }
+         try {
+            for (int i = 0; i < BATCH; i++) {
+               int length = r.receiver.receive(r.channel);
+               if (length < 0) {
+                  break;
+               }
+               r.lastNanos = now;
+               packets++;
+               windowPackets++;
+               bytes += length;
+            }
+         } catch (IOException e) {
+            remove(r);
+         } catch (CancelledKeyException e) {
+            remove(r);
+         }
+      }
+
+      /**
+       * Drops cancelled and closed channels, and reports the silent ones.
+       */
+      private void tick(long now) {
+         for (Iterator<Registration> it = owned.iterator(); it.hasNext();) {
+            Registration r = it.next();
+            if (!r.removed && (r.cancelled || !r.channel.isOpen())) {
+               remove(r);
+            }
+            if (r.removed) {
+               it.remove();
+            } else if (now - r.lastNanos >= IDLE_MS * 1000000) {
+               r.lastNanos = now;
+               r.receiver.idle();
+            }
+         }
+      }
+
+      /**
+       * Stops selecting a channel. It is dropped from owned on the next tick.
+       */
+      private void remove(Registration r) {
+         if (r.removed) {
+            return;
+         }
+         r.removed = true;
+         r.key.cancel();
+         r.release();
+      }
+
+      @Override
+      public String toString() {
+         return String.format(Locale.ROOT, "ingest-%d: %d channels, %d packets, %d bytes, %.1f packets/s, "
+               + "load %.1f%%", index, channels.get(), packets, bytes, packetRate, load * 100);
+      }
+   }
+
+   /**
+    * @return true if UDP sessions are to be received by the shards, rather than each on its own thread.
+    */
+   static boolean isEnabled() {
+      return THREADS > 0;
+   }
+
+   /**
+    * Hands a channel to the shard with the fewest, starting the shards on first use.
+    *
+    * @param channel
+    *           a bound channel; it is made non-blocking
+    * @param receiver
+    *           receives the channel's packets on the shard's thread
+    * @return the registration, to cancel once done
+    * @throws IOException
+    *            if the channel cannot be made non-blocking, or the shards cannot be started
+    */
+   static Registration register(DatagramChannel channel, Receiver receiver) throws IOException {
+      channel.configureBlocking(false);
+      Shard shard;
+      synchronized (UdpIngest.class) {
+         if (shards == null) {
+            Shard[] started = new Shard[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+               started[i] = new Shard(i);
+               Thread t = new Thread(started[i], "rtp-ingest-" + i);
+               t.setDaemon(true);
+               t.start();
+            }
+            shards = started;
+         }
+         shard = shards[0];
+         for (Shard s : shards) {
+            if (s.channels.get() < shard.channels.get()) {
+               shard = s;
+            }
+         }
+         shard.channels.incrementAndGet();
+      }
+      Registration r = new Registration(channel, receiver, shard);
+      shard.added.add(r);
+      shard.selector.wakeup();
+      return r;
+   }
+
+   /**
+    * @return one summary line per shard, or an empty string if none has been started.
+    */
+   static synchronized String summary() {
+      StringBuilder sb = new StringBuilder();
+      if (shards == null) {
+         return "";
+      }
+      for (Shard s : shards) {
+         if (sb.length() > 0) {
+            sb.append("\n");
+         }
+         sb.append(s);
+      }
+      return sb.toString();
+   }
+}
@@ -0,0 +1,225 @@
+package ubc.cs317.rtsp.client.record;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.listener.SessionListener;
+
+/**
+ * A SessionListener that records every received frame to a container file plus a sidecar index, see
+ * RecordingFormat. <br/>
+ * frameReceived only queues the frame, so the receive path never waits on the disk. A single writer thread
+ * drains the queue in batches and writes each batch with one gathering write, straight from the frames'
+ * payload arrays. If the disk falls so far behind that the queue fills up, frames are dropped and counted
+ * rather than blocking the receiver.
+ */
+public class FrameRecorder implements SessionListener {
+   private static final int QUEUE_CAPACITY = 512;
+   private static final int MAX_BATCH = 64;
+
+   private final File file;
+   private final FileChannel data;
+   private final FileChannel index;
+   private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<Frame>(QUEUE_CAPACITY);
+   private final Thread writer;
+   private volatile boolean closed;
+   private volatile IOException failure;
+   private long position;
+
+   private volatile long framesRecorded;
+   private volatile long framesDropped;
+   private volatile long bytesWritten;
+
+   /**
+    * Creates (or truncates) the container and index files and starts the writer thread.
+    * 
+    * @param file
+    *           the container file, the index goes next to it
+    * @throws IOException
+    *            if either file cannot be created
+    */
+   public FrameRecorder(File file) throws IOException {
+      this.file = file;
+      this.data = new FileOutputStream(file).getChannel();
+      FileChannel index = null;
+      try {
+         index = new FileOutputStream(RecordingFormat.indexFor(file)).getChannel();
+         writeFully(index, new ByteBuffer[] { ByteBuffer.wrap(RecordingFormat.INDEX_MAGIC) });
+      } catch (IOException e) {
+         // Don't leak the files already open
+         data.close();
+         if (index != null) {
+            index.close();
+         }
+         throw e;
+      }
+      this.index = index;
+      writer = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            writeLoop();
+         }
+      }, "recorder-" + file.getName());
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   @Override
+   public void frameReceived(Frame frame) {
+      // null frames are how Session clears the screen on close, nothing to record
+      if (frame == null || closed) {
+         return;
+      }
+      if (frame.getPayloadLength() > RecordingFormat.MAX_FRAME_LENGTH) {
+         framesDropped++;
+         return;
+      }
+      // Keep the payload alive until the writer is done with it
+      frame.retain();
+      if (!queue.offer(frame)) {
+         frame.release();
+         framesDropped++;
+      }
+   }
+
+   @Override
+   public void exceptionThrown(RTSPException exception) {
+   }
+
+   @Override
+   public void videoNameChanged(String videoName) {
+   }
+
+   private void writeLoop() {
+      List<Frame> batch = new ArrayList<Frame>(MAX_BATCH);
+      ByteBuffer indexBuf = ByteBuffer.allocate(MAX_BATCH * RecordingFormat.INDEX_ENTRY_LENGTH);
+      try {
+         while (!closed || !queue.isEmpty()) {
+            Frame first = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) {
+               continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH - 1);
+            writeBatch(batch, indexBuf);
+            batch.clear();
+         }
+      } catch (InterruptedException e) {
+         // closing
+      } catch (IOException e) {
+         failure = e;
+      }
+   }
+
+   /**
+    * Writes a batch of frames with a single gathering write: length prefix and payload buffers alternate,
+    * the payload buffers being views over the frames' own arrays. The index entries go out in one write.
+    */
+   private void writeBatch(List<Frame> batch, ByteBuffer indexBuf) throws IOException {
+      ByteBuffer[] bufs = new ByteBuffer[batch.size() * 2];
+      indexBuf.clear();
+      for (int i = 0; i < batch.size(); i++) {
+         Frame f = batch.get(i);
+         int len = f.getPayloadLength();
+         bufs[2 * i] = ByteBuffer.wrap(lengthPrefix(len));
+         bufs[2 * i + 1] = f.getPayloadBuffer();
+         position += RecordingFormat.LENGTH_PREFIX;
+         indexBuf.putInt(f.getSequenceNumber() & 0xFFFF);
+         indexBuf.putInt(f.getTimestamp());
+         indexBuf.putLong(position);
+         indexBuf.putInt(len);
+         indexBuf.putInt((f.getPayloadType() & 0xFF) | (f.isMarkerOn() ? RecordingFormat.FLAG_MARKER : 0));
+         position += len;
+      }
+      indexBuf.flip();
+      try {
+         bytesWritten += writeFully(data, bufs);
+         writeFully(index, new ByteBuffer[] { indexBuf });
+         framesRecorded += batch.size();
+      } finally {
+         for (Frame f : batch) {
+            f.release();
+         }
+      }
+   }
+
+   private static byte[] lengthPrefix(int len) {
+      byte[] prefix = new byte[RecordingFormat.LENGTH_PREFIX];
+      for (int i = prefix.length - 1; i >= 0; i--) {
+         prefix[i] = (byte) ('0' + len % 10);
+         len /= 10;
+      }
+      return prefix;
+   }
+
+   private static long writeFully(FileChannel channel, ByteBuffer[] bufs) throws IOException {
+      long total = 0;
+      int first = 0;
+      while (first < bufs.length) {
+         total += channel.write(bufs, first, bufs.length - first);
+         while (first < bufs.length && !bufs[first].hasRemaining()) {
+            first++;
+         }
+      }
+      return total;
+   }
+
+   /**
+    * Stops accepting frames, writes whatever is still queued and closes both files.
+    * 
+    * @throws IOException
+    *            if writing failed at any point during the recording
+    */
+   public void close() throws IOException {
+      closed = true;
+      try {
+         writer.join();
+      } catch (InterruptedException e) {
+         writer.interrupt();
+      }
+      try {
+         data.force(false);
+         index.force(false);
+      } finally {
+         data.close();
+         index.close();
+      }
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   public File getFile() {
+      return file;
+   }
+
+   public long getFramesRecorded() {
+      return framesRecorded;
+   }
+
+   public long getFramesDropped() {
+      return framesDropped;
+   }
+
+   public long getBytesWritten() {
+      return bytesWritten;
+   }
+
+   /**
+    * @return a one line summary of the recording so far.
+    */
+   public String summary() {
+      return String.format("%s: %d frames recorded, %d dropped, %d bytes", file.getName(), framesRecorded,
+            framesDropped, bytesWritten);
+   }
+}
@@ -0,0 +1,43 @@
+package ubc.cs317.rtsp.client.record;
+
+import java.io.File;
+
+/**
+ * Layout of recorded streams, shared by the recorder and the playback side. <br/>
+ * 
+ * The container holds the received JPEG payloads back to back, each one prefixed by its length as 5 ASCII
+ * digits (the same framing as the server's .Mjpeg files). <br/>
+ * The sidecar index (container name + ".idx") starts with INDEX_MAGIC, followed by one fixed size
+ * INDEX_ENTRY_LENGTH record per frame, big endian:
+ * 
+ * <pre>
+ * int  sequence number
+ * int  RTP timestamp
+ * long offset of the JPEG data in the container
+ * int  JPEG length
+ * int  flags: payload type in the low byte, FLAG_MARKER if the marker bit was set
+ * </pre>
+ * 
+ * Fixed size entries mean the n-th frame's entry is at INDEX_HEADER_LENGTH + n * INDEX_ENTRY_LENGTH.
+ */
+public final class RecordingFormat {
+   public static final int LENGTH_PREFIX = 5;
+   public static final int MAX_FRAME_LENGTH = 99999;
+   public static final byte[] INDEX_MAGIC = { 'R', 'T', 'S', 'P', 'I', 'D', 'X', '1' };
+   public static final int INDEX_HEADER_LENGTH = INDEX_MAGIC.length;
+   public static final int INDEX_ENTRY_LENGTH = 24;
+   public static final int FLAG_MARKER = 0x100;
+   public static final String INDEX_SUFFIX = ".idx";
+
+   private RecordingFormat() {
+   }
+
+   /**
+    * @param container
+    *           the recorded container file
+    * @return the sidecar index file that goes with it
+    */
+   public static File indexFor(File container) {
+      return new File(container.getPath() + INDEX_SUFFIX);
+   }
+}
@@ -0,0 +1,343 @@
+package ubc.cs317.rtsp.client.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.net.RTSPConStats;
+import ubc.cs317.rtsp.client.net.StreamConnection;
+
+/**
+ * Plays back streams recorded by FrameRecorder, in place of an RTSPConnection. <br/>
+ * Both the container and its index are memory-mapped, so only the frame being delivered is ever copied onto
+ * the heap. Frames are delivered on a player thread at the time given by their timestamp (in milliseconds,
+ * scaled by the playback speed), through Session.processReceivedFrame and RTSPConStats just like received
+ * frames. Fixed size index entries make jumping to any frame O(1); seeking by time interpolates from the
+ * first and last timestamps, which is also O(1) for evenly spaced recordings.
+ */
+public class RecordingPlayer implements StreamConnection {
+   private static final AtomicInteger NEXT_SESSION_ID = new AtomicInteger(1);
+
+   private final Session session;
+   private final File directory;
+   private final RTSPConStats stat = new RTSPConStats();
+   private State state = State.INIT;
+   private MappedByteBuffer data;
+   private MappedByteBuffer index;
+   private int frameCount;
+   private int position;
+   private double speed = 1.0;
+   private long clockBaseNanos;
+   private long clockBaseTimestamp;
+   private Thread player;
+
+   /**
+    * Creates a player over a directory of recordings. Nothing is opened until setup.
+    *
+    * @param session
+    *           The Session object frames are delivered to.
+    * @param directory
+    *           The directory holding the recordings.
+    * @throws RTSPException
+    *            If the directory does not exist.
+    */
+   public RecordingPlayer(Session session, File directory) throws RTSPException {
+      if (!directory.isDirectory()) {
+         throw new RTSPException(String.format("No recording directory at '%s'!", directory));
+      }
+      this.session = session;
+      this.directory = directory;
+   }
+
+   /**
+    * Maps the named recording and its index.
+    *
+    * @param videoName
+    *           The name of a recording in the directory.
+    * @throws RTSPException
+    *            If the recording or its index is missing or malformed.
+    */
+   @Override
+   public synchronized void setup(String videoName) throws RTSPException {
+      if (state != State.INIT) {
+         return;
+      }
+      File file = new File(directory, videoName);
+      try {
+         data = map(file);
+         index = map(RecordingFormat.indexFor(file));
+      } catch (IOException e) {
+         throw new RTSPException(String.format("Cannot open recording '%s': %s", videoName, e.getMessage()), e);
+      }
+      byte[] magic = new byte[RecordingFormat.INDEX_HEADER_LENGTH];
+      if (index.capacity() < magic.length) {
+         throw new RTSPException(String.format("Index of '%s' is truncated!", videoName));
+      }
+      index.get(magic);
+      if (!Arrays.equals(magic, RecordingFormat.INDEX_MAGIC)) {
+         throw new RTSPException(String.format("'%s' is not a recording index!", videoName));
+      }
+      frameCount = (index.capacity() - RecordingFormat.INDEX_HEADER_LENGTH) / RecordingFormat.INDEX_ENTRY_LENGTH;
+      position = 0;
+      stat.newSession("local-" + NEXT_SESSION_ID.getAndIncrement(), videoName);
+      state = State.READY;
+   }
+
+   /**
+    * Maps a whole file read-only. The mapping stays valid after the channel is closed.
+    */
+   private static MappedByteBuffer map(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("recordings over 2GB are not supported");
+         }
+         return channel.map(MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+         raf.close();
+      }
+   }
+
+   @Override
+   public synchronized void play() throws RTSPException {
+      if (state != State.READY) {
+         return;
+      }
+      if (position >= frameCount) {
+         position = 0;
+      }
+      rebaseClock();
+      stat.playRequested(System.nanoTime());
+      player = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            playLoop(Thread.currentThread());
+         }
+      }, "recording-player");
+      player.setDaemon(true);
+      player.start();
+      stat.playStart();
+      state = State.PLAYING;
+   }
+
+   @Override
+   public synchronized void setupAndPlay(String videoName) throws RTSPException {
+      setup(videoName);
+      play();
+   }
+
+   @Override
+   public synchronized void pause() throws RTSPException {
+      if (state != State.PLAYING) {
+         return;
+      }
+      stopPlayer();
+      stat.playPause();
+      state = State.READY;
+   }
+
+   @Override
+   public synchronized void teardown() throws RTSPException {
+      if (state == State.INIT) {
+         return;
+      }
+      stopPlayer();
+      stat.endSession();
+      // Mappings are released once they become unreachable
+      data = null;
+      index = null;
+      frameCount = 0;
+      state = State.INIT;
+   }
+
+   @Override
+   public synchronized void closeConnection() {
+      try {
+         teardown();
+      } catch (RTSPException e) {
+
+      }
+   }
+
+   @Override
+   public RTSPConStats getStats() {
+      return stat;
+   }
+
+   @Override
+   public synchronized State getState() {
+      return state;
+   }
+
+   /**
+    * Jumps to the n-th frame of the recording. Playback, if running, continues from there.
+    *
+    * @param n
+    *           frame number, clamped to the recording
+    */
+   public synchronized void seekToFrame(int n) {
+      position = Math.max(0, Math.min(n, frameCount));
+      rebaseClock();
+      notifyAll();
+   }
+
+   /**
+    * Jumps to the first frame at or after the given time from the start of the recording.
+    *
+    * @param millis
+    *           time from the first frame, in milliseconds
+    */
+   @Override
+   public synchronized void seek(long millis) {
+      if (frameCount == 0) {
+         return;
+      }
+      long target = timestamp(0) + millis;
+      long first = timestamp(0);
+      long last = timestamp(frameCount - 1);
+      // Guess assuming evenly spaced frames, then walk to the exact frame
+      int n = last > first ? (int) Math.min(frameCount - 1, Math.max(0, (target - first) * (frameCount - 1)
+            / (last - first))) : 0;
+      while (n > 0 && timestamp(n - 1) >= target) {
+         n--;
+      }
+      while (n < frameCount && timestamp(n) < target) {
+         n++;
+      }
+      seekToFrame(n);
+   }
+
+   /**
+    * Same as setSpeed. Recordings can only be played forwards.
+    * 
+    * @throws RTSPException
+    *            if the scale is not positive.
+    */
+   @Override
+   public void setScale(double scale) throws RTSPException {
+      if (scale <= 0) {
+         throw new RTSPException("Recordings can only be played forwards!");
+      }
+      setSpeed(scale);
+   }
+
+   @Override
+   public double getScale() {
+      return getSpeed();
+   }
+
+   /**
+    * Changes the playback speed, eg. 2.0 for double speed. Takes effect from the next frame.
+    *
+    * @param speed
+    *           speed relative to real time, must be positive
+    */
+   public synchronized void setSpeed(double speed) {
+      if (speed <= 0) {
+         throw new IllegalArgumentException("Playback speed must be positive");
+      }
+      this.speed = speed;
+      rebaseClock();
+      notifyAll();
+   }
+
+   public synchronized double getSpeed() {
+      return speed;
+   }
+
+   public synchronized int getFrameCount() {
+      return frameCount;
+   }
+
+   /**
+    * @return true once every frame of the recording has been played.
+    */
+   public synchronized boolean isAtEnd() {
+      return state == State.READY && frameCount > 0 && position >= frameCount;
+   }
+
+   /**
+    * @return the time of the next frame to be played, in milliseconds from the start of the recording.
+    */
+   public synchronized long getPositionMillis() {
+      if (frameCount == 0) {
+         return 0;
+      }
+      return timestamp(Math.min(position, frameCount - 1)) - timestamp(0);
+   }
+
+   /**
+    * Delivers frames when they are due, until stopped or the end of the recording. Waits are done on this
+    * object's monitor so seeks and speed changes take effect immediately. Frames are handed to the session
+    * outside the monitor, so a session closing concurrently cannot deadlock with the player.
+    */
+   private void playLoop(Thread self) {
+      while (true) {
+         Frame frame;
+         synchronized (this) {
+            if (player != self) {
+               return;
+            }
+            if (position >= frameCount) {
+               player = null;
+               stat.playPause();
+               state = State.READY;
+               return;
+            }
+            long due = clockBaseNanos + (long) ((timestamp(position) - clockBaseTimestamp) * 1000000 / speed);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+               try {
+                  wait(wait / 1000000, (int) (wait % 1000000));
+               } catch (InterruptedException e) {
+                  return;
+               }
+               continue;
+            }
+            frame = frameAt(position++);
+         }
+         session.processReceivedFrame(this, frame);
+         stat.newFrame(frame);
+      }
+   }
+
+   private void stopPlayer() {
+      player = null;
+      notifyAll();
+   }
+
+   private void rebaseClock() {
+      clockBaseNanos = System.nanoTime();
+      clockBaseTimestamp = position < frameCount ? timestamp(position) : 0;
+   }
+
+   private int entry(int n) {
+      return RecordingFormat.INDEX_HEADER_LENGTH + n * RecordingFormat.INDEX_ENTRY_LENGTH;
+   }
+
+   private long timestamp(int n) {
+      return index.getInt(entry(n) + 4) & 0xFFFFFFFFL;
+   }
+
+   private Frame frameAt(int n) {
+      int e = entry(n);
+      int seq = index.getInt(e);
+      int ts = index.getInt(e + 4);
+      long offset = index.getLong(e + 8);
+      int length = index.getInt(e + 16);
+      int flags = index.getInt(e + 20);
+      ByteBuffer payload = data.duplicate();
+      payload.limit((int) offset + length).position((int) offset);
+      return new Frame((byte) (flags & 0x7F), (flags & RecordingFormat.FLAG_MARKER) != 0, (short) seq, ts, payload);
+   }
+}
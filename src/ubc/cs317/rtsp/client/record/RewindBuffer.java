@@ -0,0 +1,243 @@
+package ubc.cs317.rtsp.client.record;
+
+import java.nio.ByteBuffer;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.listener.SessionListener;
+
+/**
+ * A SessionListener that keeps the last few seconds of received frames off-heap, so they can be replayed
+ * without going back to the server. <br/>
+ * Payloads are copied into one direct ByteBuffer slab used as a ring: each payload is written contiguously
+ * after the previous one (wrapping to the start when it doesn't fit), evicting the oldest frames it would
+ * overwrite. A parallel ring of index entries records where each frame lives. Frames older than the time
+ * window are evicted as well, so the buffer holds at most the window or the memory budget, whichever is
+ * smaller. <br/>
+ * Frames are identified by an id that increases by one per frame received; an id stays valid until that frame
+ * is evicted.
+ */
+public class RewindBuffer implements SessionListener {
+   /** Upper bound on the frame rate the index is sized for. */
+   private static final int MAX_FPS = 120;
+
+   private final ByteBuffer slab;
+   private final long windowNanos;
+   private final int[] seqs;
+   private final int[] timestamps;
+   private final int[] offsets;
+   private final int[] lengths;
+   private final byte[] payloadTypes;
+   private final boolean[] markers;
+   private final long[] arrivals;
+   private int head; // ring position of the oldest entry
+   private int count;
+   private long nextId;
+   private int writePos;
+   private int usedBytes;
+
+   /**
+    * Allocates the slab up front.
+    *
+    * @param budgetBytes
+    *           size of the off-heap slab
+    * @param windowSeconds
+    *           how far back frames are kept
+    */
+   public RewindBuffer(int budgetBytes, int windowSeconds) {
+      slab = ByteBuffer.allocateDirect(budgetBytes);
+      windowNanos = windowSeconds * 1000000000L;
+      int entries = Math.max(1, windowSeconds * MAX_FPS);
+      seqs = new int[entries];
+      timestamps = new int[entries];
+      offsets = new int[entries];
+      lengths = new int[entries];
+      payloadTypes = new byte[entries];
+      markers = new boolean[entries];
+      arrivals = new long[entries];
+   }
+
+   @Override
+   public synchronized void frameReceived(Frame frame) {
+      if (frame == null) {
+         return;
+      }
+      int len = frame.getPayloadLength();
+      if (len > slab.capacity()) {
+         return;
+      }
+      long now = System.nanoTime();
+      evictOlderThan(now - windowNanos);
+      if (count == seqs.length) {
+         evictOldest();
+      }
+      if (writePos + len > slab.capacity()) {
+         // Whatever sits past the write position is older than everything before it; drop it with the wrap
+         while (count > 0 && offsets[head] >= writePos) {
+            evictOldest();
+         }
+         writePos = 0;
+      }
+      while (count > 0 && overlaps(head, writePos, len)) {
+         evictOldest();
+      }
+
+      ByteBuffer dst = slab.duplicate();
+      dst.position(writePos);
+      dst.put(frame.getPayloadBuffer());
+
+      int slot = (head + count) % seqs.length;
+      seqs[slot] = frame.getSequenceNumber();
+      timestamps[slot] = frame.getTimestamp();
+      offsets[slot] = writePos;
+      lengths[slot] = len;
+      payloadTypes[slot] = frame.getPayloadType();
+      markers[slot] = frame.isMarkerOn();
+      arrivals[slot] = now;
+      count++;
+      nextId++;
+      writePos += len;
+      usedBytes += len;
+   }
+
+   @Override
+   public void exceptionThrown(RTSPException exception) {
+   }
+
+   @Override
+   public void videoNameChanged(String videoName) {
+      clear();
+   }
+
+   /**
+    * Drops every buffered frame, eg. when a different video is opened.
+    */
+   public synchronized void clear() {
+      head = 0;
+      count = 0;
+      writePos = 0;
+      usedBytes = 0;
+   }
+
+   private boolean overlaps(int slot, int start, int len) {
+      return offsets[slot] < start + len && offsets[slot] + lengths[slot] > start;
+   }
+
+   private void evictOlderThan(long nanos) {
+      while (count > 0 && arrivals[head] - nanos < 0) {
+         evictOldest();
+      }
+   }
+
+   private void evictOldest() {
+      usedBytes -= lengths[head];
+      head = (head + 1) % seqs.length;
+      count--;
+   }
+
+   /**
+    * @return the id of the oldest frame still buffered, or -1 if the buffer is empty.
+    */
+   public synchronized long getOldestId() {
+      return count == 0 ? -1 : nextId - count;
+   }
+
+   /**
+    * @return the id of the newest frame, or -1 if the buffer is empty.
+    */
+   public synchronized long getNewestId() {
+      return count == 0 ? -1 : nextId - 1;
+   }
+
+   /**
+    * Copies a buffered frame back onto the heap.
+    *
+    * @param id
+    *           the frame id
+    * @return the frame, or null if it has been evicted (or not received yet)
+    */
+   public synchronized Frame getFrame(long id) {
+      int slot = slotOf(id);
+      if (slot < 0) {
+         return null;
+      }
+      ByteBuffer payload = slab.duplicate();
+      payload.limit(offsets[slot] + lengths[slot]);
+      payload.position(offsets[slot]);
+      return new Frame(payloadTypes[slot], markers[slot], (short) seqs[slot], timestamps[slot], payload);
+   }
+
+   /**
+    * @param id
+    *           the frame id
+    * @return when the frame arrived, as System.nanoTime(), or -1 if it has been evicted
+    */
+   public synchronized long getArrivalNanos(long id) {
+      int slot = slotOf(id);
+      return slot < 0 ? -1 : arrivals[slot];
+   }
+
+   /**
+    * Finds the frame that was live the given time ago.
+    *
+    * @param millisBack
+    *           how far back from now
+    * @return the id of the last frame that arrived at or before that time (the oldest frame if they are all
+    *         newer), or -1 if the buffer is empty
+    */
+   public synchronized long findId(long millisBack) {
+      if (count == 0) {
+         return -1;
+      }
+      long target = System.nanoTime() - millisBack * 1000000L;
+      int lo = 0;
+      int hi = count - 1;
+      while (lo < hi) {
+         int mid = (lo + hi + 1) >>> 1;
+         if (arrivals[(head + mid) % seqs.length] - target <= 0) {
+            lo = mid;
+         } else {
+            hi = mid - 1;
+         }
+      }
+      return nextId - count + lo;
+   }
+
+   private int slotOf(long id) {
+      long oldest = nextId - count;
+      if (id < oldest || id >= nextId) {
+         return -1;
+      }
+      return (int) ((head + (id - oldest)) % seqs.length);
+   }
+
+   /**
+    * @return how many milliseconds of frames are currently buffered.
+    */
+   public synchronized long getBufferedMillis() {
+      if (count == 0) {
+         return 0;
+      }
+      return (arrivals[(head + count - 1) % seqs.length] - arrivals[head]) / 1000000;
+   }
+
+   public int getBudgetBytes() {
+      return slab.capacity();
+   }
+
+   public synchronized int getUsedBytes() {
+      return usedBytes;
+   }
+
+   public long getWindowMillis() {
+      return windowNanos / 1000000;
+   }
+
+   /**
+    * @return a short description of the buffered span and memory use.
+    */
+   public synchronized String summary() {
+      return String.format("Rewind: %.1fs, %.1f of %.1f MB", getBufferedMillis() / 1000.0,
+            usedBytes / 1048576.0, slab.capacity() / 1048576.0);
+   }
+}
@@ -15,23 +15,66 @@ package ubc.cs317.rtsp.client.ui;
 
 import java.awt.BorderLayout;
 import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
+import ubc.cs317.rtsp.client.decode.DecodeGovernor;
+import ubc.cs317.rtsp.client.decode.DecodedImageCache;
+import ubc.cs317.rtsp.client.decode.FrameThinner;
+import ubc.cs317.rtsp.client.decode.JpegDecoder;
+import ubc.cs317.rtsp.client.decode.PlayoutDelayController;
+import ubc.cs317.rtsp.client.decode.PresentationClock;
+import ubc.cs317.rtsp.client.decode.PresentationScheduler;
 import ubc.cs317.rtsp.client.exception.RTSPException;
 import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.Playlist;
 import ubc.cs317.rtsp.client.model.Session;
 import ubc.cs317.rtsp.client.model.listener.SessionListener;
+import ubc.cs317.rtsp.client.net.RTSPConStats;
+import ubc.cs317.rtsp.client.record.RewindBuffer;
 
 public class MainWindow extends JFrame implements SessionListener {
 
+	/** The rewind slab is one direct buffer, so it must fit in an int. */
+	private static final int MAX_REWIND_BUDGET_MB = 1024;
+	private static final int REWIND_BUDGET_MB = Math.max(1, Math.min(
+			MAX_REWIND_BUDGET_MB, Integer.getInteger("rtsp.rewind.budgetMB",
+					32)));
+	private static final int REWIND_SECONDS = Integer.getInteger(
+			"rtsp.rewind.seconds", 10);
+	/** Starting playout delay, kept fixed if adaptive playout is turned off. */
+	private static final int PLAYOUT_DELAY_MS = Integer.getInteger(
+			"rtsp.playoutDelayMs", 100);
+	private static final boolean ADAPTIVE_PLAYOUT = Boolean.parseBoolean(
+			System.getProperty("rtsp.adaptivePlayout", "true"));
+	private static final int REPLAY_TICK_MS = 10;
+	private static final long REWIND_STATUS_INTERVAL_MS = 1000;
+
 	private Session session;
+	private Playlist playlist;
+	private JpegDecoder decoder = new JpegDecoder();
+	private DecodeGovernor governor;
+	private FrameThinner thinner = new FrameThinner();
+	private volatile PresentationScheduler presentation;
+	private DecodedImageCache imageCache = new DecodedImageCache();
+	private RewindBuffer rewindBuffer;
+	private Timer replayTimer;
+	private volatile boolean replaying;
+	private volatile boolean firstFrame;
+	private long lastRewindStatus;
 
 	private VideoControlToolbar videoControlToolbar;
 	private JLabel imagePanel;
@@ -63,6 +106,17 @@ public class MainWindow extends JFrame implements SessionListener {
 
 		this.setSize(1024, 600);
 
+		// Get the decoder ready while the user picks a server
+		Thread warmUp = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				decoder.warmUp();
+			}
+		}, "decoder-warm-up");
+		warmUp.setDaemon(true);
+		warmUp.start();
+
 		showOpenDialog();
 	}
 
@@ -75,15 +129,84 @@ public class MainWindow extends JFrame implements SessionListener {
 			return;
 
 		if (this.session != null) {
+			goLive();
+			playlist.stop();
+			playlist = null;
 			this.session.removeSessionListener(this);
+			this.session.removeSessionListener(rewindBuffer);
 			this.session.closeConnection();
+			presentation.shutdown();
+			presentation = null;
+			rewindBuffer = null;
+			governor = null;
+			imageCache.clear();
 		}
 
 		this.session = session;
 
 		if (session != null) {
+			rewindBuffer = new RewindBuffer(
+					(int) (REWIND_BUDGET_MB * 1024L * 1024L), REWIND_SECONDS);
+			session.addSessionListener(rewindBuffer);
+			governor = new DecodeGovernor(session.getStats());
+			presentation = createPresentation();
+			presentation.setStats(session.getStats());
+			playlist = new Playlist(session);
+			playlist.start();
 			session.addSessionListener(this);
 		}
+		videoControlToolbar.refreshState();
+	}
+
+	/**
+	 * Creates the scheduler that presents a session's frames at their
+	 * deadlines. Its presenter thread hands each frame to the event thread,
+	 * which does all the decoding and painting, replay included, so the
+	 * decoder and image cache are only ever used by one thread.
+	 * 
+	 * @return The scheduler, with its presenter thread started.
+	 */
+	private PresentationScheduler createPresentation() {
+		PresentationScheduler scheduler = new PresentationScheduler(
+				new PresentationScheduler.Target() {
+
+					@Override
+					public void present(final Frame frame) {
+						if (replaying)
+							return;
+						try {
+							// Waits, so the frame is still retained and the
+							// time taken painting is measured
+							SwingUtilities.invokeAndWait(new Runnable() {
+
+								@Override
+								public void run() {
+									if (!replaying)
+										showFrame(frame, false);
+								}
+							});
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} catch (InvocationTargetException e) {
+							throw new IllegalStateException(e.getCause());
+						}
+					}
+				}, new PresentationClock(PresentationClock.DEFAULT_CLOCK_RATE,
+						PLAYOUT_DELAY_MS));
+		if (ADAPTIVE_PLAYOUT)
+			scheduler.setDelayController(new PlayoutDelayController(
+					scheduler.getClock(),
+					PresentationClock.DEFAULT_CLOCK_RATE));
+		return scheduler;
+	}
+
+	/**
+	 * Returns the playlist of the current session.
+	 * 
+	 * @return The playlist, or null if there is no session.
+	 */
+	public Playlist getPlaylist() {
+		return playlist;
 	}
 
 	public synchronized void disconnect(boolean showOpenDialog) {
@@ -107,25 +230,266 @@ public class MainWindow extends JFrame implements SessionListener {
 	}
 
 	@Override
-	public void exceptionThrown(RTSPException exception) {
-		JOptionPane.showMessageDialog(this, exception.getMessage());
+	public void exceptionThrown(final RTSPException exception) {
+		// Queued requests fail on the session's request thread
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				JOptionPane.showMessageDialog(MainWindow.this,
+						exception.getMessage());
+			}
+		});
 	}
 
 	@Override
 	public void frameReceived(Frame frame) {
+		updateRewindStatus();
+		// Live frames keep filling the rewind buffer, but aren't shown while
+		// replaying from it
+		if (frame != null && replaying)
+			return;
+		Session session = this.session;
+		PresentationScheduler presentation = this.presentation;
+		if (frame == null) {
+			clearPresentation();
+			showLater(null, false);
+			return;
+		}
+		if (session == null || presentation == null)
+			return;
+		// Fast-forward and rewind only decode as many frames as normal speed
+		if (!thinner.accept(frame, session.getScale())) {
+			session.getStats().frameThinned();
+			return;
+		}
+		if (firstFrame) {
+			firstFrame = false;
+			// Shown straight away for a fast start, but still the base of the
+			// presentation clock for the frames after it
+			presentation.getClock().arrived(frame.getTimestamp(),
+					frame.getArrivalNanos());
+			showLater(frame, true);
+		} else
+			// Shown at its deadline, so network jitter doesn't become judder
+			presentation.submit(frame, session.getScale());
+	}
+
+	/**
+	 * Shows a frame on the event thread, without waiting for it.
+	 * 
+	 * @param frame
+	 *            The frame, retained until it has been shown, or null to clear
+	 *            the picture.
+	 * @param first
+	 *            Whether it is the first frame of a video.
+	 */
+	private void showLater(final Frame frame, final boolean first) {
+		if (frame != null)
+			frame.retain();
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if (frame == null || !replaying)
+						showFrame(frame, first);
+				} finally {
+					if (frame != null)
+						frame.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Decodes and shows a frame. Only called on the event thread.
+	 * 
+	 * @param frame
+	 *            The frame, or null to clear the picture.
+	 * @param first
+	 *            Whether it is the first frame of a video, which goes straight
+	 *            to a full quality decode.
+	 */
+	private void showFrame(Frame frame, boolean first) {
 		if (frame == null)
 			imagePanel.setIcon(null);
 		else {
 
-			Image scaledImage = frame.getImage().getScaledInstance(
-					-imagePanel.getWidth(), imagePanel.getHeight(),
-					Image.SCALE_FAST);
+			DecodeGovernor governor = this.governor;
+			RTSPConStats stats = session == null ? null : session.getStats();
+			int width = imagePanel.getWidth();
+			int height = imagePanel.getHeight();
+			// The first frame of a video goes straight to a full quality
+			// decode, ahead of the cache and the governor
+			if (first)
+				governor = null;
+			int quality = governor == null ? 0 : governor.getLevel();
+			// Identical payloads (static scenes) reuse the previous decode
+			Image scaledImage = first ? null : imageCache.get(frame, width,
+					height, quality);
+			if (scaledImage != null) {
+				if (stats != null)
+					stats.decodeCacheHit();
+				if (imagePanel.getIcon() == null
+						|| ((ImageIcon) imagePanel.getIcon()).getImage() != scaledImage)
+					imagePanel.setIcon(new ImageIcon(scaledImage));
+				return;
+			}
+			if (governor != null && !governor.shouldDecode(frame))
+				return;
+			if (stats != null && !first)
+				stats.decodeCacheMiss();
+			try {
+				// Decode straight to the panel size, at the quality the
+				// governor says we can afford
+				long start = System.nanoTime();
+				BufferedImage decoded;
+				if (governor == null)
+					decoded = decoder.decode(frame, width, height);
+				else {
+					decoded = decoder.decode(frame, width, height,
+							governor.getExtraSubsampling(),
+							governor.isGrayscale());
+					governor.frameDecoded(System.nanoTime() - start);
+				}
+				scaledImage = imageCache.put(frame, width, height, quality,
+						decoded);
+			} catch (IOException e) {
+				// Not something ImageIO can read, let the toolkit try
+				scaledImage = frame.getImage().getScaledInstance(
+						-imagePanel.getWidth(), imagePanel.getHeight(),
+						Image.SCALE_FAST);
+			}
 			imagePanel.setIcon(new ImageIcon(scaledImage));
+			if (stats != null)
+				stats.frameShown();
+		}
+	}
+
+	private void updateRewindStatus() {
+		RewindBuffer buffer = rewindBuffer;
+		long now = System.currentTimeMillis();
+		if (buffer == null || now - lastRewindStatus < REWIND_STATUS_INTERVAL_MS)
+			return;
+		lastRewindStatus = now;
+		videoControlToolbar.setRewindStatus(buffer.summary());
+	}
+
+	/**
+	 * Returns how far back the rewind buffer is configured to go.
+	 * 
+	 * @return The rewind window, in milliseconds.
+	 */
+	public long getRewindWindowMillis() {
+		return REWIND_SECONDS * 1000L;
+	}
+
+	/**
+	 * Shows the frame that was live the given time ago, from the rewind
+	 * buffer, and holds it until replay or goLive is called.
+	 * 
+	 * @param millisBack
+	 *            How far back from the live frame.
+	 */
+	public void scrub(long millisBack) {
+		if (rewindBuffer == null)
+			return;
+		stopReplayTimer();
+		long id = rewindBuffer.findId(millisBack);
+		Frame frame = rewindBuffer.getFrame(id);
+		if (frame == null)
+			return;
+		replaying = true;
+		clearPresentation();
+		showFrame(frame, false);
+	}
+
+	/**
+	 * Replays the rewind buffer from the given time ago up to the frame that
+	 * is live now, at the pace the frames originally arrived, then returns to
+	 * the live stream. Reception continues in the background meanwhile.
+	 * 
+	 * @param millisBack
+	 *            How far back from the live frame to start.
+	 */
+	public void replay(long millisBack) {
+		final RewindBuffer buffer = rewindBuffer;
+		if (buffer == null)
+			return;
+		stopReplayTimer();
+		final long firstId = buffer.findId(millisBack);
+		final long lastId = buffer.getNewestId();
+		final long firstArrival = buffer.getArrivalNanos(firstId);
+		if (firstId < 0 || firstArrival < 0)
+			return;
+		final long start = System.nanoTime();
+		replaying = true;
+		clearPresentation();
+		replayTimer = new Timer(REPLAY_TICK_MS, new ActionListener() {
+
+			private long nextId = firstId;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				long elapsed = System.nanoTime() - start;
+				Frame due = null;
+				while (nextId <= lastId) {
+					long arrival = buffer.getArrivalNanos(nextId);
+					if (arrival < 0) {
+						// Evicted while replaying, skip ahead
+						nextId = Math.max(nextId + 1, buffer.getOldestId());
+						continue;
+					}
+					if (arrival - firstArrival > elapsed)
+						break;
+					due = buffer.getFrame(nextId++);
+				}
+				if (due != null)
+					showFrame(due, false);
+				if (nextId > lastId)
+					goLive();
+			}
+		});
+		replayTimer.start();
+	}
+
+	/**
+	 * Stops any replay or scrubbing and goes back to showing live frames.
+	 */
+	public void goLive() {
+		stopReplayTimer();
+		replaying = false;
+		videoControlToolbar.showLive();
+	}
+
+	/**
+	 * Drops the live frames waiting for their deadlines, eg. when replay
+	 * takes over the picture.
+	 */
+	private void clearPresentation() {
+		PresentationScheduler presentation = this.presentation;
+		if (presentation != null)
+			presentation.clear();
+	}
+
+	private void stopReplayTimer() {
+		if (replayTimer != null) {
+			replayTimer.stop();
+			replayTimer = null;
 		}
 	}
 
 	@Override
 	public void videoNameChanged(String videoName) {
+		firstFrame = videoName != null;
+		thinner.reset();
+		clearPresentation();
+		// A playlist switch moves the session onto a new connection, with its
+		// own stats
+		Session session = this.session;
+		if (videoName != null && session != null && governor != null)
+			governor = new DecodeGovernor(session.getStats());
 		if (videoName==null)
 			videoNamePanel.setText("(click open to select a video)");
 		else
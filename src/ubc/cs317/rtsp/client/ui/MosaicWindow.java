@@ -0,0 +1,346 @@
+package ubc.cs317.rtsp.client.ui;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GridLayout;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import ubc.cs317.rtsp.client.cli.StreamTarget;
+import ubc.cs317.rtsp.client.decode.DecodeScheduler;
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.model.listener.SessionListener;
+import ubc.cs317.rtsp.client.net.ChannelPool;
+
+/**
+ * Shows many streams at once in a scrollable grid of tiles. <br/>
+ * All tiles share one DecodeScheduler, so the number of decode threads is bounded no matter how many streams
+ * are open, and each tile only ever has its latest frame waiting. Frames are decoded to the tile's size;
+ * frames of tiles scrolled out of view, or too small to show anything, are not decoded at all. Painting is
+ * driven by a single Swing timer that repaints only the tiles with a new image since the last tick. With -m,
+ * tiles on the same server share one control connection.
+ *
+ * <pre>
+ * usage: MosaicWindow [-t decodeThreads] [-m] host:port/video [host:port/video ...]
+ * </pre>
+ */
+public class MosaicWindow extends JFrame {
+   private static final int RENDER_TICK_MS = 33;
+   private static final int STATUS_INTERVAL_MS = 1000;
+   private static final int MIN_DECODE_SIZE = 24;
+   private static final int OPEN_THREADS = 8;
+   private static final Dimension TILE_SIZE = new Dimension(240, 180);
+
+   private final DecodeScheduler scheduler;
+   private final List<Tile> tiles = new ArrayList<Tile>();
+   private final ExecutorService opener;
+   private final ChannelPool channels;
+   private final Timer renderTimer;
+   private long lastStatus;
+
+   /**
+    * Creates the window and starts opening every target in the background.
+    *
+    * @param targets
+    *           the streams to show
+    * @param decodeThreads
+    *           size of the shared decode pool
+    * @param channels
+    *           where control connections shared between tiles come from, or null for one connection per tile
+    */
+   public MosaicWindow(List<StreamTarget> targets, int decodeThreads, ChannelPool channels) {
+      super("Video Mosaic");
+      this.channels = channels;
+      scheduler = new DecodeScheduler(decodeThreads, targets.size());
+      opener = Executors.newFixedThreadPool(Math.min(OPEN_THREADS, Math.max(1, targets.size())));
+
+      int cols = (int) Math.ceil(Math.sqrt(targets.size()));
+      JPanel grid = new JPanel(new GridLayout(0, Math.max(1, cols), 2, 2));
+      grid.setBackground(Color.DARK_GRAY);
+      for (StreamTarget target : targets) {
+         Tile tile = new Tile(target);
+         tiles.add(tile);
+         grid.add(tile);
+      }
+      add(new JScrollPane(grid));
+
+      setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+      addWindowListener(new WindowAdapter() {
+         @Override
+         public void windowClosing(WindowEvent e) {
+            shutdown();
+         }
+      });
+
+      renderTimer = new Timer(RENDER_TICK_MS, new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            renderTick();
+         }
+      });
+
+      pack();
+      setVisible(true);
+      renderTimer.start();
+      for (final Tile tile : tiles) {
+         opener.execute(new Runnable() {
+            @Override
+            public void run() {
+               tile.open();
+            }
+         });
+      }
+   }
+
+   /**
+    * Publishes each tile's current decode size and repaints the tiles that received a new image. Runs on the
+    * event dispatch thread, so tile geometry is read safely here rather than on the decode workers.
+    */
+   private void renderTick() {
+      for (Tile tile : tiles) {
+         tile.updateDecodeSize();
+         if (tile.takeDirty()) {
+            tile.repaint();
+         }
+      }
+      long now = System.currentTimeMillis();
+      if (now - lastStatus >= STATUS_INTERVAL_MS) {
+         lastStatus = now;
+         setTitle("Video Mosaic - " + tiles.size() + " streams - " + scheduler.summary());
+      }
+   }
+
+   private void shutdown() {
+      renderTimer.stop();
+      opener.shutdownNow();
+      dispose();
+      // Closing sends a TEARDOWN per session, keep it off the event dispatch thread
+      new Thread(new Runnable() {
+         @Override
+         public void run() {
+            for (Tile tile : tiles) {
+               tile.close();
+            }
+            scheduler.shutdown();
+            System.out.println(scheduler.summary());
+            if (channels != null) {
+               System.out.println(channels.summary());
+               channels.close();
+            }
+            System.exit(0);
+         }
+      }, "mosaic-shutdown").start();
+   }
+
+   /**
+    * One stream of the mosaic. Decoded images are copied into a tile-owned back buffer and swapped with the
+    * front buffer under the tile's lock, which painting also holds.
+    */
+   private class Tile extends JComponent implements SessionListener, DecodeScheduler.Target {
+      private final StreamTarget target;
+      private final DecodeScheduler.Slot slot;
+      private Session session;
+      private volatile int decodeWidth;
+      private volatile int decodeHeight;
+      private volatile String status = "connecting";
+      private volatile boolean dirty;
+      private BufferedImage front;
+      private BufferedImage back;
+
+      Tile(StreamTarget target) {
+         this.target = target;
+         this.slot = scheduler.newSlot(this);
+         setPreferredSize(TILE_SIZE);
+         setOpaque(true);
+         setBackground(Color.BLACK);
+      }
+
+      void open() {
+         try {
+            Session s;
+            if (channels != null) {
+               s = new Session(channels.get(target.host, target.port));
+            } else {
+               s = new Session(target.host, target.port);
+            }
+            synchronized (this) {
+               session = s;
+            }
+            s.getStats().setReportOnEnd(false);
+            s.addSessionListener(this);
+            s.openAndPlay(target.video);
+            setStatus(null);
+         } catch (RTSPException e) {
+            setStatus(e.getMessage());
+         }
+      }
+
+      void close() {
+         Session s;
+         synchronized (this) {
+            s = session;
+         }
+         if (s == null) {
+            return;
+         }
+         try {
+            s.close();
+         } catch (RTSPException e) {
+         } finally {
+            s.closeConnection();
+            slot.clear();
+         }
+      }
+
+      private void setStatus(String status) {
+         this.status = status;
+         dirty = true;
+      }
+
+      void updateDecodeSize() {
+         Rectangle visible = getVisibleRect();
+         if (visible.isEmpty() || getWidth() < MIN_DECODE_SIZE || getHeight() < MIN_DECODE_SIZE) {
+            decodeWidth = 0;
+            decodeHeight = 0;
+         } else {
+            decodeWidth = getWidth();
+            decodeHeight = getHeight();
+         }
+      }
+
+      boolean takeDirty() {
+         if (!dirty) {
+            return false;
+         }
+         dirty = false;
+         return true;
+      }
+
+      @Override
+      public int getDecodeWidth() {
+         return decodeWidth;
+      }
+
+      @Override
+      public int getDecodeHeight() {
+         return decodeHeight;
+      }
+
+      @Override
+      public void frameDecoded(Frame frame, BufferedImage image) {
+         synchronized (this) {
+            if (back == null || back.getWidth() != image.getWidth() || back.getHeight() != image.getHeight()) {
+               back = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            }
+            Graphics2D g = back.createGraphics();
+            try {
+               g.drawImage(image, 0, 0, null);
+            } finally {
+               g.dispose();
+            }
+            BufferedImage shown = front;
+            front = back;
+            back = shown;
+         }
+         dirty = true;
+      }
+
+      @Override
+      public void frameSkipped(Frame frame) {
+         Session s;
+         synchronized (this) {
+            s = session;
+         }
+         if (s != null) {
+            s.getStats().decodeSkipped();
+         }
+      }
+
+      @Override
+      public void frameReceived(Frame frame) {
+         if (frame == null) {
+            slot.clear();
+            synchronized (this) {
+               front = null;
+            }
+            dirty = true;
+         } else {
+            slot.submit(frame);
+         }
+      }
+
+      @Override
+      public void exceptionThrown(RTSPException exception) {
+         setStatus(exception.getMessage());
+      }
+
+      @Override
+      public void videoNameChanged(String videoName) {
+         dirty = true;
+      }
+
+      @Override
+      protected void paintComponent(Graphics g) {
+         g.setColor(getBackground());
+         g.fillRect(0, 0, getWidth(), getHeight());
+         synchronized (this) {
+            if (front != null) {
+               g.drawImage(front, (getWidth() - front.getWidth()) / 2, (getHeight() - front.getHeight()) / 2, null);
+            }
+         }
+         g.setColor(Color.WHITE);
+         String s = status;
+         g.drawString(s == null ? target.spec : target.spec + ": " + s, 4, getHeight() - 4);
+      }
+   }
+
+   public static void main(String[] args) {
+      int threads = DecodeScheduler.defaultThreads();
+      boolean multiplex = false;
+      final List<StreamTarget> targets = new ArrayList<StreamTarget>();
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-t") && i + 1 < args.length) {
+            threads = Integer.parseInt(args[++i]);
+         } else if (args[i].equals("-m")) {
+            multiplex = true;
+         } else {
+            try {
+               targets.add(StreamTarget.parse(args[i]));
+            } catch (IllegalArgumentException e) {
+               System.err.println(args[i] + ": " + e.getMessage());
+            }
+         }
+      }
+      if (targets.isEmpty()) {
+         System.err.println("usage: MosaicWindow [-t decodeThreads] [-m] host:port/video [host:port/video ...]");
+         System.exit(1);
+      }
+      final int decodeThreads = threads;
+      final ChannelPool channels = multiplex ? new ChannelPool() : null;
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            new MosaicWindow(targets, decodeThreads, channels);
+         }
+      });
+   }
+}
@@ -37,6 +37,8 @@ import ubc.cs317.rtsp.client.model.Session;
 
 public class SelectServerDialog extends JFrame implements ActionListener {
 
+	private static final String LOCAL_PREFIX = "file:";
+
 	private MainWindow mainWindow;
 
 	private JLabel jidServerLabel, portLabel;
@@ -112,8 +114,15 @@ public class SelectServerDialog extends JFrame implements ActionListener {
 
 			saveInfo();
 
-			Session session = new Session(jidServerField.getText(),
-					Integer.parseInt(portField.getText()));
+			// "file:<directory>" plays back local recordings instead
+			String server = jidServerField.getText();
+			Session session;
+			if (server.startsWith(LOCAL_PREFIX))
+				session = new Session(new File(server.substring(LOCAL_PREFIX
+						.length())));
+			else
+				session = new Session(server, Integer.parseInt(portField
+						.getText()));
 			mainWindow.setSession(session);
 			this.setVisible(false);
 			mainWindow.setVisible(true);
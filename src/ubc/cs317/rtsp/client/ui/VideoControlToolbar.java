@@ -17,17 +17,46 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
 import javax.swing.JButton;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
+import javax.swing.JSlider;
 import javax.swing.JToolBar;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
-import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Playlist;
+import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.net.StreamConnection.State;
 
+/**
+ * Playback controls. Requests are queued on the session without waiting for
+ * the server: the buttons switch to the expected state straight away, and are
+ * reconciled with the actual state once every queued request has completed
+ * (failures are reported by the session listeners).
+ */
 public class VideoControlToolbar extends JToolBar {
 
+	private static final int STATE_REFRESH_MS = 500;
+	private static final double MAX_SCALE = 8;
+	/** Open starts playing right away, see Session.openAndPlay. */
+	private static final boolean FAST_START = Boolean
+			.getBoolean("rtsp.fastStart");
+
 	private MainWindow main;
 	private JButton openButton, playButton, pauseButton;
 	private JButton closeButton;
+	private JButton queueButton, nextButton;
+	private JButton rewindButton, normalSpeedButton, fastForwardButton;
+	private JButton seekButton;
 	private JButton disconnectButton;
+	private JButton replayButton, liveButton;
+	private JSlider rewindSlider;
+	private JLabel rewindLabel;
+	private JLabel stateLabel;
+	private boolean updatingSlider;
+	private int pendingRequests;
 
 	public VideoControlToolbar(MainWindow mainWindow) {
 
@@ -40,13 +69,14 @@ public class VideoControlToolbar extends JToolBar {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				try {
-					String videoName = JOptionPane
-							.showInputDialog("Video file:");
-					if (videoName != null)
-						main.getSession().open(videoName);
-				} catch (RTSPException ex) {
-					JOptionPane.showMessageDialog(main, ex.getMessage());
+				String videoName = JOptionPane.showInputDialog("Video file:");
+				Session session = main.getSession();
+				if (videoName != null && session != null && FAST_START) {
+					requestSent(State.PLAYING);
+					session.openAndPlayAsync(videoName, reconcile(session));
+				} else if (videoName != null && session != null) {
+					requestSent(State.READY);
+					session.openAsync(videoName, reconcile(session));
 				}
 			}
 		});
@@ -59,10 +89,10 @@ public class VideoControlToolbar extends JToolBar {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				try {
-					main.getSession().play();
-				} catch (RTSPException ex) {
-					JOptionPane.showMessageDialog(main, ex.getMessage());
+				Session session = main.getSession();
+				if (session != null) {
+					requestSent(State.PLAYING);
+					session.playAsync(reconcile(session));
 				}
 			}
 		});
@@ -73,10 +103,10 @@ public class VideoControlToolbar extends JToolBar {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				try {
-					main.getSession().pause();
-				} catch (RTSPException ex) {
-					JOptionPane.showMessageDialog(main, ex.getMessage());
+				Session session = main.getSession();
+				if (session != null) {
+					requestSent(State.READY);
+					session.pauseAsync(reconcile(session));
 				}
 			}
 		});
@@ -84,15 +114,73 @@ public class VideoControlToolbar extends JToolBar {
 
 		this.addSeparator();
 
+		// Trick-play: each press doubles the speed, up to 8x, in either
+		// direction
+		rewindButton = new JButton("<<");
+		rewindButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeScale(-1);
+			}
+		});
+		this.add(rewindButton);
+
+		normalSpeedButton = new JButton("1x");
+		normalSpeedButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeScale(0);
+			}
+		});
+		this.add(normalSpeedButton);
+
+		fastForwardButton = new JButton(">>");
+		fastForwardButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeScale(1);
+			}
+		});
+		this.add(fastForwardButton);
+
+		seekButton = new JButton("Seek");
+		seekButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				String seconds = JOptionPane
+						.showInputDialog("Seek to (seconds):");
+				Session session = main.getSession();
+				if (seconds == null || session == null)
+					return;
+				try {
+					long millis = Math.round(Double.parseDouble(seconds
+							.trim()) * 1000);
+					main.goLive();
+					pendingRequests++;
+					session.seekAsync(millis, reconcile(session));
+				} catch (NumberFormatException ex) {
+					JOptionPane.showMessageDialog(main, "Not a number: "
+							+ seconds);
+				}
+			}
+		});
+		this.add(seekButton);
+
+		this.addSeparator();
+
 		closeButton = new JButton("Close");
 		closeButton.addActionListener(new ActionListener() {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				try {
-					main.getSession().close();
-				} catch (RTSPException ex) {
-					JOptionPane.showMessageDialog(main, ex.getMessage());
+				Session session = main.getSession();
+				if (session != null) {
+					requestSent(State.INIT);
+					session.closeAsync(reconcile(session));
 				}
 			}
 		});
@@ -100,6 +188,83 @@ public class VideoControlToolbar extends JToolBar {
 
 		this.addSeparator();
 
+		// Playlist: queued videos are set up ahead and played back to back
+		queueButton = new JButton("Queue");
+		queueButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				String videoName = JOptionPane
+						.showInputDialog("Play next:");
+				Playlist playlist = main.getPlaylist();
+				if (videoName != null && playlist != null)
+					playlist.add(videoName);
+			}
+		});
+		this.add(queueButton);
+
+		nextButton = new JButton("Next");
+		nextButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				Playlist playlist = main.getPlaylist();
+				if (playlist != null)
+					playlist.next();
+			}
+		});
+		this.add(nextButton);
+
+		this.addSeparator();
+
+		// Rewind: slider from the oldest buffered frame (left) to live (right)
+		final int window = (int) main.getRewindWindowMillis();
+		rewindSlider = new JSlider(0, window, window);
+		rewindSlider.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				if (updatingSlider)
+					return;
+				if (rewindSlider.getValue() == window)
+					main.goLive();
+				else
+					main.scrub(window - rewindSlider.getValue());
+			}
+		});
+		this.add(rewindSlider);
+
+		replayButton = new JButton("Replay");
+		replayButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				int back = window - rewindSlider.getValue();
+				main.replay(back == 0 ? window : back);
+			}
+		});
+		this.add(replayButton);
+
+		liveButton = new JButton("Live");
+		liveButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				main.goLive();
+			}
+		});
+		this.add(liveButton);
+
+		rewindLabel = new JLabel();
+		this.add(rewindLabel);
+
+		this.addSeparator();
+
+		stateLabel = new JLabel();
+		this.add(stateLabel);
+
+		this.addSeparator();
+
 		disconnectButton = new JButton("Disconnect");
 		disconnectButton.addActionListener(new ActionListener() {
 
@@ -109,5 +274,126 @@ public class VideoControlToolbar extends JToolBar {
 			}
 		});
 		this.add(disconnectButton);
+
+		// Catches changes no request was made for, such as a recording
+		// reaching its end
+		new Timer(STATE_REFRESH_MS, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				refreshState();
+			}
+		}).start();
+		refreshState();
+	}
+
+	/**
+	 * Steps the playback speed: 2x, 4x, 8x in the given direction, or back
+	 * to 1x for direction 0.
+	 */
+	private void changeScale(int direction) {
+		Session session = main.getSession();
+		if (session == null)
+			return;
+		double current = session.getScale();
+		double scale = 1;
+		if (direction != 0) {
+			boolean sameWay = current * direction > 1;
+			scale = direction
+					* (sameWay ? Math.min(MAX_SCALE, Math.abs(current) * 2) : 2);
+		}
+		pendingRequests++;
+		session.setScaleAsync(scale, reconcile(session));
+	}
+
+	/**
+	 * Shows the state a request is expected to lead to, before it is sent.
+	 */
+	private void requestSent(State expected) {
+		pendingRequests++;
+		showState(expected, true);
+	}
+
+	/**
+	 * Returns a callback, run on the session's request thread, that goes back
+	 * to the event dispatch thread once the request has completed.
+	 */
+	private Runnable reconcile(final Session session) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				SwingUtilities.invokeLater(new Runnable() {
+
+					@Override
+					public void run() {
+						pendingRequests--;
+						if (main.getSession() == session)
+							refreshState();
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * Shows the actual state of the session, unless requests are still
+	 * pending (their expected state is shown meanwhile).
+	 */
+	public void refreshState() {
+		if (pendingRequests > 0)
+			return;
+		Session session = main.getSession();
+		showState(session == null ? null : session.getState(), false);
+	}
+
+	private void showState(State state, boolean pending) {
+		openButton.setEnabled(state == State.INIT);
+		playButton.setEnabled(state == State.READY);
+		pauseButton.setEnabled(state == State.PLAYING);
+		closeButton.setEnabled(state == State.READY
+				|| state == State.PLAYING);
+		queueButton.setEnabled(state == State.READY
+				|| state == State.PLAYING);
+		Session session = main.getSession();
+		nextButton.setEnabled(session != null
+				&& session.getNextVideoName() != null);
+		boolean open = state == State.READY || state == State.PLAYING;
+		rewindButton.setEnabled(open);
+		normalSpeedButton.setEnabled(open);
+		fastForwardButton.setEnabled(open);
+		seekButton.setEnabled(open);
+		String text = state == null ? "" : state == State.INIT ? "No video"
+				: state == State.READY ? "Paused" : "Playing";
+		double scale = session == null ? 1 : session.getScale();
+		if (open && scale != 1)
+			text += String.format(" %sx", scale == Math.rint(scale) ? String
+					.valueOf((long) scale) : String.valueOf(scale));
+		stateLabel.setText(" " + text + (pending ? "..." : "") + " ");
+	}
+
+	/**
+	 * Moves the rewind slider back to live, without scrubbing.
+	 */
+	public void showLive() {
+		updatingSlider = true;
+		rewindSlider.setValue(rewindSlider.getMaximum());
+		updatingSlider = false;
+	}
+
+	/**
+	 * Shows how much is buffered for rewinding and the memory it uses.
+	 * 
+	 * @param status
+	 *            A short status text.
+	 */
+	public void setRewindStatus(final String status) {
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				rewindLabel.setText(" " + status + " ");
+			}
+		});
 	}
 }
@@ -0,0 +1,27 @@
+package ubc.cs317.rtsp.proxy;
+
+import java.util.Random;
+
+/**
+ * Independent loss: every packet is dropped with the same probability.
+ */
+public class BernoulliLoss implements LossModel {
+   private final Random random;
+   private final double p;
+
+   /**
+    * @param random
+    *           source of randomness, seeded by the profile so runs are reproducible
+    * @param p
+    *           probability that any given packet is dropped
+    */
+   public BernoulliLoss(Random random, double p) {
+      this.random = random;
+      this.p = p;
+   }
+
+   @Override
+   public boolean shouldDrop() {
+      return p > 0 && random.nextDouble() < p;
+   }
+}
@@ -0,0 +1,47 @@
+package ubc.cs317.rtsp.proxy;
+
+import java.util.Random;
+
+/**
+ * Two state (Good/Bad) Markov loss model, which produces the bursty loss seen on congested links. <br/>
+ * On each packet the channel first moves between states, then drops the packet with the loss
+ * probability of the state it is in.
+ */
+public class GilbertElliottLoss implements LossModel {
+   private final Random random;
+   private final double pGoodToBad;
+   private final double pBadToGood;
+   private final double lossGood;
+   private final double lossBad;
+   private boolean bad;
+
+   /**
+    * @param random
+    *           source of randomness, seeded by the profile so runs are reproducible
+    * @param pGoodToBad
+    *           probability of moving from the Good to the Bad state
+    * @param pBadToGood
+    *           probability of moving from the Bad to the Good state
+    * @param lossGood
+    *           probability of dropping a packet while in the Good state
+    * @param lossBad
+    *           probability of dropping a packet while in the Bad state
+    */
+   public GilbertElliottLoss(Random random, double pGoodToBad, double pBadToGood, double lossGood, double lossBad) {
+      this.random = random;
+      this.pGoodToBad = pGoodToBad;
+      this.pBadToGood = pBadToGood;
+      this.lossGood = lossGood;
+      this.lossBad = lossBad;
+   }
+
+   @Override
+   public boolean shouldDrop() {
+      if (bad) {
+         bad = random.nextDouble() >= pBadToGood;
+      } else {
+         bad = random.nextDouble() < pGoodToBad;
+      }
+      return random.nextDouble() < (bad ? lossBad : lossGood);
+   }
+}
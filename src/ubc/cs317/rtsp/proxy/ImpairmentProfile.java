@@ -0,0 +1,239 @@
+package ubc.cs317.rtsp.proxy;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * A scripted set of network impairments applied by the ImpairmentProxy to the RTP stream. <br/>
+ * Profiles are either one of the built in presets (NONE, A-H, roughly reproducing the FUNKY servers
+ * as recorded in funky_stats.txt) or a properties file using the keys below:
+ *
+ * <pre>
+ * seed                    RNG seed, so that a run can be reproduced exactly
+ * loss.model              none | bernoulli | gilbert
+ * loss.p                  bernoulli drop probability
+ * loss.gilbert.p          Good -> Bad transition probability
+ * loss.gilbert.r          Bad -> Good transition probability
+ * loss.gilbert.good       drop probability while Good
+ * loss.gilbert.bad        drop probability while Bad
+ * reorder.probability     probability that a packet is held back
+ * reorder.depth           number of later packets sent before a held back one
+ * delay.ms                constant added delay
+ * jitter.distribution     none | uniform | normal | exponential
+ * jitter.ms               jitter scale (range, std deviation or mean, per distribution)
+ * duplicate.probability   probability that a packet is sent twice
+ * burst.size              packets are held and released in groups of this size
+ * rate.bytesPerSecond     egress cap, 0 for unlimited
+ * rate.packetsPerSecond   egress cap, 0 for unlimited
+ * rate.maxQueueMs         packets that would wait longer than this behind the cap are dropped
+ * </pre>
+ */
+public class ImpairmentProfile {
+
+   public enum Jitter {
+      NONE, UNIFORM, NORMAL, EXPONENTIAL;
+   }
+
+   public String name = "NONE";
+   public long seed = 317;
+   public String lossModel = "none";
+   public double lossP;
+   public double gilbertP;
+   public double gilbertR = 1;
+   public double gilbertLossGood;
+   public double gilbertLossBad = 1;
+   public double reorderProbability;
+   public int reorderDepth;
+   public long delayMs;
+   public Jitter jitter = Jitter.NONE;
+   public double jitterMs;
+   public double duplicateProbability;
+   public int burstSize = 1;
+   public long rateBytesPerSecond;
+   public double ratePacketsPerSecond;
+   public long rateMaxQueueMs = 1000;
+
+   /**
+    * Creates a LossModel for this profile.
+    *
+    * @param random
+    *           the profile's seeded random source
+    * @return the configured LossModel
+    */
+   public LossModel createLossModel(Random random) {
+      if ("bernoulli".equalsIgnoreCase(lossModel)) {
+         return new BernoulliLoss(random, lossP);
+      } else if ("gilbert".equalsIgnoreCase(lossModel)) {
+         return new GilbertElliottLoss(random, gilbertP, gilbertR, gilbertLossGood, gilbertLossBad);
+      }
+      return new BernoulliLoss(random, 0);
+   }
+
+   /**
+    * Draws one jitter sample, in milliseconds, from the configured distribution. Never negative.
+    *
+    * @param random
+    *           the profile's seeded random source
+    * @return the extra delay to apply to a packet
+    */
+   public double sampleJitterMs(Random random) {
+      double sample;
+      switch (jitter) {
+      case UNIFORM:
+         sample = random.nextDouble() * jitterMs;
+         break;
+      case NORMAL:
+         sample = Math.abs(random.nextGaussian() * jitterMs);
+         break;
+      case EXPONENTIAL:
+         sample = -Math.log(1 - random.nextDouble()) * jitterMs;
+         break;
+      default:
+         sample = 0;
+      }
+      return sample;
+   }
+
+   /**
+    * Resolves a profile argument, which is either a preset name or the path to a properties file.
+    *
+    * @param nameOrPath
+    *           preset name (NONE, A-H) or properties file path
+    * @return the loaded profile
+    * @throws IOException
+    *            if the argument isn't a preset and the file cannot be read
+    */
+   public static ImpairmentProfile resolve(String nameOrPath) throws IOException {
+      ImpairmentProfile preset = preset(nameOrPath);
+      if (preset != null) {
+         return preset;
+      }
+      Properties props = new Properties();
+      InputStream in = new FileInputStream(nameOrPath);
+      try {
+         props.load(in);
+      } finally {
+         in.close();
+      }
+      ImpairmentProfile p = fromProperties(props);
+      p.name = nameOrPath;
+      return p;
+   }
+
+   /**
+    * Builds a profile from properties, starting from an unimpaired profile. If the properties contain a
+    * "preset" key, that preset is used as the starting point instead.
+    *
+    * @param props
+    *           profile properties, see class documentation for the keys
+    * @return the profile
+    */
+   public static ImpairmentProfile fromProperties(Properties props) {
+      ImpairmentProfile p = null;
+      if (props.getProperty("preset") != null) {
+         p = preset(props.getProperty("preset"));
+      }
+      if (p == null) {
+         p = new ImpairmentProfile();
+      }
+      p.seed = Long.parseLong(props.getProperty("seed", String.valueOf(p.seed)));
+      p.lossModel = props.getProperty("loss.model", p.lossModel);
+      p.lossP = getDouble(props, "loss.p", p.lossP);
+      p.gilbertP = getDouble(props, "loss.gilbert.p", p.gilbertP);
+      p.gilbertR = getDouble(props, "loss.gilbert.r", p.gilbertR);
+      p.gilbertLossGood = getDouble(props, "loss.gilbert.good", p.gilbertLossGood);
+      p.gilbertLossBad = getDouble(props, "loss.gilbert.bad", p.gilbertLossBad);
+      p.reorderProbability = getDouble(props, "reorder.probability", p.reorderProbability);
+      p.reorderDepth = (int) getDouble(props, "reorder.depth", p.reorderDepth);
+      p.delayMs = (long) getDouble(props, "delay.ms", p.delayMs);
+      p.jitter = Jitter.valueOf(props.getProperty("jitter.distribution", p.jitter.name()).toUpperCase());
+      p.jitterMs = getDouble(props, "jitter.ms", p.jitterMs);
+      p.duplicateProbability = getDouble(props, "duplicate.probability", p.duplicateProbability);
+      p.burstSize = Math.max(1, (int) getDouble(props, "burst.size", p.burstSize));
+      p.rateBytesPerSecond = (long) getDouble(props, "rate.bytesPerSecond", p.rateBytesPerSecond);
+      p.ratePacketsPerSecond = getDouble(props, "rate.packetsPerSecond", p.ratePacketsPerSecond);
+      p.rateMaxQueueMs = (long) getDouble(props, "rate.maxQueueMs", p.rateMaxQueueMs);
+      return p;
+   }
+
+   private static double getDouble(Properties props, String key, double def) {
+      String v = props.getProperty(key);
+      return v == null ? def : Double.parseDouble(v.trim());
+   }
+
+   /**
+    * Built in profiles. A-H are approximations of the FUNKY servers, tuned so that the client's
+    * RTSPConStats report roughly matches funky_stats.txt for a ~30 f/s source.
+    *
+    * @param name
+    *           preset name, case insensitive
+    * @return a new profile, or null if there is no preset with that name
+    */
+   public static ImpairmentProfile preset(String name) {
+      ImpairmentProfile p = new ImpairmentProfile();
+      p.name = name.toUpperCase();
+      if (p.name.equals("NONE")) {
+         return p;
+      } else if (p.name.equals("A")) {
+         // Mild reordering, no loss
+         p.reorderProbability = 0.15;
+         p.reorderDepth = 1;
+      } else if (p.name.equals("B")) {
+         // Bursty loss with moderate reordering
+         p.lossModel = "gilbert";
+         p.gilbertP = 0.05;
+         p.gilbertR = 0.4;
+         p.gilbertLossBad = 0.8;
+         p.reorderProbability = 0.25;
+         p.reorderDepth = 2;
+      } else if (p.name.equals("C")) {
+         // Heavy reordering plus random loss
+         p.lossModel = "bernoulli";
+         p.lossP = 0.2;
+         p.reorderProbability = 0.5;
+         p.reorderDepth = 3;
+      } else if (p.name.equals("D")) {
+         // Halved rate with loss and reordering
+         p.lossModel = "bernoulli";
+         p.lossP = 0.2;
+         p.reorderProbability = 0.4;
+         p.reorderDepth = 2;
+         p.ratePacketsPerSecond = 15;
+         p.rateMaxQueueMs = 200;
+      } else if (p.name.equals("E")) {
+         // Every packet duplicated, heavily shuffled
+         p.duplicateProbability = 1.0;
+         p.lossModel = "bernoulli";
+         p.lossP = 0.2;
+         p.jitter = Jitter.UNIFORM;
+         p.jitterMs = 60;
+      } else if (p.name.equals("F")) {
+         // Rate capped, otherwise clean
+         p.ratePacketsPerSecond = 12;
+         p.rateMaxQueueMs = 200;
+      } else if (p.name.equals("G")) {
+         // Rate capped with jittery delivery
+         p.ratePacketsPerSecond = 10;
+         p.rateMaxQueueMs = 200;
+         p.jitter = Jitter.EXPONENTIAL;
+         p.jitterMs = 20;
+      } else if (p.name.equals("H")) {
+         // Packets delivered in bursts
+         p.delayMs = 100;
+         p.burstSize = 5;
+      } else {
+         return null;
+      }
+      return p;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%s (seed=%d, loss=%s, reorder=%.2f/%d, delay=%dms, jitter=%s/%.1fms, dup=%.2f, "
+            + "burst=%d, rate=%dB/s %.1fpkt/s)", name, seed, lossModel, reorderProbability, reorderDepth, delayMs,
+            jitter, jitterMs, duplicateProbability, burstSize, rateBytesPerSecond, ratePacketsPerSecond);
+   }
+}
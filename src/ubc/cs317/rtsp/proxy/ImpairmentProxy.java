@@ -0,0 +1,142 @@
+package ubc.cs317.rtsp.proxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local RTSP/RTP proxy that impairs the RTP stream according to an ImpairmentProfile, so that the client's
+ * loss and reorder handling can be exercised reproducibly without the FUNKY servers. <br/>
+ * Point the client at the proxy's port. RTSP requests are relayed to the real server with the Transport
+ * header's client_port rewritten to a relay socket; RTP from the server then goes through the relay.
+ *
+ * <pre>
+ * usage: ImpairmentProxy listenPort serverHost serverPort [preset|profile.properties]
+ * </pre>
+ */
+public class ImpairmentProxy {
+   private static final String CRLF = "\r\n";
+   private static final Pattern CLIENT_PORT = Pattern.compile("(client_port=\\s*)(\\d+)", Pattern.CASE_INSENSITIVE);
+
+   private final int listenPort;
+   private final String serverHost;
+   private final int serverPort;
+   private final ImpairmentProfile profile;
+
+   public ImpairmentProxy(int listenPort, String serverHost, int serverPort, ImpairmentProfile profile) {
+      this.listenPort = listenPort;
+      this.serverHost = serverHost;
+      this.serverPort = serverPort;
+      this.profile = profile;
+   }
+
+   /**
+    * Accepts client connections forever, proxying each one on its own thread.
+    *
+    * @throws IOException
+    *            if the listening socket cannot be opened
+    */
+   public void run() throws IOException {
+      ServerSocket listener = new ServerSocket(listenPort);
+      System.out.println(String.format("Proxying :%d -> %s:%d with profile %s", listenPort, serverHost,
+            serverPort, profile));
+      while (true) {
+         final Socket client = listener.accept();
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               proxy(client);
+            }
+         }, "rtsp-proxy-" + client.getPort()).start();
+      }
+   }
+
+   private void proxy(Socket client) {
+      RtpRelay relay = null;
+      Socket server = null;
+      try {
+         server = new Socket(serverHost, serverPort);
+         pipe(server.getInputStream(), client.getOutputStream());
+         BufferedReader fromClient = new BufferedReader(new InputStreamReader(client.getInputStream()));
+         Writer toServer = new OutputStreamWriter(server.getOutputStream());
+         String line;
+         while ((line = fromClient.readLine()) != null) {
+            Matcher m = CLIENT_PORT.matcher(line);
+            if (line.toUpperCase().startsWith("TRANSPORT:") && m.find()) {
+               if (relay == null) {
+                  relay = new RtpRelay(profile, client.getInetAddress());
+                  relay.start();
+               }
+               relay.setClientPort(Integer.parseInt(m.group(2)));
+               line = m.replaceFirst("$1" + relay.getLocalPort());
+            }
+            toServer.write(line + CRLF);
+            if (line.isEmpty()) {
+               toServer.flush();
+            }
+         }
+      } catch (IOException e) {
+         System.out.println("Proxied connection failed: " + e.getMessage());
+      } finally {
+         if (relay != null) {
+            relay.close();
+            System.out.println(String.format("Connection from %s closed. %s", client.getRemoteSocketAddress(),
+                  relay.getImpairer().summary()));
+         }
+         closeQuietly(client);
+         closeQuietly(server);
+      }
+   }
+
+   /**
+    * Copies server responses back to the client untouched, on a separate thread.
+    */
+   private static void pipe(final InputStream in, final OutputStream out) {
+      Thread t = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            byte[] buf = new byte[4096];
+            int n;
+            try {
+               while ((n = in.read(buf)) != -1) {
+                  out.write(buf, 0, n);
+                  out.flush();
+               }
+            } catch (IOException e) {
+               // either side closed
+            }
+         }
+      }, "rtsp-proxy-responses");
+      t.setDaemon(true);
+      t.start();
+   }
+
+   private static void closeQuietly(Socket s) {
+      if (s == null) {
+         return;
+      }
+      try {
+         s.close();
+      } catch (IOException e) {
+
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 3) {
+         System.err.println("usage: ImpairmentProxy listenPort serverHost serverPort [preset|profile.properties]");
+         System.err.println("presets: NONE, A, B, C, D, E, F, G, H");
+         System.exit(1);
+      }
+      ImpairmentProfile profile = ImpairmentProfile.resolve(args.length > 3 ? args[3] : "NONE");
+      new ImpairmentProxy(Integer.parseInt(args[0]), args[1], Integer.parseInt(args[2]), profile).run();
+   }
+}
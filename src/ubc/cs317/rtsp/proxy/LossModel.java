@@ -0,0 +1,13 @@
+package ubc.cs317.rtsp.proxy;
+
+/**
+ * Decides, packet by packet, whether the impairment proxy should drop a packet.
+ * Implementations may keep state between calls (eg. to model bursty loss).
+ */
+public interface LossModel {
+
+   /**
+    * @return true if the next packet should be dropped.
+    */
+   public boolean shouldDrop();
+}
@@ -0,0 +1,150 @@
+package ubc.cs317.rtsp.proxy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies an ImpairmentProfile to a stream of datagrams. <br/>
+ * Each packet goes through loss, duplication, reordering and burst grouping, and is then given a departure
+ * time from the constant delay, jitter and rate caps. The result is a list of ScheduledPackets to be sent
+ * by the proxy when they are due. Not thread safe; the proxy feeds it from a single receive thread.
+ */
+public class PacketImpairer {
+   private final ImpairmentProfile profile;
+   private final Random random;
+   private final LossModel loss;
+   private final LinkedList<Held> reorderHeld = new LinkedList<Held>();
+   private final List<byte[]> burst = new ArrayList<byte[]>();
+   private long nextFreeNanos;
+   private long order;
+
+   public long packetsIn;
+   public long packetsOut;
+   public long dropped;
+   public long droppedByRateCap;
+   public long duplicated;
+   public long reordered;
+
+   public PacketImpairer(ImpairmentProfile profile) {
+      this.profile = profile;
+      this.random = new Random(profile.seed);
+      this.loss = profile.createLossModel(random);
+   }
+
+   /**
+    * Feeds one received datagram through the profile.
+    *
+    * @param data
+    *           the datagram contents, owned by the impairer from now on
+    * @param nowNanos
+    *           arrival time, as System.nanoTime()
+    * @return the packets that should be sent as a result, possibly none
+    */
+   public List<ScheduledPacket> process(byte[] data, long nowNanos) {
+      packetsIn++;
+      List<ScheduledPacket> out = new ArrayList<ScheduledPacket>(2);
+      if (loss.shouldDrop()) {
+         dropped++;
+         return out;
+      }
+      int copies = 1;
+      if (profile.duplicateProbability > 0 && random.nextDouble() < profile.duplicateProbability) {
+         duplicated++;
+         copies = 2;
+      }
+      for (int i = 0; i < copies; i++) {
+         reorder(data, nowNanos, out);
+      }
+      return out;
+   }
+
+   /**
+    * Sends anything still held back (reordering or burst grouping), eg. when the stream pauses.
+    *
+    * @param nowNanos
+    *           current time, as System.nanoTime()
+    * @return the packets that should be sent
+    */
+   public List<ScheduledPacket> flush(long nowNanos) {
+      List<ScheduledPacket> out = new ArrayList<ScheduledPacket>();
+      while (!reorderHeld.isEmpty()) {
+         group(reorderHeld.removeFirst().data, nowNanos, out);
+      }
+      if (!burst.isEmpty()) {
+         release(nowNanos, out);
+      }
+      return out;
+   }
+
+   private void reorder(byte[] data, long nowNanos, List<ScheduledPacket> out) {
+      if (profile.reorderDepth > 0 && random.nextDouble() < profile.reorderProbability) {
+         reordered++;
+         reorderHeld.add(new Held(data, profile.reorderDepth));
+         return;
+      }
+      group(data, nowNanos, out);
+      // Release held packets once enough later packets have overtaken them
+      Iterator<Held> it = reorderHeld.iterator();
+      while (it.hasNext()) {
+         Held h = it.next();
+         if (--h.remaining <= 0) {
+            it.remove();
+            group(h.data, nowNanos, out);
+         }
+      }
+   }
+
+   private void group(byte[] data, long nowNanos, List<ScheduledPacket> out) {
+      burst.add(data);
+      if (burst.size() >= profile.burstSize) {
+         release(nowNanos, out);
+      }
+   }
+
+   private void release(long nowNanos, List<ScheduledPacket> out) {
+      long base = nowNanos + TimeUnit.MILLISECONDS.toNanos(profile.delayMs);
+      for (byte[] data : burst) {
+         long sendAt = base + (long) (profile.sampleJitterMs(random) * 1000000);
+         if (profile.rateBytesPerSecond > 0 || profile.ratePacketsPerSecond > 0) {
+            sendAt = Math.max(sendAt, nextFreeNanos);
+            if (sendAt - nowNanos > TimeUnit.MILLISECONDS.toNanos(profile.rateMaxQueueMs)) {
+               droppedByRateCap++;
+               continue;
+            }
+            long cost = 0;
+            if (profile.rateBytesPerSecond > 0) {
+               cost = data.length * 1000000000L / profile.rateBytesPerSecond;
+            }
+            if (profile.ratePacketsPerSecond > 0) {
+               cost = Math.max(cost, (long) (1000000000L / profile.ratePacketsPerSecond));
+            }
+            nextFreeNanos = sendAt + cost;
+         }
+         packetsOut++;
+         out.add(new ScheduledPacket(data, sendAt, order++));
+      }
+      burst.clear();
+   }
+
+   /**
+    * @return a one line summary of what the impairer has done so far.
+    */
+   public String summary() {
+      return String.format("in: %d, out: %d, dropped: %d, dropped by rate cap: %d, duplicated: %d, reordered: %d",
+            packetsIn, packetsOut, dropped, droppedByRateCap, duplicated, reordered);
+   }
+
+   private static class Held {
+      final byte[] data;
+      int remaining;
+
+      Held(byte[] data, int remaining) {
+         this.data = data;
+         this.remaining = remaining;
+      }
+   }
+}
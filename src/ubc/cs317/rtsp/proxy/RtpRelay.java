@@ -0,0 +1,130 @@
+package ubc.cs317.rtsp.proxy;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.DelayQueue;
+
+/**
+ * Relays the RTP stream of one proxied RTSP connection. <br/>
+ * The server sends to a local socket owned by the relay; each datagram is run through a PacketImpairer and
+ * the resulting packets are forwarded to the client's real data port once they are due.
+ */
+public class RtpRelay {
+   private static final int BUFFER_LENGTH = 15000;
+   private static final int IDLE_FLUSH_MS = 500;
+
+   private final DatagramSocket socket;
+   private final PacketImpairer impairer;
+   private final DelayQueue<ScheduledPacket> queue = new DelayQueue<ScheduledPacket>();
+   private final InetAddress clientAddress;
+   private volatile int clientPort;
+   private volatile boolean closed;
+   private Thread receiver;
+   private Thread sender;
+
+   /**
+    * Opens the server facing socket on a random local port.
+    *
+    * @param profile
+    *           impairments to apply
+    * @param clientAddress
+    *           where the client expects RTP to come from the server
+    * @throws SocketException
+    *            if the socket cannot be created
+    */
+   public RtpRelay(ImpairmentProfile profile, InetAddress clientAddress) throws SocketException {
+      this.socket = new DatagramSocket();
+      this.socket.setSoTimeout(IDLE_FLUSH_MS);
+      this.impairer = new PacketImpairer(profile);
+      this.clientAddress = clientAddress;
+   }
+
+   /**
+    * @return the local port the server should send RTP to.
+    */
+   public int getLocalPort() {
+      return socket.getLocalPort();
+   }
+
+   /**
+    * Updates the client port packets are forwarded to. Called on each SETUP.
+    *
+    * @param port
+    *           the client_port the client asked for
+    */
+   public void setClientPort(int port) {
+      clientPort = port;
+   }
+
+   public void start() {
+      receiver = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            receiveLoop();
+         }
+      }, "rtp-relay-recv-" + getLocalPort());
+      sender = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            sendLoop();
+         }
+      }, "rtp-relay-send-" + getLocalPort());
+      receiver.setDaemon(true);
+      sender.setDaemon(true);
+      receiver.start();
+      sender.start();
+   }
+
+   private void receiveLoop() {
+      byte[] buf = new byte[BUFFER_LENGTH];
+      DatagramPacket packet = new DatagramPacket(buf, buf.length);
+      while (!closed) {
+         try {
+            packet.setLength(buf.length);
+            socket.receive(packet);
+            byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+            queue.addAll(impairer.process(data, System.nanoTime()));
+         } catch (SocketTimeoutException e) {
+            // Stream paused or stopped, don't leave reordered/burst packets stuck
+            queue.addAll(impairer.flush(System.nanoTime()));
+         } catch (IOException e) {
+            break;
+         }
+      }
+   }
+
+   private void sendLoop() {
+      try {
+         while (!closed) {
+            ScheduledPacket p = queue.take();
+            if (clientPort > 0) {
+               socket.send(new DatagramPacket(p.data, p.data.length, clientAddress, clientPort));
+            }
+         }
+      } catch (InterruptedException e) {
+         // closing
+      } catch (IOException e) {
+         // socket closed
+      }
+   }
+
+   /**
+    * Stops relaying and releases the socket.
+    */
+   public void close() {
+      closed = true;
+      socket.close();
+      if (sender != null) {
+         sender.interrupt();
+      }
+   }
+
+   public PacketImpairer getImpairer() {
+      return impairer;
+   }
+}
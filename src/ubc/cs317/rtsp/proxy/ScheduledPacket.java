@@ -0,0 +1,34 @@
+package ubc.cs317.rtsp.proxy;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A datagram waiting in the proxy for its departure time.
+ * Packets with equal departure times leave in the order they were scheduled.
+ */
+public class ScheduledPacket implements Delayed {
+   final byte[] data;
+   final long sendAtNanos;
+   final long order;
+
+   ScheduledPacket(byte[] data, long sendAtNanos, long order) {
+      this.data = data;
+      this.sendAtNanos = sendAtNanos;
+      this.order = order;
+   }
+
+   @Override
+   public long getDelay(TimeUnit unit) {
+      return unit.convert(sendAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+   }
+
+   @Override
+   public int compareTo(Delayed o) {
+      ScheduledPacket other = (ScheduledPacket) o;
+      if (sendAtNanos != other.sendAtNanos) {
+         return sendAtNanos < other.sendAtNanos ? -1 : 1;
+      }
+      return order < other.order ? -1 : (order == other.order ? 0 : 1);
+   }
+}
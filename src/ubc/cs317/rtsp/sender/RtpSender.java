@@ -0,0 +1,359 @@
+package ubc.cs317.rtsp.sender;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.proxy.LossModel;
+
+/**
+ * Sends the RTP stream of one stand-in session, and answers its RTCP. <br/>
+ * Frames are sent every FRAME_INTERVAL_MS with millisecond timestamps, like the course server, and each packet
+ * is kept in a history of the last HISTORY packets whether or not the loss model dropped it. A generic NACK
+ * from the client resends the packets it names from the history, with their original sequence numbers
+ * (through the loss model again). Sender reports go out every SR_INTERVAL_MS, and the round trip time is
+ * taken from the LSR/DLSR of each receiver report, as in RFC 3550 section 6.4.1. <br/>
+ * With an FEC group size, every that many media packets are followed by a ULPFEC packet protecting them (RFC
+ * 5109, level 0 over the whole payload), sent with FEC_PAYLOAD_TYPE under an SSRC and sequence numbers of its
+ * own, and through the loss model like the rest.
+ */
+public class RtpSender {
+   private static final int FRAME_INTERVAL_MS = 33;
+   private static final long SR_INTERVAL_MS = 5000;
+   private static final int PAYLOAD_TYPE = 26;
+   private static final int FEC_PAYLOAD_TYPE = 127;
+   private static final int HISTORY = 1024;
+   /** Seconds between the NTP epoch (1900) and the Java one (1970). */
+   private static final long NTP_OFFSET = 2208988800L;
+
+   private final List<byte[]> frames;
+   private final LossModel loss;
+   private final boolean retransmit;
+   private final int fecGroup;
+   private final List<byte[]> group = new ArrayList<byte[]>();
+   private final int fecSsrc;
+   private int fecSeq;
+   private long fecSent;
+   private final DatagramSocket rtpSocket;
+   private final DatagramSocket rtcpSocket;
+   private final InetAddress client;
+   private final int clientRtpPort;
+   private final int clientRtcpPort;
+   private final ScheduledExecutorService timer;
+   private final Thread rtcpReceiver;
+   private final int ssrc;
+   private final byte[][] history = new byte[HISTORY][];
+   private ScheduledFuture<?> playing;
+   private int seq;
+   private int frameIndex;
+   private long lastSrSent;
+   private volatile boolean closed;
+
+   private long packetsSent;
+   private long octetsSent;
+   private long dropped;
+   private long nacksReceived;
+   private long retransmitted;
+   private long retransmitMisses;
+   private long reportsReceived;
+   private int lastFractionLost;
+   private int lastCumulativeLost;
+   private long lastJitter;
+   private long lastRttMs = -1;
+
+   /**
+    * @param frames
+    *           the payloads to send, cycled through
+    * @param loss
+    *           decides which packets are dropped instead of sent
+    * @param retransmit
+    *           whether NACKed packets are sent again
+    * @param fecGroup
+    *           how many media packets each FEC packet protects, 0 for no FEC (at most 16)
+    * @param client
+    *           the client's address
+    * @param clientRtpPort
+    *           where RTP goes
+    * @param clientRtcpPort
+    *           where sender reports go
+    * @throws SocketException
+    *            if the sockets cannot be bound
+    */
+   public RtpSender(List<byte[]> frames, LossModel loss, boolean retransmit, int fecGroup, InetAddress client,
+         int clientRtpPort, int clientRtcpPort) throws SocketException {
+      this.frames = frames;
+      this.loss = loss;
+      this.retransmit = retransmit;
+      this.fecGroup = Math.min(fecGroup, 16);
+      this.client = client;
+      this.clientRtpPort = clientRtpPort;
+      this.clientRtcpPort = clientRtcpPort;
+      Random random = new Random();
+      this.ssrc = random.nextInt();
+      this.seq = random.nextInt(0x10000);
+      this.fecSsrc = random.nextInt();
+      this.fecSeq = random.nextInt(0x10000);
+      rtpSocket = new DatagramSocket();
+      DatagramSocket rtcp;
+      try {
+         rtcp = new DatagramSocket(rtpSocket.getLocalPort() + 1);
+      } catch (SocketException e) {
+         rtcp = new DatagramSocket();
+      }
+      rtcpSocket = rtcp;
+      rtcpSocket.setSoTimeout(1000);
+      timer = Executors.newSingleThreadScheduledExecutor();
+      rtcpReceiver = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            receiveRtcp();
+         }
+      }, "stand-in-rtcp");
+      rtcpReceiver.setDaemon(true);
+      rtcpReceiver.start();
+   }
+
+   public int getRtpPort() {
+      return rtpSocket.getLocalPort();
+   }
+
+   public int getRtcpPort() {
+      return rtcpSocket.getLocalPort();
+   }
+
+   /**
+    * Starts sending frames, from the given media time.
+    *
+    * @param startMs
+    *           where to start, in milliseconds of media time, or -1 to carry on from where it stopped
+    */
+   public synchronized void play(long startMs) {
+      if (startMs >= 0) {
+         frameIndex = (int) (startMs / FRAME_INTERVAL_MS);
+      }
+      if (playing == null) {
+         lastSrSent = 0;
+         playing = timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+               sendFrame();
+            }
+         }, 0, FRAME_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   public synchronized void pause() {
+      if (playing != null) {
+         playing.cancel(false);
+         playing = null;
+      }
+   }
+
+   private void sendFrame() {
+      byte[] packet;
+      byte[] fec = null;
+      synchronized (this) {
+         byte[] payload = frames.get(frameIndex % frames.size());
+         packet = new byte[12 + payload.length];
+         ByteBuffer buf = ByteBuffer.wrap(packet);
+         buf.put((byte) 0x80).put((byte) (0x80 | PAYLOAD_TYPE)).putShort((short) seq);
+         buf.putInt(frameIndex * FRAME_INTERVAL_MS).putInt(ssrc).put(payload);
+         history[seq % HISTORY] = packet;
+         seq = (seq + 1) & 0xFFFF;
+         frameIndex++;
+         packetsSent++;
+         octetsSent += payload.length;
+         if (fecGroup > 0) {
+            group.add(packet);
+            if (group.size() == fecGroup) {
+               fec = buildFec(group);
+               group.clear();
+            }
+         }
+      }
+      send(packet);
+      if (fec != null) {
+         send(fec);
+      }
+      long now = System.currentTimeMillis();
+      if (now - lastSrSent >= SR_INTERVAL_MS) {
+         lastSrSent = now;
+         sendSenderReport(now);
+      }
+   }
+
+   /**
+    * Builds the ULPFEC packet protecting a group of consecutive media packets (RFC 5109 section 7).
+    */
+   private byte[] buildFec(List<byte[]> media) {
+      int protectionLength = 0;
+      for (byte[] p : media) {
+         protectionLength = Math.max(protectionLength, p.length - 12);
+      }
+      // RTP header, FEC header, level 0 header with a 16 bit mask, protected payload
+      byte[] fec = new byte[12 + 10 + 4 + protectionLength];
+      ByteBuffer buf = ByteBuffer.wrap(fec);
+      byte[] last = media.get(media.size() - 1);
+      buf.put((byte) 0x80).put((byte) FEC_PAYLOAD_TYPE).putShort((short) fecSeq).put(last, 4, 4).putInt(fecSsrc);
+      fecSeq = (fecSeq + 1) & 0xFFFF;
+      int b0 = 0;
+      int b1 = 0;
+      int ts = 0;
+      int length = 0;
+      for (byte[] p : media) {
+         b0 ^= p[0];
+         b1 ^= p[1];
+         ts ^= ByteBuffer.wrap(p).getInt(4);
+         length ^= p.length - 12;
+         for (int i = 12; i < p.length; i++) {
+            fec[26 + i - 12] ^= p[i];
+         }
+      }
+      int base = ((media.get(0)[2] & 0xFF) << 8) | (media.get(0)[3] & 0xFF);
+      int mask = 0;
+      for (int i = 0; i < media.size(); i++) {
+         mask |= 1 << (15 - i);
+      }
+      // E and L clear: no extension, 16 bit mask
+      buf.put((byte) (b0 & 0x3F)).put((byte) b1).putShort((short) base).putInt(ts).putShort((short) length);
+      buf.putShort((short) protectionLength).putShort((short) mask);
+      fecSent++;
+      return fec;
+   }
+
+   private void send(byte[] packet) {
+      synchronized (this) {
+         if (loss.shouldDrop()) {
+            dropped++;
+            return;
+         }
+      }
+      try {
+         rtpSocket.send(new DatagramPacket(packet, packet.length, client, clientRtpPort));
+      } catch (IOException e) {
+         // The client went away
+      }
+   }
+
+   private void sendSenderReport(long nowMs) {
+      ByteBuffer buf = ByteBuffer.allocate(28);
+      long seconds = nowMs / 1000 + NTP_OFFSET;
+      long fraction = (nowMs % 1000) * 0x100000000L / 1000;
+      synchronized (this) {
+         buf.put((byte) 0x80).put((byte) 200).putShort((short) 6).putInt(ssrc);
+         buf.putInt((int) seconds).putInt((int) fraction);
+         buf.putInt(frameIndex * FRAME_INTERVAL_MS).putInt((int) packetsSent).putInt((int) octetsSent);
+      }
+      try {
+         rtcpSocket.send(new DatagramPacket(buf.array(), buf.position(), client, clientRtcpPort));
+      } catch (IOException e) {
+         // The client went away
+      }
+   }
+
+   private void receiveRtcp() {
+      byte[] data = new byte[1500];
+      DatagramPacket packet = new DatagramPacket(data, data.length);
+      while (!closed) {
+         try {
+            packet.setLength(data.length);
+            rtcpSocket.receive(packet);
+         } catch (SocketTimeoutException e) {
+            continue;
+         } catch (IOException e) {
+            continue;
+         }
+         ByteBuffer buf = ByteBuffer.wrap(data, 0, packet.getLength());
+         while (buf.remaining() >= 8) {
+            int start = buf.position();
+            int count = buf.get(start) & 0x1F;
+            int pt = buf.get(start + 1) & 0xFF;
+            int length = 4 * ((buf.getShort(start + 2) & 0xFFFF) + 1);
+            if (length > buf.remaining()) {
+               break;
+            }
+            if (pt == 201 && count > 0 && length >= 32) {
+               receiverReport(buf, start + 8);
+            } else if (pt == 205 && count == 1) {
+               nack(buf, start + 12, start + length);
+            }
+            buf.position(start + length);
+         }
+      }
+   }
+
+   private synchronized void receiverReport(ByteBuffer buf, int block) {
+      reportsReceived++;
+      int lost = buf.getInt(block + 4);
+      lastFractionLost = lost >>> 24;
+      lastCumulativeLost = (lost << 8) >> 8;
+      lastJitter = buf.getInt(block + 12) & 0xFFFFFFFFL;
+      long lsr = buf.getInt(block + 16) & 0xFFFFFFFFL;
+      long dlsr = buf.getInt(block + 20) & 0xFFFFFFFFL;
+      if (lsr != 0) {
+         long nowMs = System.currentTimeMillis();
+         long now = (((nowMs / 1000 + NTP_OFFSET) & 0xFFFF) << 16) | ((nowMs % 1000) * 0x10000 / 1000);
+         long rtt = (now - lsr - dlsr) & 0xFFFFFFFFL;
+         lastRttMs = rtt * 1000 / 0x10000;
+      }
+   }
+
+   private void nack(ByteBuffer buf, int from, int to) {
+      for (int i = from; i + 4 <= to; i += 4) {
+         int pid = buf.getShort(i) & 0xFFFF;
+         int blp = buf.getShort(i + 2) & 0xFFFF;
+         resend(pid);
+         for (int bit = 0; bit < 16; bit++) {
+            if ((blp & (1 << bit)) != 0) {
+               resend((pid + bit + 1) & 0xFFFF);
+            }
+         }
+      }
+   }
+
+   private void resend(int nackedSeq) {
+      byte[] packet;
+      synchronized (this) {
+         nacksReceived++;
+         packet = retransmit ? history[nackedSeq % HISTORY] : null;
+         if (packet == null || ((packet[2] & 0xFF) << 8 | (packet[3] & 0xFF)) != nackedSeq) {
+            retransmitMisses++;
+            return;
+         }
+         retransmitted++;
+      }
+      send(packet);
+   }
+
+   /**
+    * Stops sending and closes the sockets.
+    */
+   public void close() {
+      pause();
+      closed = true;
+      timer.shutdown();
+      rtpSocket.close();
+      rtcpSocket.close();
+   }
+
+   /**
+    * @return one line describing what was sent and what the client reported.
+    */
+   public synchronized String summary() {
+      return String.format("sent %d (+%d FEC), dropped %d, NACKed %d, retransmitted %d (%d not in history), "
+            + "receiver reports %d: fraction lost %d/256, cumulative lost %d, jitter %d, rtt %d ms", packetsSent,
+            fecSent, dropped, nacksReceived, retransmitted, retransmitMisses, reportsReceived, lastFractionLost,
+            lastCumulativeLost, lastJitter, lastRttMs);
+   }
+}
@@ -0,0 +1,320 @@
+package ubc.cs317.rtsp.sender;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import ubc.cs317.rtsp.proxy.ImpairmentProfile;
+
+/**
+ * A local stand-in for the course RTSP server, for exercising the client's RTCP feedback and FEC recovery
+ * without it. <br/>
+ * Serves one synthetic video (numbered JPEG frames) to any name, over UDP only and one session per connection,
+ * and understands SETUP, PLAY (with a Range), PAUSE and TEARDOWN. Packets are dropped by the loss model of an
+ * ImpairmentProfile, and the packets the client NACKs are retransmitted, unless started with "noretransmit".
+ * With "fec=N", an FEC packet follows every N media packets (see RtpSender). What each session sent and what
+ * the client reported over RTCP is printed on TEARDOWN. <br/>
+ * With "multicast=group:port", a SETUP asking for the multicast transport is given that group instead, and
+ * all such sessions share one RtpSender sending to it: the stream runs while any of them is playing, from
+ * wherever it is (their Ranges are ignored), and stops when the last one pauses or tears down.
+ *
+ * <pre>
+ * usage: StandInSender listenPort [preset|profile.properties] [noretransmit] [fec=N] [multicast=group:port]
+ * </pre>
+ */
+public class StandInSender {
+   private static final String CRLF = "\r\n";
+   private static final int FRAMES = 30;
+   private static final Pattern CLIENT_PORT = Pattern.compile("client_port=\\s*(\\d+)(?:-(\\d+))?",
+         Pattern.CASE_INSENSITIVE);
+   private static final Pattern NPT = Pattern.compile("npt=\\s*([0-9.]+)");
+
+   private final int listenPort;
+   private final ImpairmentProfile profile;
+   private final boolean retransmit;
+   private final int fecGroup;
+   private final InetSocketAddress multicast;
+   private final List<byte[]> frames;
+   private int nextSession = 1;
+   private RtpSender groupSender;
+   private int groupMembers;
+   private int groupPlayers;
+
+   /**
+    * @param multicast
+    *           the group and RTP port to offer multicast sessions, or null to refuse them
+    */
+   public StandInSender(int listenPort, ImpairmentProfile profile, boolean retransmit, int fecGroup,
+         InetSocketAddress multicast) throws IOException {
+      this.listenPort = listenPort;
+      this.profile = profile;
+      this.retransmit = retransmit;
+      this.fecGroup = fecGroup;
+      this.multicast = multicast;
+      this.frames = drawFrames();
+   }
+
+   /**
+    * Draws FRAMES small JPEG frames, each showing its number, so gaps are visible in the client.
+    */
+   private static List<byte[]> drawFrames() throws IOException {
+      List<byte[]> frames = new ArrayList<byte[]>();
+      for (int i = 0; i < FRAMES; i++) {
+         BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+         Graphics2D g = image.createGraphics();
+         g.setColor(Color.getHSBColor(i / (float) FRAMES, 0.5f, 0.6f));
+         g.fillRect(0, 0, 320, 240);
+         g.setColor(Color.WHITE);
+         g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 96));
+         g.drawString(String.valueOf(i), 100, 160);
+         g.dispose();
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         ImageIO.write(image, "jpg", out);
+         frames.add(out.toByteArray());
+      }
+      return frames;
+   }
+
+   /**
+    * Accepts RTSP connections forever, serving each one on its own thread.
+    *
+    * @throws IOException
+    *            if the listening socket cannot be opened
+    */
+   public void run() throws IOException {
+      ServerSocket listener = new ServerSocket(listenPort);
+      System.out.println(String.format("Stand-in sender on :%d with profile %s%s%s", listenPort, profile,
+            retransmit ? "" : ", not retransmitting", fecGroup > 0 ? ", FEC every " + fecGroup + " packets" : "")
+            + (multicast != null ? ", multicast to " + multicast : ""));
+      while (true) {
+         final Socket client = listener.accept();
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               serve(client);
+            }
+         }, "stand-in-" + client.getPort()).start();
+      }
+   }
+
+   private void serve(Socket client) {
+      RtpSender sender = null;
+      String session = null;
+      boolean inGroup = false;
+      boolean playing = false;
+      try {
+         BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "ISO-8859-1"));
+         Writer out = new OutputStreamWriter(client.getOutputStream(), "ISO-8859-1");
+         List<String> request = new ArrayList<String>();
+         String line;
+         while ((line = in.readLine()) != null) {
+            if (!line.isEmpty()) {
+               request.add(line);
+               continue;
+            }
+            if (request.isEmpty()) {
+               continue;
+            }
+            String method = request.get(0).split(" ")[0].toUpperCase();
+            String cseq = header(request, "CSeq");
+            String transport = null;
+            int status = 200;
+            if (method.equals("SETUP")) {
+               String requested = String.valueOf(header(request, "Transport"));
+               Matcher m = CLIENT_PORT.matcher(requested);
+               boolean wantsGroup = requested.toLowerCase().contains("multicast");
+               if (wantsGroup ? multicast == null : !m.find()) {
+                  status = 461;
+               } else {
+                  if (inGroup) {
+                     leaveGroup(playing);
+                  } else if (sender != null) {
+                     System.out.println(String.format("Session %s replaced. %s", session, sender.summary()));
+                     sender.close();
+                  }
+                  inGroup = wantsGroup;
+                  playing = false;
+               }
+               if (status == 200 && inGroup) {
+                  sender = joinGroup();
+                  session = String.valueOf(nextSession());
+                  transport = String.format("RTP/AVP;multicast;destination=%s;port=%d-%d;ttl=1",
+                        multicast.getAddress().getHostAddress(), multicast.getPort(), multicast.getPort() + 1);
+               } else if (status == 200) {
+                  int rtpPort = Integer.parseInt(m.group(1));
+                  int rtcpPort = m.group(2) != null ? Integer.parseInt(m.group(2)) : rtpPort + 1;
+                  sender = new RtpSender(frames, profile.createLossModel(new Random(profile.seed)), retransmit,
+                        fecGroup, client.getInetAddress(), rtpPort, rtcpPort);
+                  session = String.valueOf(nextSession());
+                  transport = String.format("RTP/AVP;unicast;client_port=%d-%d;server_port=%d-%d", rtpPort,
+                        rtcpPort, sender.getRtpPort(), sender.getRtcpPort());
+               }
+            } else if (sender == null) {
+               status = 454;
+            } else if (method.equals("PLAY")) {
+               Matcher m = NPT.matcher(String.valueOf(header(request, "Range")));
+               if (!inGroup) {
+                  sender.play(m.find() ? (long) (Double.parseDouble(m.group(1)) * 1000) : -1);
+               } else if (!playing) {
+                  groupPlaying(true);
+               }
+               playing = true;
+            } else if (method.equals("PAUSE")) {
+               if (!inGroup) {
+                  sender.pause();
+               } else if (playing) {
+                  groupPlaying(false);
+               }
+               playing = false;
+            } else if (method.equals("TEARDOWN")) {
+               if (inGroup) {
+                  System.out.println(String.format("Session %s left the group.", session));
+                  leaveGroup(playing);
+               } else {
+                  System.out.println(String.format("Session %s torn down. %s", session, sender.summary()));
+                  sender.close();
+               }
+               sender = null;
+               inGroup = false;
+               playing = false;
+            } else {
+               status = 501;
+            }
+            StringBuilder response = new StringBuilder("RTSP/1.0 ").append(status).append(reason(status));
+            response.append(CRLF).append("CSeq: ").append(cseq).append(CRLF);
+            if (session != null && status != 454) {
+               response.append("Session: ").append(session).append(CRLF);
+            }
+            if (transport != null) {
+               response.append("Transport: ").append(transport).append(CRLF);
+            }
+            out.write(response.append(CRLF).toString());
+            out.flush();
+            request.clear();
+         }
+      } catch (IOException e) {
+         System.out.println("Connection failed: " + e.getMessage());
+      } finally {
+         if (inGroup) {
+            leaveGroup(playing);
+         } else if (sender != null) {
+            System.out.println(String.format("Session %s closed. %s", session, sender.summary()));
+            sender.close();
+         }
+         try {
+            client.close();
+         } catch (IOException e) {
+
+         }
+      }
+   }
+
+   private synchronized int nextSession() {
+      return nextSession++;
+   }
+
+   /**
+    * Adds a session to the multicast group, creating its sender for the first.
+    */
+   private synchronized RtpSender joinGroup() throws IOException {
+      if (groupSender == null) {
+         groupSender = new RtpSender(frames, profile.createLossModel(new Random(profile.seed)), retransmit,
+               fecGroup, multicast.getAddress(), multicast.getPort(), multicast.getPort() + 1);
+      }
+      groupMembers++;
+      return groupSender;
+   }
+
+   /**
+    * Counts a group session starting or stopping, so the stream runs while any of them plays.
+    */
+   private synchronized void groupPlaying(boolean play) {
+      groupPlayers += play ? 1 : -1;
+      if (play && groupPlayers == 1) {
+         groupSender.play(-1);
+      } else if (!play && groupPlayers == 0) {
+         groupSender.pause();
+      }
+   }
+
+   /**
+    * Removes a session from the multicast group, closing its sender with the last.
+    */
+   private synchronized void leaveGroup(boolean wasPlaying) {
+      if (wasPlaying) {
+         groupPlaying(false);
+      }
+      if (--groupMembers == 0) {
+         System.out.println(String.format("Group %s closed. %s", multicast, groupSender.summary()));
+         groupSender.close();
+         groupSender = null;
+      }
+   }
+
+   private static String header(List<String> request, String name) {
+      for (String line : request) {
+         int colon = line.indexOf(':');
+         if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+            return line.substring(colon + 1).trim();
+         }
+      }
+      return null;
+   }
+
+   private static String reason(int status) {
+      switch (status) {
+      case 200:
+         return " OK";
+      case 454:
+         return " Session Not Found";
+      case 461:
+         return " Unsupported Transport";
+      default:
+         return " Not Implemented";
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println("usage: StandInSender listenPort [preset|profile.properties] [noretransmit] [fec=N] "
+               + "[multicast=group:port]");
+         System.err.println("presets: NONE, A, B, C, D, E, F, G, H");
+         System.exit(1);
+      }
+      ImpairmentProfile profile = ImpairmentProfile.resolve(args.length > 1 ? args[1] : "NONE");
+      boolean retransmit = true;
+      int fecGroup = 0;
+      InetSocketAddress multicast = null;
+      for (int i = 2; i < args.length; i++) {
+         if (args[i].equalsIgnoreCase("noretransmit")) {
+            retransmit = false;
+         } else if (args[i].startsWith("fec=")) {
+            fecGroup = Integer.parseInt(args[i].substring("fec=".length()));
+         } else if (args[i].startsWith("multicast=")) {
+            String group = args[i].substring("multicast=".length());
+            int colon = group.lastIndexOf(':');
+            multicast = new InetSocketAddress(InetAddress.getByName(group.substring(0, colon)),
+                  Integer.parseInt(group.substring(colon + 1)));
+         }
+      }
+      new StandInSender(Integer.parseInt(args[0]), profile, retransmit, fecGroup, multicast).run();
+   }
+}
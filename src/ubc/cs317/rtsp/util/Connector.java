@@ -0,0 +1,335 @@
+package ubc.cs317.rtsp.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Opens TCP connections on a small bounded pool, with a timeout that covers the whole attempt. <br/>
+ * Each attempt resolves the host through a DNS cache, then uses Socket.connect with the remaining time. An
+ * attempt that is abandoned (timed out or cancelled) closes its socket, which unblocks the worker, so a hung
+ * connect cannot keep holding a thread. When every worker is busy and the queue is full, new attempts fail
+ * straight away instead of piling up; counters of these events describe how saturated the pool is. <br/>
+ * InetAddress.getByName cannot be interrupted, so lookups run on a separate small pool, one per host at a
+ * time, and the attempt only waits for the lookup within its own timeout. During a resolver outage the stuck
+ * lookups hold resolver threads, not connect workers, and are counted as DNS timeouts.
+ */
+public class Connector {
+   private static final int THREADS = 8;
+   private static final int QUEUE_LENGTH = 32;
+   private static final long KEEP_ALIVE_S = 30;
+   private static final long DNS_TTL_MS = 60000;
+   private static final long DNS_NEGATIVE_TTL_MS = 5000;
+
+   private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+   private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_S,
+         TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_LENGTH), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "connector-" + THREAD_COUNT.incrementAndGet());
+               t.setDaemon(true);
+               return t;
+            }
+         });
+   private static final int DNS_THREADS = 4;
+   private static final ThreadPoolExecutor RESOLVER = new ThreadPoolExecutor(DNS_THREADS, DNS_THREADS, KEEP_ALIVE_S,
+         TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_LENGTH), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "resolver-" + THREAD_COUNT.incrementAndGet());
+               t.setDaemon(true);
+               return t;
+            }
+         });
+   static {
+      POOL.allowCoreThreadTimeOut(true);
+      RESOLVER.allowCoreThreadTimeOut(true);
+   }
+
+   private static final ConcurrentHashMap<String, Resolution> DNS_CACHE = new ConcurrentHashMap<String, Resolution>();
+   private static final AtomicLong attempts = new AtomicLong();
+   private static final AtomicLong rejected = new AtomicLong();
+   private static final AtomicLong cancelled = new AtomicLong();
+   private static final AtomicLong timedOut = new AtomicLong();
+   private static final AtomicLong dnsHits = new AtomicLong();
+   private static final AtomicLong dnsMisses = new AtomicLong();
+   private static final AtomicLong dnsTimedOut = new AtomicLong();
+   /** The lookup in progress for each host, shared by the attempts waiting for it. */
+   private static final ConcurrentHashMap<String, FutureTask<InetAddress>> LOOKUPS =
+         new ConcurrentHashMap<String, FutureTask<InetAddress>>();
+   private static final AtomicInteger maxQueued = new AtomicInteger();
+   /** Left in an attempt's socket reference once it is cancelled, so a socket opened after that is closed. */
+   private static final Socket ABANDONED = new Socket();
+
+   /**
+    * A cached lookup: the address, or the failure if the host did not resolve.
+    */
+   private static class Resolution {
+      final InetAddress address;
+      final UnknownHostException failure;
+      final long expires;
+
+      Resolution(InetAddress address, UnknownHostException failure, long expires) {
+         this.address = address;
+         this.failure = failure;
+         this.expires = expires;
+      }
+   }
+
+   /**
+    * A connection attempt that closes its socket when cancelled, whether it is still connecting or has just
+    * finished. If it is cancelled before its socket is opened (eg. during the DNS lookup), the attempt finds
+    * ABANDONED in place of a socket, and closes the one it opens instead of connecting it.
+    */
+   private static class ConnectTask extends FutureTask<Socket> {
+      private final AtomicReference<Socket> socket;
+
+      ConnectTask(Callable<Socket> call, AtomicReference<Socket> socket) {
+         super(call);
+         this.socket = socket;
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+         boolean wasCancelled = super.cancel(mayInterruptIfRunning);
+         if (wasCancelled) {
+            cancelled.incrementAndGet();
+         }
+         return wasCancelled;
+      }
+
+      @Override
+      protected void done() {
+         if (isCancelled()) {
+            Socket s = socket.getAndSet(ABANDONED);
+            if (s != ABANDONED) {
+               closeQuietly(s);
+            }
+         }
+      }
+   }
+
+   /**
+    * Connects to host:port, waiting at most timeout milliseconds in total (queueing, DNS and connect).
+    *
+    * @param host
+    *           host name or address
+    * @param port
+    *           TCP port
+    * @param timeout
+    *           timeout in milliseconds
+    * @return the connected socket
+    * @throws UnknownHostException
+    *            if the host does not resolve
+    * @throws SocketTimeoutException
+    *            if the attempt timed out; it is cancelled
+    * @throws IOException
+    *            if the connection was refused, the pool is saturated, or the wait was interrupted
+    */
+   public static Socket connect(String host, int port, int timeout) throws IOException {
+      Future<Socket> attempt = connectAsync(host, port, timeout);
+      try {
+         return attempt.get(timeout, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+         attempt.cancel(true);
+         timedOut.incrementAndGet();
+         throw new SocketTimeoutException(String.format("Connecting to %s:%d timed out after %dms", host, port,
+               timeout));
+      } catch (InterruptedException e) {
+         attempt.cancel(true);
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while connecting to " + host + ":" + port);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+         }
+         throw new IOException(e.getCause());
+      }
+   }
+
+   /**
+    * Starts a connection attempt. Cancelling the returned future closes the socket of the attempt.
+    *
+    * @param host
+    *           host name or address
+    * @param port
+    *           TCP port
+    * @param timeout
+    *           timeout in milliseconds, counted from this call, so time spent queued for a worker is included
+    * @return the pending connection
+    * @throws IOException
+    *            if the pool is saturated
+    */
+   public static Future<Socket> connectAsync(final String host, final int port, final int timeout)
+         throws IOException {
+      final AtomicReference<Socket> socket = new AtomicReference<Socket>();
+      final long start = System.currentTimeMillis();
+      ConnectTask task = new ConnectTask(new Callable<Socket>() {
+         @Override
+         public Socket call() throws IOException {
+            InetAddress address = resolve(host, Math.max(1, timeout - (System.currentTimeMillis() - start)));
+            int remaining = (int) Math.max(1, timeout - (System.currentTimeMillis() - start));
+            Socket s = new Socket();
+            if (!socket.compareAndSet(null, s)) {
+               closeQuietly(s);
+               throw new InterruptedIOException(String.format("Connecting to %s:%d was cancelled", host, port));
+            }
+            try {
+               s.connect(new InetSocketAddress(address, port), remaining);
+            } catch (IOException e) {
+               closeQuietly(s);
+               throw e;
+            }
+            return s;
+         }
+      }, socket);
+      attempts.incrementAndGet();
+      try {
+         POOL.execute(task);
+      } catch (RejectedExecutionException e) {
+         rejected.incrementAndGet();
+         throw new IOException(String.format("Too many connection attempts in progress (%d)", THREADS
+               + QUEUE_LENGTH));
+      }
+      int queued = POOL.getQueue().size();
+      int max;
+      while (queued > (max = maxQueued.get()) && !maxQueued.compareAndSet(max, queued)) {
+      }
+      return task;
+   }
+
+   /**
+    * Resolves a host name, caching both successes and failures for a while. A lookup not in the cache runs on
+    * the resolver pool, and is waited for at most timeout milliseconds; it goes on, and fills the cache, if
+    * this attempt gives up on it.
+    */
+   private static InetAddress resolve(final String host, long timeout) throws IOException {
+      Resolution cached = DNS_CACHE.get(host);
+      if (cached != null && cached.expires > System.currentTimeMillis()) {
+         dnsHits.incrementAndGet();
+         if (cached.failure != null) {
+            throw cached.failure;
+         }
+         return cached.address;
+      }
+      dnsMisses.incrementAndGet();
+      FutureTask<InetAddress> lookup = LOOKUPS.get(host);
+      if (lookup == null) {
+         FutureTask<InetAddress> fresh = new FutureTask<InetAddress>(new Callable<InetAddress>() {
+            @Override
+            public InetAddress call() throws UnknownHostException {
+               try {
+                  InetAddress address = InetAddress.getByName(host);
+                  DNS_CACHE.put(host, new Resolution(address, null, System.currentTimeMillis() + DNS_TTL_MS));
+                  return address;
+               } catch (UnknownHostException e) {
+                  DNS_CACHE.put(host, new Resolution(null, e, System.currentTimeMillis() + DNS_NEGATIVE_TTL_MS));
+                  throw e;
+               } finally {
+                  LOOKUPS.remove(host);
+               }
+            }
+         });
+         lookup = LOOKUPS.putIfAbsent(host, fresh);
+         if (lookup == null) {
+            lookup = fresh;
+            try {
+               RESOLVER.execute(fresh);
+            } catch (RejectedExecutionException e) {
+               LOOKUPS.remove(host, fresh);
+               rejected.incrementAndGet();
+               throw new IOException(String.format("Too many DNS lookups in progress (%d)", DNS_THREADS
+                     + QUEUE_LENGTH));
+            }
+         }
+      }
+      try {
+         return lookup.get(timeout, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+         dnsTimedOut.incrementAndGet();
+         throw new SocketTimeoutException(String.format("Looking up %s timed out after %dms", host, timeout));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while looking up " + host);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+         }
+         throw new IOException(e.getCause());
+      }
+   }
+
+   private static void closeQuietly(Socket s) {
+      if (s == null) {
+         return;
+      }
+      try {
+         s.close();
+      } catch (IOException e) {
+
+      }
+   }
+
+   /**
+    * Forgets every cached DNS lookup.
+    */
+   public static void clearDnsCache() {
+      DNS_CACHE.clear();
+   }
+
+   public static int getActiveCount() {
+      return POOL.getActiveCount();
+   }
+
+   public static int getQueuedCount() {
+      return POOL.getQueue().size();
+   }
+
+   public static long getRejectedCount() {
+      return rejected.get();
+   }
+
+   public static long getTimedOutCount() {
+      return timedOut.get();
+   }
+
+   public static long getCancelledCount() {
+      return cancelled.get();
+   }
+
+   /**
+    * @return how many attempts gave up waiting for a DNS lookup.
+    */
+   public static long getDnsTimedOutCount() {
+      return dnsTimedOut.get();
+   }
+
+   /**
+    * @return the pool's load and the counters since startup, on one line.
+    */
+   public static String summary() {
+      return String.format("Connector: %d/%d active, %d queued (max %d of %d), %d attempts, %d rejected, "
+            + "%d timed out, %d cancelled, DNS %d hits %d misses %d timed out (%d lookups active)",
+            POOL.getActiveCount(), THREADS, POOL.getQueue().size(), maxQueued.get(), QUEUE_LENGTH, attempts.get(),
+            rejected.get(), timedOut.get(), cancelled.get(), dnsHits.get(), dnsMisses.get(), dnsTimedOut.get(),
+            RESOLVER.getActiveCount());
+   }
+}
@@ -0,0 +1,60 @@
+package ubc.cs317.rtsp.util;
+
+/**
+ * Fast non-cryptographic 64 bit hash for frame payloads, used to spot byte-identical frames. <br/>
+ * Mixes 8 bytes at a time with multiply/rotate steps (in the style of MurmurHash/xxHash) and finishes with a
+ * full avalanche, so that similar JPEGs still get unrelated hashes. Not suitable for anything adversarial.
+ */
+public final class PayloadHash {
+   private static final long SEED = 0x9E3779B97F4A7C15L;
+   private static final long M1 = 0x87C37B91114253D5L;
+   private static final long M2 = 0x4CF5AD432745937FL;
+
+   private PayloadHash() {
+   }
+
+   /**
+    * @param data
+    *           the bytes to hash
+    * @param offset
+    *           where to start in data
+    * @param length
+    *           how many bytes to hash
+    * @return the 64 bit hash
+    */
+   public static long hash64(byte[] data, int offset, int length) {
+      long h = SEED ^ (length * M2);
+      int i = offset;
+      int end = offset + length;
+      for (; i + 8 <= end; i += 8) {
+         h ^= mix(getLong(data, i));
+         h = Long.rotateLeft(h, 27) * M1 + 0x52DCE729;
+      }
+      long tail = 0;
+      for (int shift = 0; i < end; i++, shift += 8) {
+         tail |= (data[i] & 0xFFL) << shift;
+      }
+      h ^= mix(tail);
+      return fmix(h);
+   }
+
+   private static long getLong(byte[] b, int i) {
+      return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+            | (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48
+            | (b[i + 7] & 0xFFL) << 56;
+   }
+
+   private static long mix(long k) {
+      k *= M1;
+      k = Long.rotateLeft(k, 31);
+      return k * M2;
+   }
+
+   private static long fmix(long h) {
+      h ^= h >>> 33;
+      h *= 0xFF51AFD7ED558CCDL;
+      h ^= h >>> 33;
+      h *= 0xC4CEB9FE1A85EC53L;
+      return h ^ (h >>> 33);
+   }
+}